@@ -0,0 +1,92 @@
+package net.kenevans.heartnotes;
+
+import android.app.job.JobParameters;
+import android.app.job.JobService;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.net.Uri;
+import android.util.Log;
+
+/**
+ * JobService for the automatic backups scheduled by BackupScheduler. Writes
+ * a database or text backup to the data directory, but only if the data
+ * has changed since the last automatic backup.
+ */
+public class BackupJobService extends JobService implements IConstants {
+    private JobRunner.Handle mHandle;
+
+    @Override
+    public boolean onStartJob(final JobParameters params) {
+        final Context context = getApplicationContext();
+        final SharedPreferences prefs =
+                context.getSharedPreferences(MAIN_ACTIVITY, MODE_PRIVATE);
+        String treeUriStr = prefs.getString(PREF_TREE_URI, null);
+        if (treeUriStr == null) {
+            Log.d(TAG, "BackupJobService: no data directory");
+            return false;
+        }
+        final long dataVersion =
+                HeartNotesDbAdapter.getDataVersion(context);
+        if (dataVersion == prefs.getLong(PREF_AUTO_BACKUP_LAST_VERSION, -1)) {
+            Log.d(TAG, "BackupJobService: no changes since last backup");
+            return false;
+        }
+        final Uri treeUri = Uri.parse(treeUriStr);
+        final boolean text = prefs.getBoolean(PREF_AUTO_BACKUP_TEXT, false);
+        mHandle = JobRunner.submit("Automatic backup", progress -> {
+            Uri docUri;
+            if (text) {
+                HeartNotesDbAdapter dbAdapter =
+                        DatabaseManager.acquire(context);
+                try {
+                    docUri = BackupWriter.writeText(context,
+                            new JournalingStore(context, dbAdapter),
+                            treeUri, Filter.NONE,
+                            prefs.getString(PREF_SORT_ORDER, SORT_DESCENDING),
+                            progress);
+                } finally {
+                    DatabaseManager.release(dbAdapter);
+                }
+            } else {
+                docUri = BackupWriter.writeDatabase(context, treeUri,
+                        progress);
+            }
+            if (docUri == null) return null;
+            prefs.edit().putLong(PREF_AUTO_BACKUP_LAST_VERSION, dataVersion)
+                    .apply();
+            BackupRetention.pruneInBackground(context, treeUri);
+            return "Wrote " + docUri.getLastPathSegment();
+        }, new JobRunner.Listener() {
+            @Override
+            public void onProgress(long done, long total) {
+            }
+
+            @Override
+            public void onComplete(String message) {
+                Log.d(TAG, "BackupJobService: " + message);
+                jobFinished(params, false);
+            }
+
+            @Override
+            public void onFailure(Exception ex) {
+                // Try again later
+                jobFinished(params, true);
+            }
+
+            @Override
+            public void onCancelled() {
+            }
+        });
+        return true;
+    }
+
+    @Override
+    public boolean onStopJob(JobParameters params) {
+        // The conditions no longer hold, stop and retry next time
+        if (mHandle != null) {
+            mHandle.cancel();
+            mHandle = null;
+        }
+        return true;
+    }
+}
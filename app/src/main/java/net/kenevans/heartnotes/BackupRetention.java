@@ -0,0 +1,238 @@
+package net.kenevans.heartnotes;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.net.Uri;
+import android.provider.DocumentsContract;
+import android.util.Log;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Prunes the backups in the data directory according to a retention
+ * policy. Only files named like the ones written by Save as Text and Save
+ * Database are considered, and a database manifest is deleted along with
+ * its database. The text and database backups are handled separately. A
+ * backup is kept if any of the rules keeps it:
+ * <ul>
+ * <li>It is one of the newest keepNewest backups.</li>
+ * <li>It is the newest backup of its day and less than keepDailyDays old.</li>
+ * <li>It is the newest backup of its month and keepMonthly is set.</li>
+ * </ul>
+ */
+public class BackupRetention implements IConstants {
+    public static final int DEFAULT_KEEP_NEWEST = 10;
+    public static final int DEFAULT_KEEP_DAILY_DAYS = 30;
+    public static final boolean DEFAULT_KEEP_MONTHLY = true;
+
+    /**
+     * Pattern for the names written by the app. See SAVE_FILE_TEMPLATE and
+     * SAVE_DATABASE_TEMPLATE in BackupWriter.
+     */
+    private static final Pattern BACKUP_NAME_PATTERN = Pattern.compile(
+            "^HeartNotes\\.(\\d{4}-\\d{2}-\\d{2}-\\d{6})\\.(txt|db)$");
+    private static final String BACKUP_DATE_FORMAT = "yyyy-MM-dd-HHmmss";
+
+    private static final ExecutorService sExecutor =
+            Executors.newSingleThreadExecutor();
+
+    private final int mKeepNewest;
+    private final int mKeepDailyDays;
+    private final boolean mKeepMonthly;
+
+    public BackupRetention(int keepNewest, int keepDailyDays,
+                           boolean keepMonthly) {
+        mKeepNewest = Math.max(1, keepNewest);
+        mKeepDailyDays = Math.max(0, keepDailyDays);
+        mKeepMonthly = keepMonthly;
+    }
+
+    /**
+     * Creates a BackupRetention from the preferences.
+     *
+     * @param context The context.
+     * @return The BackupRetention or null if retention is not enabled.
+     */
+    public static BackupRetention fromPreferences(Context context) {
+        SharedPreferences prefs = context.getSharedPreferences(MAIN_ACTIVITY,
+                Context.MODE_PRIVATE);
+        if (!prefs.getBoolean(PREF_RETENTION_ENABLED, false)) {
+            return null;
+        }
+        return new BackupRetention(
+                prefs.getInt(PREF_RETENTION_KEEP_NEWEST, DEFAULT_KEEP_NEWEST),
+                prefs.getInt(PREF_RETENTION_KEEP_DAILY_DAYS,
+                        DEFAULT_KEEP_DAILY_DAYS),
+                prefs.getBoolean(PREF_RETENTION_KEEP_MONTHLY,
+                        DEFAULT_KEEP_MONTHLY));
+    }
+
+    /**
+     * Prunes the given tree in the background if retention is enabled in
+     * the preferences.
+     *
+     * @param context The context.
+     * @param treeUri The tree Uri of the data directory.
+     */
+    public static void pruneInBackground(Context context, Uri treeUri) {
+        final BackupRetention retention = fromPreferences(context);
+        if (retention == null || treeUri == null) return;
+        final Context appContext = context.getApplicationContext();
+        sExecutor.execute(() -> {
+            try {
+                retention.prune(appContext, treeUri);
+            } catch (Exception ex) {
+                Log.e(TAG, "BackupRetention: prune failed", ex);
+            }
+        });
+    }
+
+    /**
+     * Prunes the given tree. Does I/O and should not be called on the main
+     * thread.
+     *
+     * @param context The context.
+     * @param treeUri The tree Uri of the data directory.
+     * @return The number of documents deleted.
+     */
+    public int prune(Context context, Uri treeUri) {
+        // One listing for all the files
+        List<UriUtils.UriData> children = UriUtils.getChildren(context,
+                treeUri, "");
+        Map<String, UriUtils.UriData> byName = new HashMap<>();
+        for (UriUtils.UriData child : children) {
+            String name = child.displayName != null ? child.displayName :
+                    UriUtils.getFileNameFromUri(child.uri);
+            if (name != null) {
+                byName.put(name, child);
+            }
+        }
+        List<String> toDelete = selectForDeletion(byName.keySet(),
+                System.currentTimeMillis());
+        if (toDelete.isEmpty()) {
+            return 0;
+        }
+        ContentResolver resolver = context.getContentResolver();
+        int nDeleted = 0;
+        for (String name : toDelete) {
+            try {
+                if (DocumentsContract.deleteDocument(resolver,
+                        byName.get(name).uri)) {
+                    nDeleted++;
+                }
+                // Delete the manifest along with the backup
+                UriUtils.UriData manifest =
+                        byName.get(name + CopyEngine.MANIFEST_EXT);
+                if (manifest != null) {
+                    DocumentsContract.deleteDocument(resolver, manifest.uri);
+                }
+            } catch (Exception ex) {
+                Log.e(TAG, "BackupRetention: failed to delete " + name, ex);
+            }
+        }
+        UriUtils.invalidateChildren(treeUri);
+        Log.d(TAG, "BackupRetention: deleted " + nDeleted + " of "
+                + toDelete.size() + " expired backups");
+        return nDeleted;
+    }
+
+    /**
+     * Determines which of the given file names should be deleted. Names that
+     * are not backup names are never selected.
+     *
+     * @param names The file names.
+     * @param now   The current time.
+     * @return The names to delete.
+     */
+    public List<String> selectForDeletion(Iterable<String> names, long now) {
+        // Group the backups by extension
+        Map<String, List<Backup>> groups = new HashMap<>();
+        SimpleDateFormat df = new SimpleDateFormat(BACKUP_DATE_FORMAT,
+                Locale.US);
+        for (String name : names) {
+            Matcher matcher = BACKUP_NAME_PATTERN.matcher(name);
+            if (!matcher.matches()) continue;
+            long time;
+            try {
+                time = df.parse(matcher.group(1)).getTime();
+            } catch (ParseException ex) {
+                continue;
+            }
+            String ext = matcher.group(2);
+            List<Backup> group = groups.get(ext);
+            if (group == null) {
+                group = new ArrayList<>();
+                groups.put(ext, group);
+            }
+            group.add(new Backup(name, time));
+        }
+
+        List<String> toDelete = new ArrayList<>();
+        long dailyCutoff = now - mKeepDailyDays * 24L * 60 * 60 * 1000;
+        Calendar cal = Calendar.getInstance();
+        for (List<Backup> group : groups.values()) {
+            // Newest first
+            Collections.sort(group, (b1, b2) -> Long.compare(b2.time,
+                    b1.time));
+            Set<Integer> daysSeen = new HashSet<>();
+            Set<Integer> monthsSeen = new HashSet<>();
+            for (int i = 0; i < group.size(); i++) {
+                Backup backup = group.get(i);
+                cal.setTimeInMillis(backup.time);
+                int year = cal.get(Calendar.YEAR);
+                int day = year * 1000 + cal.get(Calendar.DAY_OF_YEAR);
+                int month = year * 100 + cal.get(Calendar.MONTH);
+                // Always evaluate both so the newest of each is recorded
+                boolean newestOfDay = daysSeen.add(day);
+                boolean newestOfMonth = monthsSeen.add(month);
+                boolean keep = i < mKeepNewest
+                        || (newestOfDay && backup.time >= dailyCutoff)
+                        || (newestOfMonth && mKeepMonthly);
+                if (!keep) {
+                    toDelete.add(backup.name);
+                }
+            }
+        }
+        return toDelete;
+    }
+
+    /**
+     * Returns a description of the policy.
+     *
+     * @return The description.
+     */
+    @Override
+    public String toString() {
+        return "Keep newest " + mKeepNewest + ", dailies for "
+                + mKeepDailyDays + " days"
+                + (mKeepMonthly ? ", monthlies forever" : "");
+    }
+
+    /**
+     * Convenience class for a backup and its time.
+     */
+    private static class Backup {
+        final String name;
+        final long time;
+
+        Backup(String name, long time) {
+            this.name = name;
+            this.time = time;
+        }
+    }
+}
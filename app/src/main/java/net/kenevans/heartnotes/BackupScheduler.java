@@ -0,0 +1,59 @@
+package net.kenevans.heartnotes;
+
+import android.app.job.JobInfo;
+import android.app.job.JobScheduler;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+/**
+ * Schedules the automatic backups done by BackupJobService according to
+ * the preferences.
+ */
+public class BackupScheduler implements IConstants {
+    /**
+     * Default interval between automatic backups in hours.
+     */
+    public static final int DEFAULT_INTERVAL = 24;
+    /**
+     * Default for only backing up when idle and charging. Off, since a
+     * device that is seldom both would seldom be backed up.
+     */
+    public static final boolean DEFAULT_IDLE_CHARGING = false;
+
+    /**
+     * Schedules or cancels the automatic backup job to match the
+     * preferences. Safe to call repeatedly.
+     *
+     * @param context The context.
+     */
+    public static void schedule(Context context) {
+        JobScheduler scheduler = (JobScheduler) context.getSystemService(
+                Context.JOB_SCHEDULER_SERVICE);
+        if (scheduler == null) return;
+        SharedPreferences prefs = context.getSharedPreferences(MAIN_ACTIVITY,
+                Context.MODE_PRIVATE);
+        boolean enabled = prefs.getBoolean(PREF_AUTO_BACKUP_ENABLED, false);
+        if (!enabled || prefs.getString(PREF_TREE_URI, null) == null) {
+            scheduler.cancel(BACKUP_JOB_ID);
+            Log.d(TAG, "BackupScheduler: cancelled");
+            return;
+        }
+        int interval = Math.max(1, prefs.getInt(PREF_AUTO_BACKUP_INTERVAL,
+                DEFAULT_INTERVAL));
+        boolean idleCharging =
+                prefs.getBoolean(PREF_AUTO_BACKUP_IDLE_CHARGING,
+                        DEFAULT_IDLE_CHARGING);
+        JobInfo.Builder builder = new JobInfo.Builder(BACKUP_JOB_ID,
+                new ComponentName(context, BackupJobService.class))
+                .setPeriodic(interval * 60L * 60 * 1000)
+                .setPersisted(true);
+        if (idleCharging) {
+            builder.setRequiresCharging(true).setRequiresDeviceIdle(true);
+        }
+        int result = scheduler.schedule(builder.build());
+        Log.d(TAG, "BackupScheduler: scheduled every " + interval
+                + " h idleCharging=" + idleCharging + " result=" + result);
+    }
+}
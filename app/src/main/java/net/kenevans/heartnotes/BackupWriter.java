@@ -0,0 +1,371 @@
+package net.kenevans.heartnotes;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+import android.provider.DocumentsContract;
+import android.util.Log;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.channels.FileChannel;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+
+/**
+ * Writes the text and database backups to the data directory and reads the
+ * database backups back. These do I/O and are meant to be run as JobRunner
+ * jobs, not on the main thread.
+ */
+public class BackupWriter implements IConstants {
+    /**
+     * Template for the name of the text backup.
+     */
+    public static final String SAVE_FILE_TEMPLATE = "HeartNotes.%s.txt";
+    /**
+     * Template for the name of the database backup.
+     */
+    public static final String SAVE_DATABASE_TEMPLATE = "HeartNotes.%s.db";
+
+    /**
+     * Writes text to a file in the tree.
+     */
+    public interface TextContent {
+        /**
+         * Writes the text. Should return early when progress.isCancelled()
+         * becomes true.
+         *
+         * @param out      The Writer. Is not closed.
+         * @param progress The Progress for the job.
+         * @throws IOException On failure.
+         */
+        void write(Writer out, Progress progress)
+                throws IOException;
+    }
+
+    /**
+     * Writes the data matching the filter to a new text file in the tree.
+     * If cancelled, the partial file is deleted.
+     *
+     * @param context   The context.
+     * @param store     The open HeartNotesStore.
+     * @param treeUri   The tree Uri of the data directory.
+     * @param filter    The Filter.
+     * @param sortOrder The sort order.
+     * @param progress  The Progress for the job.
+     * @return The document Uri of the file or null if cancelled.
+     * @throws IOException On failure.
+     */
+    public static Uri writeText(Context context, HeartNotesStore store,
+                                Uri treeUri, Filter filter,
+                                String sortOrder,
+                                Progress progress)
+            throws IOException {
+        long start = Timings.start();
+        boolean failed = true;
+        try {
+            Uri docUri = writeText(context, treeUri,
+                    (out, prog) -> writeText(store, filter, sortOrder, out,
+                            prog), progress);
+            failed = false;
+            return docUri;
+        } finally {
+            Timings.stop(Timings.EXPORT_TEXT, start, failed);
+        }
+    }
+
+    /**
+     * Writes a new text file in the tree using the given TextContent. If
+     * cancelled, the partial file is deleted.
+     *
+     * @param context  The context.
+     * @param treeUri  The tree Uri of the data directory.
+     * @param content  The TextContent.
+     * @param progress The Progress for the job.
+     * @return The document Uri of the file or null if cancelled.
+     * @throws IOException On failure.
+     */
+    public static Uri writeText(Context context, Uri treeUri,
+                                TextContent content,
+                                Progress progress)
+            throws IOException {
+        return writeText(context, treeUri, makeFileName(SAVE_FILE_TEMPLATE),
+                content, progress);
+    }
+
+    /**
+     * Writes a new text file with the given name in the tree using the
+     * given TextContent. If cancelled, the partial file is deleted.
+     *
+     * @param context  The context.
+     * @param treeUri  The tree Uri of the data directory.
+     * @param fileName The name of the file.
+     * @param content  The TextContent.
+     * @param progress The Progress for the job.
+     * @return The document Uri of the file or null if cancelled.
+     * @throws IOException On failure.
+     */
+    public static Uri writeText(Context context, Uri treeUri,
+                                String fileName, TextContent content,
+                                Progress progress)
+            throws IOException {
+        Uri docUri = createDocument(context, treeUri, "text/plain",
+                fileName);
+        boolean finished = false;
+        try (ParcelFileDescriptor pfd = context.getContentResolver().
+                openFileDescriptor(docUri, "w");
+             FileWriter writer = new FileWriter(pfd.getFileDescriptor());
+             BufferedWriter out = new BufferedWriter(writer)) {
+            content.write(out, progress);
+            finished = !progress.isCancelled();
+        } finally {
+            if (!finished) {
+                deleteDocument(context, treeUri, docUri);
+            }
+        }
+        return finished ? docUri : null;
+    }
+
+    /**
+     * Writes the rows from a store in the text backup format.
+     *
+     * @param store     The HeartNotesStore.
+     * @param filter    The Filter.
+     * @param sortOrder The sort order.
+     * @param out       The Writer.
+     * @param progress  The Progress for the job.
+     * @throws IOException On failure.
+     */
+    private static void writeText(HeartNotesStore store, Filter filter,
+                                  String sortOrder, final Writer out,
+                                  final Progress progress)
+            throws IOException {
+        final int nRows = store.getCount(filter);
+        final int[] nDone = {0};
+        store.forEachData(filter, sortOrder, data -> {
+            if (progress.isCancelled()) return false;
+            out.write(HeartNotesFormat.formatLine(data.getCount(),
+                    data.getTotal(),
+                    HeartNotesActivity.formatDate(data.getDateNum()),
+                    data.getComment()));
+            progress.update(++nDone[0], nRows);
+            return true;
+        });
+    }
+
+    /**
+     * Copies the database to a new file in the tree and writes a manifest
+     * with its size and checksum next to it. If cancelled, the partial file
+     * is deleted.
+     *
+     * @param context  The context.
+     * @param treeUri  The tree Uri of the data directory.
+     * @param progress The Progress for the job.
+     * @return The document Uri of the file or null if cancelled.
+     * @throws IOException On failure.
+     */
+    public static Uri writeDatabase(Context context, Uri treeUri,
+                                    Progress progress)
+            throws IOException {
+        long start = Timings.start();
+        boolean failed = true;
+        try {
+            // Get the journaled entries into the file first
+            CaptureJournal.compactNow(context);
+            Uri docUri = writeDatabase(context, treeUri,
+                    new File(context.getExternalFilesDir(null), DB_NAME),
+                    progress);
+            failed = false;
+            return docUri;
+        } finally {
+            Timings.stop(Timings.EXPORT_DATABASE, start, failed);
+        }
+    }
+
+    /**
+     * Copies the given database file to a new file in the tree and writes a
+     * manifest for it. If cancelled, the partial file is deleted.
+     *
+     * @param context  The context.
+     * @param treeUri  The tree Uri of the data directory.
+     * @param src      The database file.
+     * @param progress The Progress for the job.
+     * @return The document Uri of the file or null if cancelled.
+     * @throws IOException On failure.
+     */
+    public static Uri writeDatabase(Context context, Uri treeUri, File src,
+                                    Progress progress)
+            throws IOException {
+        String fileName = makeFileName(SAVE_DATABASE_TEMPLATE);
+        Uri docUri = createDocument(context, treeUri,
+                "application/vnd.sqlite3", fileName);
+        Log.d(TAG, "writeDatabase: docUri=" + docUri);
+        boolean finished = false;
+        try {
+            CopyEngine.Result result;
+            try (ParcelFileDescriptor pfd = context.getContentResolver().
+                    openFileDescriptor(docUri, "rw");
+                 FileChannel in = new FileInputStream(src).getChannel();
+                 FileChannel out =
+                         new FileOutputStream(pfd.getFileDescriptor())
+                                 .getChannel()) {
+                result = CopyEngine.copy(fileName, in, out,
+                        CopyEngine.getDefaultAlgorithm(), progress);
+            }
+            if (result == null || progress.isCancelled()) {
+                return null;
+            }
+            Log.d(TAG, "writeDatabase: " + result);
+            // Use a generic type so the provider does not add an extension
+            Uri manifestUri = createDocument(context, treeUri,
+                    "application/octet-stream",
+                    fileName + CopyEngine.MANIFEST_EXT);
+            try (OutputStream out = context.getContentResolver()
+                    .openOutputStream(manifestUri)) {
+                CopyEngine.writeManifest(result, out);
+            } catch (IOException ex) {
+                deleteDocument(context, treeUri, manifestUri);
+                throw ex;
+            }
+            finished = true;
+        } finally {
+            if (!finished) {
+                deleteDocument(context, treeUri, docUri);
+            }
+        }
+        return docUri;
+    }
+
+    /**
+     * Copies a database backup from the tree to a local file and verifies
+     * it against its manifest, if there is one, and checks that it is a
+     * SQLite database. The local file is deleted if anything fails.
+     *
+     * @param context  The context.
+     * @param treeUri  The tree Uri of the data directory.
+     * @param docUri   The document Uri of the backup.
+     * @param fileName The display name of the backup.
+     * @param dest     The local file to copy to.
+     * @return A message describing the verification.
+     * @throws IOException On failure or if the verification fails.
+     */
+    public static String copyVerifiedDatabase(Context context, Uri treeUri,
+                                              Uri docUri, String fileName,
+                                              File dest)
+            throws IOException {
+        try (MainThreadIo.Scope ignored =
+                     MainThreadIo.enter("backup.copyVerifiedDatabase")) {
+            return copyAndVerify(context, treeUri, docUri, fileName, dest);
+        }
+    }
+
+    private static String copyAndVerify(Context context, Uri treeUri,
+                                        Uri docUri, String fileName,
+                                        File dest) throws IOException {
+        // Find the manifest if there is one
+        CopyEngine.Result expected = null;
+        if (treeUri != null) {
+            String manifestName = fileName + CopyEngine.MANIFEST_EXT;
+            for (UriUtils.UriData child : UriUtils.getChildren(context,
+                    treeUri, CopyEngine.MANIFEST_EXT)) {
+                if (manifestName.equals(child.displayName)) {
+                    try (InputStream in = context.getContentResolver()
+                            .openInputStream(child.uri)) {
+                        expected = CopyEngine.readManifest(in);
+                    }
+                    break;
+                }
+            }
+        }
+        String algorithm = expected != null ? expected.algorithm :
+                CopyEngine.getDefaultAlgorithm();
+        boolean verified = false;
+        try {
+            CopyEngine.Result result;
+            try (ParcelFileDescriptor pfd = context.getContentResolver().
+                    openFileDescriptor(docUri, "r");
+                 FileChannel in =
+                         new FileInputStream(pfd.getFileDescriptor())
+                                 .getChannel();
+                 FileChannel out = new FileOutputStream(dest).getChannel()) {
+                result = CopyEngine.copy(fileName, in, out, algorithm, null);
+            }
+            if (expected != null && !expected.matches(result)) {
+                throw new IOException("The backup does not match its "
+                        + "manifest\nExpected: " + expected + "\nFound: "
+                        + result);
+            }
+            try (FileChannel in = new FileInputStream(dest).getChannel()) {
+                if (!CopyEngine.isSQLiteFile(in)) {
+                    throw new IOException(fileName
+                            + " is not a SQLite database");
+                }
+            }
+            verified = true;
+            return expected != null ? "Verified " + result :
+                    "No manifest found, not verified";
+        } finally {
+            if (!verified && dest.exists() && !dest.delete()) {
+                Log.e(TAG, "Failed to delete " + dest);
+            }
+        }
+    }
+
+    /**
+     * Makes a file name from a template and the current time.
+     *
+     * @param template The template for the name.
+     * @return The name.
+     */
+    public static String makeFileName(String template) {
+        String format = "yyyy-MM-dd-HHmmss";
+        SimpleDateFormat df = new SimpleDateFormat(format, Locale.US);
+        return String.format(template, df.format(new Date()));
+    }
+
+    /**
+     * Creates a new document in the tree.
+     *
+     * @param context  The context.
+     * @param treeUri  The tree Uri.
+     * @param mimeType The MIME type.
+     * @param fileName The name.
+     * @return The document Uri.
+     * @throws IOException If the document could not be created.
+     */
+    private static Uri createDocument(Context context, Uri treeUri,
+                                      String mimeType, String fileName)
+            throws IOException {
+        String treeDocumentId = DocumentsContract.getTreeDocumentId(treeUri);
+        Uri docTreeUri = DocumentsContract.buildDocumentUriUsingTree(treeUri,
+                treeDocumentId);
+        ContentResolver resolver = context.getContentResolver();
+        Uri docUri = DocumentsContract.createDocument(resolver, docTreeUri,
+                mimeType, fileName);
+        UriUtils.invalidateChildren(treeUri);
+        if (docUri == null) {
+            throw new IOException("Could not create document Uri");
+        }
+        return docUri;
+    }
+
+    private static void deleteDocument(Context context, Uri treeUri,
+                                       Uri docUri) {
+        try {
+            DocumentsContract.deleteDocument(context.getContentResolver(),
+                    docUri);
+        } catch (Exception ex) {
+            Log.e(TAG, "Failed to delete partial " + docUri, ex);
+        }
+        UriUtils.invalidateChildren(treeUri);
+    }
+}
@@ -0,0 +1,478 @@
+package net.kenevans.heartnotes;
+
+import android.content.Context;
+import android.database.sqlite.SQLiteConstraintException;
+import android.os.Process;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only journal for new entries, so capturing one costs a single
+ * small write and fsync rather than a database insert. The records are
+ * fixed size and end with a CRC, so a record torn by a crash is detected
+ * and dropped when the journal is loaded. Concurrent appends share fsyncs
+ * (group commit): whichever caller syncs first covers everything written
+ * so far.
+ * <p/>
+ * The records are also kept in memory until they are compacted, that is,
+ * inserted into the data table with their ids and removed from the
+ * journal. Compaction runs in the background shortly after an append and
+ * can also be run directly. There is one journal per process. See
+ * JournalingStore, which merges the journal with the table.
+ */
+public class CaptureJournal implements IConstants {
+    public static final String JOURNAL_NAME = "HeartNotes.journal";
+    /**
+     * Size of each record in bytes.
+     */
+    public static final int RECORD_SIZE = 512;
+    /**
+     * Delay in ms after an append before compacting.
+     */
+    public static final long COMPACT_DELAY = 5000;
+
+    private static final int MAGIC = 0x484e4a31; // HNJ1
+    /**
+     * magic, id, date, dateMod, count, total, edited, comment length
+     */
+    private static final int HEADER_SIZE = 4 + 8 + 8 + 8 + 4 + 4 + 1 + 2;
+    private static final int CRC_SIZE = 4;
+    /**
+     * The maximum length of the comment in UTF-8 bytes.
+     */
+    public static final int MAX_COMMENT_BYTES =
+            RECORD_SIZE - HEADER_SIZE - CRC_SIZE;
+
+    private static CaptureJournal sInstance;
+
+    private final Context mContext;
+    private final File mFile;
+    /**
+     * The open journal. Replaced by rewrite, which holds this and
+     * mSyncLock to do it.
+     */
+    private volatile FileChannel mChannel;
+    private final ScheduledExecutorService mExecutor =
+            Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(() -> {
+                    Process.setThreadPriority(
+                            Process.THREAD_PRIORITY_BACKGROUND);
+                    runnable.run();
+                }, "CaptureJournal");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    /**
+     * The records not yet compacted, in the order appended. Guarded by
+     * this.
+     */
+    private final List<Data> mPending = new ArrayList<>();
+    /**
+     * The largest id given out. Guarded by this.
+     */
+    private long mLastId;
+    /**
+     * The number of records appended since the journal was opened. Used
+     * for the group fsync.
+     */
+    private volatile long mAppended;
+    private ScheduledFuture<?> mScheduled;
+
+    private final Object mSyncLock = new Object();
+    private boolean mSyncing;
+    private long mSynced;
+
+    private final Object mCompactLock = new Object();
+
+    private CaptureJournal(Context context, File file) throws IOException {
+        mContext = context;
+        mFile = file;
+        mChannel = new RandomAccessFile(file, "rw").getChannel();
+        load();
+    }
+
+    /**
+     * Gets the journal for the process, opening it if necessary. If there
+     * are records left from before, a compaction is scheduled.
+     *
+     * @param context The context.
+     * @return The journal.
+     * @throws IOException If it cannot be opened.
+     */
+    public static synchronized CaptureJournal getInstance(Context context)
+            throws IOException {
+        if (sInstance == null) {
+            Context appContext = context.getApplicationContext();
+            File dir = appContext.getExternalFilesDir(null);
+            sInstance = new CaptureJournal(appContext,
+                    new File(dir, JOURNAL_NAME));
+            if (sInstance.getPendingCount() > 0) {
+                sInstance.scheduleCompaction();
+            }
+        }
+        return sInstance;
+    }
+
+    /**
+     * Returns whether the comment fits in a record.
+     *
+     * @param comment The comment.
+     * @return If it fits.
+     */
+    public static boolean fits(String comment) {
+        return comment.getBytes(StandardCharsets.UTF_8).length
+                <= MAX_COMMENT_BYTES;
+    }
+
+    /**
+     * Appends a new entry and waits until it is on disk.
+     *
+     * @param tableLastId The last id used in the data table.
+     * @return The id given to the entry.
+     * @throws IOException              On failure.
+     * @throws IllegalArgumentException If the comment does not fit.
+     */
+    public long append(long tableLastId, long date, long dateMod, long count,
+                       long total, boolean edited, String comment)
+            throws IOException {
+        byte[] commentBytes = comment.getBytes(StandardCharsets.UTF_8);
+        if (commentBytes.length > MAX_COMMENT_BYTES) {
+            throw new IllegalArgumentException("The comment is too long for "
+                    + "the journal");
+        }
+        long ticket;
+        Data data;
+        try (MainThreadIo.Scope ignored =
+                     MainThreadIo.enter("journal.append")) {
+            synchronized (this) {
+                long id = Math.max(mLastId, tableLastId) + 1;
+                data = new Data(id, date, dateMod, (int) count, (int) total,
+                        edited, comment);
+                ByteBuffer record = encode(data, commentBytes);
+                long position = (long) mPending.size() * RECORD_SIZE;
+                while (record.hasRemaining()) {
+                    position += mChannel.write(record, position);
+                }
+                mLastId = id;
+                mPending.add(data);
+                ticket = ++mAppended;
+            }
+            awaitSync(ticket);
+        }
+        scheduleCompaction();
+        return data.getId();
+    }
+
+    /**
+     * Gets a copy of the records not yet compacted.
+     *
+     * @return The records in the order appended.
+     */
+    public synchronized List<Data> getPending() {
+        return new ArrayList<>(mPending);
+    }
+
+    /**
+     * Gets the record with the given id if it has not been compacted.
+     *
+     * @param id The id.
+     * @return The record or null.
+     */
+    public synchronized Data getPending(long id) {
+        for (Data data : mPending) {
+            if (data.getId() == id) return data;
+        }
+        return null;
+    }
+
+    public synchronized int getPendingCount() {
+        return mPending.size();
+    }
+
+    /**
+     * Inserts the pending records into the data table and removes them from
+     * the journal. Records appended meanwhile are kept for the next time.
+     * Inserting is idempotent, so a crash in between only means they are
+     * inserted again. A record with the id of a different row is never
+     * overwritten. Nothing is compacted then.
+     *
+     * @param dbAdapter An open adapter for the app's database.
+     * @throws IOException               On failure.
+     * @throws SQLiteConstraintException If a record has the id of a
+     *                                   different row.
+     */
+    public void compact(HeartNotesDbAdapter dbAdapter) throws IOException {
+        synchronized (mCompactLock) {
+            List<Data> batch = getPending();
+            if (batch.isEmpty()) return;
+            long start = Timings.start();
+            try {
+                dbAdapter.insertAll(batch);
+            } catch (SQLiteConstraintException ex) {
+                // The records are kept. Overwriting the row would lose it.
+                Timings.stop(Timings.COMPACT_JOURNAL, start, true);
+                Log.e(TAG, "CaptureJournal: a record has the id of a"
+                        + " different row, not compacting", ex);
+                throw ex;
+            }
+            synchronized (this) {
+                // The batch is at the start of the list
+                mPending.subList(0, batch.size()).clear();
+                rewrite();
+            }
+            Timings.stop(Timings.COMPACT_JOURNAL, start);
+            Log.d(TAG, "CaptureJournal: compacted " + batch.size()
+                    + " records, " + getPendingCount() + " remain");
+        }
+    }
+
+    /**
+     * Runs an insert into the data table that bypasses the journal, such as
+     * a restore or an entry too long for a record. The journal is compacted
+     * first, and appends wait until the insert is done, so the table cannot
+     * give the new rows ids the journal has given out or will give out.
+     *
+     * @param dbAdapter An open adapter for the app's database.
+     * @param insert    The insert.
+     * @throws IOException If compacting fails. The insert is not run then.
+     */
+    public void insertDirect(HeartNotesDbAdapter dbAdapter, Runnable insert)
+            throws IOException {
+        synchronized (mCompactLock) {
+            compact(dbAdapter);
+            synchronized (this) {
+                insert.run();
+                mLastId = Math.max(mLastId, dbAdapter.getLastId());
+            }
+        }
+    }
+
+    /**
+     * Compacts the journal using the shared adapter, so the database file
+     * has all the entries. Call it off the main thread.
+     *
+     * @param context The context.
+     * @throws IOException On failure.
+     */
+    public static void compactNow(Context context) throws IOException {
+        CaptureJournal journal = getInstance(context);
+        if (journal.getPendingCount() == 0) return;
+        HeartNotesDbAdapter dbAdapter = DatabaseManager.acquire(context);
+        try {
+            journal.compact(dbAdapter);
+        } finally {
+            DatabaseManager.release(dbAdapter);
+        }
+    }
+
+    /**
+     * Discards all the records, for when the data table is being replaced.
+     * Also forgets the last id, since the new table determines it.
+     *
+     * @throws IOException On failure.
+     */
+    public void clear() throws IOException {
+        synchronized (mCompactLock) {
+            synchronized (this) {
+                mPending.clear();
+                mLastId = 0;
+                rewrite();
+            }
+        }
+    }
+
+    /**
+     * Schedules a compaction in the background after COMPACT_DELAY, unless
+     * one is already scheduled.
+     */
+    public synchronized void scheduleCompaction() {
+        if (mScheduled != null && !mScheduled.isDone()) return;
+        mScheduled = mExecutor.schedule(() -> {
+            try {
+                compactNow(mContext);
+            } catch (Exception ex) {
+                Log.e(TAG, "CaptureJournal: compaction failed", ex);
+            }
+        }, COMPACT_DELAY, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Replaces the file with one with just the pending records. They are
+     * written to a temporary file, which is synced and then renamed over
+     * the journal, so a crash leaves either the old file or the new one,
+     * never a mix. Must be called holding this.
+     *
+     * @throws IOException On failure. The old file is then still in use.
+     */
+    private void rewrite() throws IOException {
+        File tmp = new File(mFile.getPath() + ".tmp");
+        FileChannel channel = new RandomAccessFile(tmp, "rw").getChannel();
+        try {
+            channel.truncate(0);
+            long position = 0;
+            for (Data data : mPending) {
+                ByteBuffer record = encode(data,
+                        data.getComment().getBytes(StandardCharsets.UTF_8));
+                while (record.hasRemaining()) {
+                    position += channel.write(record, position);
+                }
+            }
+            channel.force(false);
+            synchronized (mSyncLock) {
+                // Do not close the old file while it is being synced
+                while (mSyncing) {
+                    try {
+                        mSyncLock.wait();
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException(
+                                "Interrupted waiting for the journal sync");
+                    }
+                }
+                if (!tmp.renameTo(mFile)) {
+                    throw new IOException("Cannot rename " + tmp + " to "
+                            + mFile);
+                }
+                FileChannel old = mChannel;
+                mChannel = channel;
+                channel = null;
+                // Everything appended so far is in the new file
+                mSynced = mAppended;
+                mSyncLock.notifyAll();
+                old.close();
+            }
+        } finally {
+            if (channel != null) channel.close();
+        }
+    }
+
+    /**
+     * Waits until the record with the given ticket is on disk, doing the
+     * fsync if no other thread is.
+     *
+     * @param ticket The value of mAppended after the append.
+     * @throws IOException On failure.
+     */
+    private void awaitSync(long ticket) throws IOException {
+        while (true) {
+            long target;
+            synchronized (mSyncLock) {
+                while (mSyncing && mSynced < ticket) {
+                    try {
+                        mSyncLock.wait();
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException(
+                                "Interrupted waiting for the journal sync");
+                    }
+                }
+                if (mSynced >= ticket) return;
+                mSyncing = true;
+                target = mAppended;
+            }
+            boolean synced = false;
+            try {
+                mChannel.force(false);
+                synced = true;
+            } finally {
+                synchronized (mSyncLock) {
+                    mSyncing = false;
+                    if (synced && target > mSynced) mSynced = target;
+                    mSyncLock.notifyAll();
+                }
+            }
+        }
+    }
+
+    /**
+     * Loads the records from the file. Stops at the first invalid record,
+     * which can only be one torn by a crash, and truncates the file there.
+     *
+     * @throws IOException On failure.
+     */
+    private synchronized void load() throws IOException {
+        long size = mChannel.size();
+        ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+        long position = 0;
+        while (position + RECORD_SIZE <= size) {
+            record.clear();
+            while (record.hasRemaining()) {
+                if (mChannel.read(record, position + record.position()) < 0) {
+                    break;
+                }
+            }
+            Data data = decode(record);
+            if (data == null) break;
+            mPending.add(data);
+            mLastId = Math.max(mLastId, data.getId());
+            position += RECORD_SIZE;
+        }
+        if (position != size) {
+            Log.w(TAG, "CaptureJournal: dropping " + (size - position)
+                    + " bytes of incomplete records from " + mFile);
+            mChannel.truncate(position);
+            mChannel.force(false);
+        }
+    }
+
+    private static ByteBuffer encode(Data data, byte[] commentBytes) {
+        ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+        record.putInt(MAGIC);
+        record.putLong(data.getId());
+        record.putLong(data.getDateNum());
+        record.putLong(data.getDateMod());
+        record.putInt(data.getCount());
+        record.putInt(data.getTotal());
+        record.put((byte) (data.isEdited() ? 1 : 0));
+        record.putShort((short) commentBytes.length);
+        record.put(commentBytes);
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), 0, RECORD_SIZE - CRC_SIZE);
+        record.putInt(RECORD_SIZE - CRC_SIZE, (int) crc.getValue());
+        record.rewind();
+        return record;
+    }
+
+    /**
+     * Decodes a record.
+     *
+     * @param record The record.
+     * @return The Data or null if the record is not valid.
+     */
+    private static Data decode(ByteBuffer record) {
+        if (record.position() != RECORD_SIZE) return null;
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), 0, RECORD_SIZE - CRC_SIZE);
+        if (record.getInt(RECORD_SIZE - CRC_SIZE) != (int) crc.getValue()) {
+            return null;
+        }
+        record.rewind();
+        if (record.getInt() != MAGIC) return null;
+        long id = record.getLong();
+        long date = record.getLong();
+        long dateMod = record.getLong();
+        int count = record.getInt();
+        int total = record.getInt();
+        boolean edited = record.get() != 0;
+        int length = record.getShort();
+        if (length < 0 || length > MAX_COMMENT_BYTES) return null;
+        String comment = new String(record.array(), record.position(),
+                length, StandardCharsets.UTF_8);
+        return new Data(id, date, dateMod, count, total, edited, comment);
+    }
+}
@@ -0,0 +1,172 @@
+package net.kenevans.heartnotes;
+
+import android.content.SharedPreferences;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import android.widget.TextView;
+
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import androidx.appcompat.app.AppCompatActivity;
+
+/**
+ * Shows a ChartView of the entries that pass the current Filter. The
+ * buckets are computed by HeartNotesDbAdapter.getDateBuckets on a
+ * background thread whenever the visible range changes, so no more than
+ * a few hundred buckets are ever in memory. Requests that arrive while a
+ * query is running are coalesced, and only the latest is done.
+ */
+public class ChartActivity extends AppCompatActivity implements IConstants {
+    /**
+     * Pixels per bucket.
+     */
+    private static final int BUCKET_WIDTH = 2;
+
+    private final ExecutorService mExecutor =
+            Executors.newSingleThreadExecutor();
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private HeartNotesDbAdapter mDbAdapter;
+    private ChartView mChart;
+    private TextView mStatus;
+    private Filter mFilter;
+
+    /**
+     * The latest range requested, or null if it has been taken. Guarded by
+     * this.
+     */
+    private long[] mRequest;
+    private boolean mQuerying;
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.chart);
+        mChart = findViewById(R.id.chart);
+        mStatus = findViewById(R.id.chart_status);
+        SharedPreferences prefs = getSharedPreferences(MAIN_ACTIVITY,
+                MODE_PRIVATE);
+        mFilter = Filter.fromOrdinal(prefs.getInt(PREF_FILTER, 0));
+        mStatus.setText(R.string.chart_loading);
+        mDbAdapter = DatabaseManager.acquire(this);
+        mChart.setListener(this::requestBuckets);
+        loadRange();
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        mChart.setListener(null);
+        synchronized (this) {
+            mRequest = null;
+        }
+        // Release after any query that is already queued
+        final HeartNotesDbAdapter dbAdapter = mDbAdapter;
+        mExecutor.execute(() -> DatabaseManager.release(dbAdapter));
+        mExecutor.shutdown();
+    }
+
+    /**
+     * Gets the range of the data in the background and then shows all of
+     * it.
+     */
+    private void loadRange() {
+        final HeartNotesDbAdapter dbAdapter = mDbAdapter;
+        mExecutor.execute(() -> {
+            long[] range = null;
+            try {
+                // So entries just captured are included
+                CaptureJournal.getInstance(this).compact(dbAdapter);
+                range = dbAdapter.getDateRange(mFilter);
+            } catch (Exception ex) {
+                Log.e(TAG, "ChartActivity: error getting the range", ex);
+            }
+            final long[] result = range;
+            mHandler.post(() -> {
+                if (isFinishing() || isDestroyed()) return;
+                if (result == null) {
+                    mStatus.setText(R.string.chart_no_data);
+                    return;
+                }
+                mChart.setDataRange(result[0], result[1]);
+            });
+        });
+    }
+
+    /**
+     * Queues getting the buckets for the given range. The buckets cover
+     * the range on each side as well, so panning has something to show
+     * while the next query runs.
+     *
+     * @param start The start of the visible range.
+     * @param end   The end of the visible range.
+     * @param width The width in pixels.
+     */
+    private void requestBuckets(long start, long end, int width) {
+        long span = end - start;
+        long[] request = new long[]{start - span, end + span,
+                3L * Math.max(1, width / BUCKET_WIDTH)};
+        synchronized (this) {
+            mRequest = request;
+            if (mQuerying) return;
+            mQuerying = true;
+        }
+        mExecutor.execute(this::queryBuckets);
+    }
+
+    /**
+     * Does the latest request until there are none left. Runs on the
+     * executor.
+     */
+    private void queryBuckets() {
+        while (true) {
+            final long[] request;
+            synchronized (this) {
+                request = mRequest;
+                mRequest = null;
+                if (request == null) {
+                    mQuerying = false;
+                    return;
+                }
+            }
+            long start = Timings.start();
+            final List<DateBucket> buckets;
+            try {
+                buckets = mDbAdapter.getDateBuckets(mFilter, request[0],
+                        request[1], (int) request[2]);
+            } catch (Exception ex) {
+                Timings.stop(Timings.CHART_QUERY, start, true);
+                Log.e(TAG, "ChartActivity: error getting the buckets", ex);
+                continue;
+            }
+            Timings.stop(Timings.CHART_QUERY, start);
+            mHandler.post(() -> {
+                if (isFinishing() || isDestroyed()) return;
+                mChart.setBuckets(buckets, request[0], request[1],
+                        (int) request[2]);
+                showStatus(buckets);
+            });
+        }
+    }
+
+    /**
+     * Shows the number of entries in the visible range.
+     *
+     * @param buckets The buckets.
+     */
+    private void showStatus(List<DateBucket> buckets) {
+        long start = mChart.getStart();
+        long end = mChart.getEnd();
+        int rows = 0;
+        for (DateBucket bucket : buckets) {
+            if (bucket.lastDate >= start && bucket.firstDate < end) {
+                rows += bucket.rows;
+            }
+        }
+        mStatus.setText(getString(R.string.chart_status,
+                Utils.getFilterName(this, mFilter), rows));
+    }
+}
@@ -0,0 +1,315 @@
+package net.kenevans.heartnotes;
+
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.util.AttributeSet;
+import android.view.GestureDetector;
+import android.view.MotionEvent;
+import android.view.ScaleGestureDetector;
+import android.view.View;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Plots the count and the count / total ratio against the date from
+ * DateBuckets. Each bucket is drawn as a vertical line from its minimum to
+ * its maximum count, which keeps the spikes that averaging would hide, and
+ * the mean ratio is drawn as a line against the right axis, which goes
+ * from 0 to 1.
+ * <p/>
+ * Drag to pan, pinch to zoom, and double tap to show everything. The view
+ * does not query anything itself. It reports the visible range to its
+ * Listener, which supplies buckets for it later. Until they arrive, the
+ * old buckets are drawn at their dates in the new range, so panning and
+ * zooming never wait for the database.
+ */
+public class ChartView extends View {
+    /**
+     * The shortest range that can be shown in ms.
+     */
+    private static final long MIN_SPAN = 60 * 60 * 1000;
+
+    /**
+     * Told when the visible range changes.
+     */
+    public interface Listener {
+        /**
+         * @param start The start of the visible range in ms.
+         * @param end   The end of the visible range in ms.
+         * @param width The width of the plot in pixels.
+         */
+        void onRangeChanged(long start, long end, int width);
+    }
+
+    private final Paint mCountPaint = new Paint();
+    private final Paint mRatioPaint = new Paint();
+    private final Paint mAxisPaint = new Paint();
+    private final Paint mTextPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final SimpleDateFormat mDateFormat =
+            new SimpleDateFormat("MMM d, yyyy", Locale.US);
+    private final GestureDetector mGestureDetector;
+    private final ScaleGestureDetector mScaleDetector;
+
+    private Listener mListener;
+    /**
+     * The range of the data.
+     */
+    private long mDataStart, mDataEnd;
+    private boolean mHasData;
+    /**
+     * The visible range.
+     */
+    private long mStart, mEnd;
+
+    /**
+     * The buckets and the range and number of buckets they are for.
+     */
+    private List<DateBucket> mBuckets = new ArrayList<>();
+    private long mBucketStart, mBucketEnd;
+    private int mBucketCount;
+    private int mMaxCount = 1;
+    /**
+     * Reused for drawLines, which takes x0, y0, x1, y1 for each line.
+     */
+    private float[] mCountLines = new float[0];
+    private float[] mRatioLines = new float[0];
+
+    public ChartView(Context context) {
+        this(context, null);
+    }
+
+    public ChartView(Context context, AttributeSet attrs) {
+        super(context, attrs);
+        float density = getResources().getDisplayMetrics().density;
+        mCountPaint.setColor(Color.rgb(0xd0, 0x30, 0x30));
+        mCountPaint.setStrokeWidth(density);
+        mRatioPaint.setColor(Color.rgb(0x30, 0x60, 0xd0));
+        mRatioPaint.setStrokeWidth(1.5f * density);
+        mAxisPaint.setColor(Color.GRAY);
+        mTextPaint.setColor(Color.GRAY);
+        mTextPaint.setTextSize(12 * density);
+        mGestureDetector = new GestureDetector(context,
+                new GestureDetector.SimpleOnGestureListener() {
+                    @Override
+                    public boolean onDown(MotionEvent e) {
+                        return true;
+                    }
+
+                    @Override
+                    public boolean onScroll(MotionEvent e1, MotionEvent e2,
+                                            float distanceX,
+                                            float distanceY) {
+                        pan(distanceX);
+                        return true;
+                    }
+
+                    @Override
+                    public boolean onDoubleTap(MotionEvent e) {
+                        showAll();
+                        return true;
+                    }
+                });
+        mScaleDetector = new ScaleGestureDetector(context,
+                new ScaleGestureDetector.SimpleOnScaleGestureListener() {
+                    @Override
+                    public boolean onScale(ScaleGestureDetector detector) {
+                        zoom(detector.getScaleFactor(),
+                                detector.getFocusX());
+                        return true;
+                    }
+                });
+    }
+
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Sets the range of the data and shows all of it.
+     *
+     * @param start The first date in ms.
+     * @param end   The last date in ms.
+     */
+    public void setDataRange(long start, long end) {
+        // Pad so the first and last points are not on the edges
+        long pad = Math.max(MIN_SPAN, (end - start) / 50);
+        mDataStart = start - pad;
+        mDataEnd = end + pad;
+        mHasData = true;
+        showAll();
+    }
+
+    /**
+     * Sets the buckets to draw.
+     *
+     * @param buckets The buckets.
+     * @param start   The start of the range they are for.
+     * @param end     The end of the range they are for.
+     * @param count   The number of buckets the range was divided into.
+     */
+    public void setBuckets(List<DateBucket> buckets, long start, long end,
+                           int count) {
+        mBuckets = buckets;
+        mBucketStart = start;
+        mBucketEnd = end;
+        mBucketCount = count;
+        int maxCount = 1;
+        for (DateBucket bucket : buckets) {
+            maxCount = Math.max(maxCount, bucket.maxCount);
+        }
+        mMaxCount = maxCount;
+        if (mCountLines.length < 4 * buckets.size()) {
+            mCountLines = new float[4 * buckets.size()];
+            mRatioLines = new float[4 * buckets.size()];
+        }
+        invalidate();
+    }
+
+    public long getStart() {
+        return mStart;
+    }
+
+    public long getEnd() {
+        return mEnd;
+    }
+
+    /**
+     * Shows the whole range of the data.
+     */
+    public void showAll() {
+        if (!mHasData) return;
+        setRange(mDataStart, mDataEnd);
+    }
+
+    @Override
+    public boolean onTouchEvent(MotionEvent event) {
+        if (!mHasData) return false;
+        boolean handled = mScaleDetector.onTouchEvent(event);
+        if (!mScaleDetector.isInProgress()) {
+            handled |= mGestureDetector.onTouchEvent(event);
+        }
+        return handled || super.onTouchEvent(event);
+    }
+
+    @Override
+    protected void onSizeChanged(int w, int h, int oldw, int oldh) {
+        super.onSizeChanged(w, h, oldw, oldh);
+        if (mHasData) notifyRange();
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        super.onDraw(canvas);
+        int width = getWidth();
+        float textSize = mTextPaint.getTextSize();
+        float top = textSize * 1.5f;
+        float bottom = getHeight() - textSize * 1.5f;
+        float height = bottom - top;
+        canvas.drawLine(0, bottom, width, bottom, mAxisPaint);
+        if (!mHasData || mEnd <= mStart || mBucketCount <= 0) return;
+
+        double span = mEnd - mStart;
+        double bucketSpan = (double) (mBucketEnd - mBucketStart)
+                / mBucketCount;
+        int nCount = 0, nRatio = 0;
+        float lastX = 0, lastY = 0;
+        boolean haveLast = false;
+        for (DateBucket bucket : mBuckets) {
+            double date = mBucketStart + (bucket.index + .5) * bucketSpan;
+            float x = (float) ((date - mStart) / span * width);
+            if (x < -width || x > 2 * width) {
+                haveLast = false;
+                continue;
+            }
+            mCountLines[nCount++] = x;
+            mCountLines[nCount++] = bottom - height * bucket.minCount
+                    / mMaxCount;
+            mCountLines[nCount++] = x;
+            // At least one pixel so zero counts show
+            mCountLines[nCount++] = Math.min(bottom - 1,
+                    bottom - height * bucket.maxCount / mMaxCount);
+            if (Double.isNaN(bucket.meanRatio)) {
+                haveLast = false;
+                continue;
+            }
+            float y = (float) (bottom - height * Math.min(1,
+                    bucket.meanRatio));
+            if (haveLast) {
+                mRatioLines[nRatio++] = lastX;
+                mRatioLines[nRatio++] = lastY;
+                mRatioLines[nRatio++] = x;
+                mRatioLines[nRatio++] = y;
+            }
+            lastX = x;
+            lastY = y;
+            haveLast = true;
+        }
+        canvas.drawLines(mCountLines, 0, nCount, mCountPaint);
+        canvas.drawLines(mRatioLines, 0, nRatio, mRatioPaint);
+
+        // Labels
+        mTextPaint.setTextAlign(Paint.Align.LEFT);
+        canvas.drawText("count " + mMaxCount, 0, textSize, mTextPaint);
+        canvas.drawText(mDateFormat.format(new Date(mStart)), 0,
+                getHeight() - textSize * .3f, mTextPaint);
+        mTextPaint.setTextAlign(Paint.Align.RIGHT);
+        canvas.drawText("ratio 1.0", width, textSize, mTextPaint);
+        canvas.drawText(mDateFormat.format(new Date(mEnd)), width,
+                getHeight() - textSize * .3f, mTextPaint);
+    }
+
+    /**
+     * Moves the range by the given number of pixels.
+     *
+     * @param dx The distance in pixels, positive to move later.
+     */
+    private void pan(float dx) {
+        int width = getWidth();
+        if (width <= 0) return;
+        long span = mEnd - mStart;
+        long shift = (long) ((double) dx / width * span);
+        long start = mStart + shift;
+        // Stay within the data
+        start = Math.max(mDataStart, Math.min(start, mDataEnd - span));
+        setRange(start, start + span);
+    }
+
+    /**
+     * Zooms about the given x position.
+     *
+     * @param factor The scale factor, more than 1 to zoom in.
+     * @param focusX The x position that stays in place.
+     */
+    private void zoom(float factor, float focusX) {
+        int width = getWidth();
+        if (width <= 0 || factor <= 0) return;
+        double fraction = focusX / width;
+        long oldSpan = mEnd - mStart;
+        long focus = mStart + (long) (fraction * oldSpan);
+        long span = (long) (oldSpan / factor);
+        span = Math.max(MIN_SPAN, Math.min(span, mDataEnd - mDataStart));
+        long start = focus - (long) (fraction * span);
+        start = Math.max(mDataStart, Math.min(start, mDataEnd - span));
+        setRange(start, start + span);
+    }
+
+    private void setRange(long start, long end) {
+        if (start == mStart && end == mEnd) return;
+        mStart = start;
+        mEnd = end;
+        invalidate();
+        notifyRange();
+    }
+
+    private void notifyRange() {
+        if (mListener != null && getWidth() > 0) {
+            mListener.onRangeChanged(mStart, mEnd, getWidth());
+        }
+    }
+}
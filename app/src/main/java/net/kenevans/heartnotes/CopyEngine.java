@@ -0,0 +1,233 @@
+package net.kenevans.heartnotes;
+
+import android.os.Build;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.zip.CRC32;
+import java.util.zip.CRC32C;
+import java.util.zip.Checksum;
+
+/**
+ * Copies files in chunks, computing a checksum of the data as it is copied,
+ * and reads and writes manifests holding the size and checksum. Used for
+ * saving and replacing the database so corrupt backups can be detected
+ * before they replace good data.
+ * <p/>
+ * CRC32C is used where available (API 26) and CRC32 otherwise. The manifest
+ * records which one was used.
+ */
+public class CopyEngine {
+    /**
+     * Extension added to the name of a backup for its manifest.
+     */
+    public static final String MANIFEST_EXT = ".manifest";
+    public static final String ALGORITHM_CRC32C = "crc32c";
+    public static final String ALGORITHM_CRC32 = "crc32";
+    private static final int CHUNK_SIZE = 256 * 1024;
+    private static final String KEY_FILE = "file";
+    private static final String KEY_SIZE = "size";
+
+    /**
+     * The size and checksum of some data.
+     */
+    public static class Result {
+        public final String name;
+        public final long size;
+        public final String algorithm;
+        public final long checksum;
+
+        public Result(String name, long size, String algorithm,
+                      long checksum) {
+            this.name = name;
+            this.size = size;
+            this.algorithm = algorithm;
+            this.checksum = checksum;
+        }
+
+        /**
+         * Returns whether the size and checksum match those of another
+         * Result with the same algorithm.
+         *
+         * @param other The other Result.
+         * @return If they match.
+         */
+        public boolean matches(Result other) {
+            return other != null && size == other.size
+                    && algorithm.equals(other.algorithm)
+                    && checksum == other.checksum;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "size=%d %s=%08x", size,
+                    algorithm, checksum);
+        }
+    }
+
+    /**
+     * Gets the checksum algorithm to use for new copies.
+     *
+     * @return The algorithm name.
+     */
+    public static String getDefaultAlgorithm() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.O ?
+                ALGORITHM_CRC32C : ALGORITHM_CRC32;
+    }
+
+    /**
+     * Creates a Checksum for the given algorithm.
+     *
+     * @param algorithm The algorithm name.
+     * @return The Checksum.
+     * @throws IOException If the algorithm is not available.
+     */
+    private static Checksum createChecksum(String algorithm)
+            throws IOException {
+        if (ALGORITHM_CRC32C.equals(algorithm)) {
+            if (Build.VERSION.SDK_INT < Build.VERSION_CODES.O) {
+                throw new IOException("CRC32C is not available on this " +
+                        "device");
+            }
+            return new CRC32C();
+        } else if (ALGORITHM_CRC32.equals(algorithm)) {
+            return new CRC32();
+        }
+        throw new IOException("Unknown checksum algorithm: " + algorithm);
+    }
+
+    /**
+     * Copies all of one channel to another, starting at the current
+     * positions, looping until everything is copied and computing the
+     * checksum as it goes. Forces the output to the device at the end when
+     * possible.
+     *
+     * @param name      The name to put in the Result.
+     * @param in        The input channel.
+     * @param out       The output channel.
+     * @param algorithm The checksum algorithm.
+     * @param progress  The Progress or null. If cancelled, returns null.
+     * @return The Result or null if cancelled.
+     * @throws IOException On failure.
+     */
+    public static Result copy(String name, FileChannel in, FileChannel out,
+                              String algorithm, Progress progress)
+            throws IOException {
+        Checksum checksum = createChecksum(algorithm);
+        ByteBuffer buffer = ByteBuffer.allocate(CHUNK_SIZE);
+        // Some document providers give pipes, which have no size
+        long size = in.size();
+        if (size <= 0) size = -1;
+        long copied = 0;
+        int n;
+        while ((n = in.read(buffer)) >= 0) {
+            if (progress != null && progress.isCancelled()) {
+                return null;
+            }
+            if (n == 0) continue;
+            buffer.flip();
+            checksum.update(buffer.array(), 0, buffer.limit());
+            // write may not write everything at once
+            while (buffer.hasRemaining()) {
+                out.write(buffer);
+            }
+            buffer.clear();
+            copied += n;
+            if (progress != null) {
+                progress.update(copied, size);
+            }
+        }
+        if (size >= 0 && copied != size) {
+            throw new IOException("Copied " + copied + " bytes but expected "
+                    + size);
+        }
+        try {
+            out.force(true);
+        } catch (IOException ex) {
+            // Pipes cannot be synced
+        }
+        return new Result(name, copied, algorithm, checksum.getValue());
+    }
+
+    /**
+     * Writes a manifest for a Result.
+     *
+     * @param result The Result.
+     * @param out    The OutputStream. Is not closed.
+     * @throws IOException On failure.
+     */
+    public static void writeManifest(Result result, OutputStream out)
+            throws IOException {
+        String manifest = KEY_FILE + "=" + result.name + "\n"
+                + KEY_SIZE + "=" + result.size + "\n"
+                + result.algorithm + "=" + String.format(Locale.US, "%08x",
+                result.checksum) + "\n";
+        out.write(manifest.getBytes(StandardCharsets.UTF_8));
+        out.flush();
+    }
+
+    /**
+     * Reads a manifest written by writeManifest.
+     *
+     * @param in The InputStream. Is not closed.
+     * @return The Result.
+     * @throws IOException If it cannot be read or is invalid.
+     */
+    public static Result readManifest(InputStream in) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in,
+                StandardCharsets.UTF_8));
+        String name = null, algorithm = null;
+        long size = -1, checksum = -1;
+        String line;
+        while ((line = reader.readLine()) != null) {
+            int eq = line.indexOf('=');
+            if (eq < 0) continue;
+            String key = line.substring(0, eq).trim();
+            String value = line.substring(eq + 1).trim();
+            try {
+                if (KEY_FILE.equals(key)) {
+                    name = value;
+                } else if (KEY_SIZE.equals(key)) {
+                    size = Long.parseLong(value);
+                } else if (ALGORITHM_CRC32C.equals(key)
+                        || ALGORITHM_CRC32.equals(key)) {
+                    algorithm = key;
+                    checksum = Long.parseLong(value, 16);
+                }
+            } catch (NumberFormatException ex) {
+                throw new IOException("Invalid manifest line: " + line);
+            }
+        }
+        if (size < 0 || algorithm == null) {
+            throw new IOException("Incomplete manifest");
+        }
+        return new Result(name, size, algorithm, checksum);
+    }
+
+    /**
+     * Checks that a file starts with the SQLite header.
+     *
+     * @param in The channel, read from position 0.
+     * @return If it has the header.
+     * @throws IOException On failure.
+     */
+    public static boolean isSQLiteFile(FileChannel in) throws IOException {
+        byte[] expected = "SQLite format 3\u0000".getBytes(
+                StandardCharsets.US_ASCII);
+        ByteBuffer header = ByteBuffer.allocate(expected.length);
+        while (header.hasRemaining()) {
+            if (in.read(header, header.position()) < 0) return false;
+        }
+        for (int i = 0; i < expected.length; i++) {
+            if (header.get(i) != expected[i]) return false;
+        }
+        return true;
+    }
+}
@@ -1,32 +1,47 @@
 package net.kenevans.heartnotes;
 
+/**
+ * A row of the data table. Immutable.
+ */
 public class Data implements IConstants {
-    private String id;
-    private String comment;
-    private long dateNum = -1;
-    private int count;
-    private int total;
+    private final long id;
+    private final long dateNum;
+    private final long dateMod;
+    private final int count;
+    private final int total;
+    private final boolean edited;
+    private final String comment;
+    private final long deleted;
 
-    public Data(String id, String comment, long dateNum, int count, int total) {
+    public Data(long id, long dateNum, long dateMod, int count, int total,
+                boolean edited, String comment) {
+        this(id, dateNum, dateMod, count, total, edited, comment, 0);
+    }
+
+    public Data(long id, long dateNum, long dateMod, int count, int total,
+                boolean edited, String comment, long deleted) {
         this.id = id;
-        this.comment = comment;
         this.dateNum = dateNum;
+        this.dateMod = dateMod;
         this.count = count;
         this.total = total;
+        this.edited = edited;
+        this.comment = comment;
+        this.deleted = deleted;
     }
 
-    public String getId() {
+    public long getId() {
         return id;
     }
 
-    public String getComment() {
-        return comment;
-    }
-
     public long getDateNum() {
         return dateNum;
     }
 
+    public long getDateMod() {
+        return dateMod;
+    }
+
     public int getCount() {
         return count;
     }
@@ -34,4 +49,23 @@ public class Data implements IConstants {
     public int getTotal() {
         return total;
     }
+
+    public boolean isEdited() {
+        return edited;
+    }
+
+    public String getComment() {
+        return comment;
+    }
+
+    /**
+     * @return When the row was deleted in ms or 0 if it is not deleted.
+     */
+    public long getDeleted() {
+        return deleted;
+    }
+
+    public boolean isDeleted() {
+        return deleted != 0;
+    }
 }
@@ -1,12 +1,9 @@
 package net.kenevans.heartnotes;
 
 import android.Manifest;
-import android.app.Activity;
 import android.app.AlertDialog;
 import android.content.SharedPreferences;
 import android.content.pm.PackageManager;
-import android.database.Cursor;
-import android.os.AsyncTask;
 import android.os.Bundle;
 import android.text.method.ScrollingMovementMethod;
 import android.util.Log;
@@ -16,7 +13,6 @@ import android.view.MenuItem;
 import android.widget.Button;
 import android.widget.EditText;
 
-import java.lang.ref.WeakReference;
 import java.text.ParseException;
 import java.util.Date;
 
@@ -29,14 +25,28 @@ import androidx.core.app.ActivityCompat;
  */
 public class DataEditActivity extends AppCompatActivity implements IConstants {
 
-    private HeartNotesDbAdapter mDbAdapter;
+    /**
+     * Key for the SaveQueue.Ticket in the saved instance state.
+     */
+    private static final String TICKET_KEY = "ticketKey";
+    /**
+     * Key for whether the fields had been populated in the saved instance
+     * state.
+     */
+    private static final String POPULATED_KEY = "populated";
+
+    private SaveQueue.Ticket mTicket;
+    /**
+     * Whether the fields have been set from the entry, or to the defaults
+     * for a new one. Until then they must not be saved.
+     */
+    private boolean mPopulated;
     private EditText mCountText;
     private EditText mTotalText;
     private EditText mDateText;
     private EditText mDateModText;
     private EditText mEditedText;
     private EditText mCommentText;
-    private Long mRowId;
 
     /**
      * Possible values for the edit state.
@@ -53,9 +63,18 @@ public class DataEditActivity extends AppCompatActivity implements IConstants {
     private State state = State.CANCELLED;
 
     /**
-     * Task for getting the temperature from the web
+     * Callback for getting the weather from the web.
      */
-    private static GetWeatherTask updateTask;
+    private final WeatherFetcher.Callback mWeatherCallback = weather -> {
+        Log.d(TAG, this.getClass().getSimpleName()
+                + ": onWeather: weather=" + weather);
+        if (weather == null) {
+            Utils.errMsg(this, "Failed to get weather");
+            mCommentText.append("Weather NA.");
+            return;
+        }
+        mCommentText.append(weather);
+    };
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -89,28 +108,41 @@ public class DataEditActivity extends AppCompatActivity implements IConstants {
                 MODE_PRIVATE);
         String openWeatherKey = prefs.getString(PREF_OPENWEATHER_KEY, null);
         boolean autoWeather = prefs.getBoolean(PREF_AUTO_WEATHER, false);
-        // Don't insert weather automatically if there is no key
-        if (openWeatherKey == null || openWeatherKey.trim().isEmpty()) {
+        boolean stubWeather = prefs.getBoolean(PREF_STUB_WEATHER, false);
+        // Don't insert weather automatically if there is no key, unless
+        // using the stub, which doesn't need one
+        if (!stubWeather && (openWeatherKey == null
+                || openWeatherKey.trim().isEmpty())) {
             autoWeather = false;
         }
         if (autoWeather) {
             insertWeather();
         }
 
-        mRowId = (savedInstanceState == null) ? null
-                : (Long) savedInstanceState.getSerializable(COL_ID);
-        if (mRowId == null) {
-            Bundle extras = getIntent().getExtras();
-            mRowId = extras != null ? extras.getLong(COL_ID) : null;
-            // -1 indicates a new entry which is implemented as mRowId=null
-            if (mRowId != null && mRowId == -1L) {
-                mRowId = null;
+        // Use the same Ticket if recreated, so a new entry is not created
+        // twice
+        if (savedInstanceState != null) {
+            mTicket = SaveQueue.getTicket(
+                    savedInstanceState.getLong(TICKET_KEY, -1));
+        }
+        Long rowId;
+        if (mTicket != null) {
+            rowId = mTicket.getRowId();
+        } else {
+            rowId = (savedInstanceState == null) ? null
+                    : (Long) savedInstanceState.getSerializable(COL_ID);
+            if (rowId == null) {
+                Bundle extras = getIntent().getExtras();
+                rowId = extras != null ? extras.getLong(COL_ID) : null;
+                // -1 indicates a new entry which is implemented as
+                // rowId=null
+                if (rowId != null && rowId == -1L) {
+                    rowId = null;
+                }
             }
+            mTicket = SaveQueue.newTicket(rowId);
         }
 
-        mDbAdapter = new HeartNotesDbAdapter(this);
-        mDbAdapter.open();
-
         // Save
         Button button = findViewById(R.id.save);
         button.setOnClickListener(view -> {
@@ -142,7 +174,6 @@ public class DataEditActivity extends AppCompatActivity implements IConstants {
                     .setNegativeButton(R.string.continue_editing_label,
                             null).show();
         });
-        populateFields();
 
         // Delete
         button = findViewById(R.id.delete);
@@ -165,7 +196,15 @@ public class DataEditActivity extends AppCompatActivity implements IConstants {
                     .setNegativeButton(R.string.continue_editing_label,
                             null).show();
         });
-        populateFields();
+
+        // If recreated after the fields were set, they have been restored
+        // from the state. Otherwise, for example if recreated while the
+        // entry was loading, load it again.
+        mPopulated = savedInstanceState != null
+                && savedInstanceState.getBoolean(POPULATED_KEY, false);
+        if (!mPopulated) {
+            populateFields(rowId);
+        }
     }
 
     // This was used in the notes example. It only applies to kill, not
@@ -174,7 +213,9 @@ public class DataEditActivity extends AppCompatActivity implements IConstants {
     protected void onSaveInstanceState(@NonNull Bundle outState) {
         super.onSaveInstanceState(outState);
         saveState();
-        outState.putSerializable(COL_ID, mRowId);
+        outState.putSerializable(COL_ID, mTicket.getRowId());
+        outState.putLong(TICKET_KEY, mTicket.getKey());
+        outState.putBoolean(POPULATED_KEY, mPopulated);
     }
 
     @Override
@@ -192,6 +233,17 @@ public class DataEditActivity extends AppCompatActivity implements IConstants {
         super.onResume();
     }
 
+    @Override
+    protected void onDestroy() {
+        Log.v(TAG, this.getClass().getSimpleName() + "onDestroy");
+        super.onDestroy();
+        // Don't leave a fetch running for a screen that is gone
+        WeatherFetcher.cancel(mWeatherCallback);
+        if (isFinishing()) {
+            SaveQueue.release(mTicket);
+        }
+    }
+
     @Override
     public boolean onCreateOptionsMenu(Menu menu) {
         MenuInflater inflater = getMenuInflater();
@@ -232,19 +284,13 @@ public class DataEditActivity extends AppCompatActivity implements IConstants {
     }
 
     /**
-     * Starts a GetWeatherTask.
+     * Starts getting the weather with the WeatherFetcher.
      *
-     * @see GetWeatherTask
+     * @see WeatherFetcher
      */
     private void insertWeather() {
         Log.d(TAG, this.getClass().getSimpleName()
-                + ": updateTask=" + updateTask);
-        if (updateTask != null) {
-            // Don't do anything if we are updating
-            Log.d(TAG, this.getClass().getSimpleName()
-                    + ": insertWeather: updateTask is not null");
-            return;
-        }
+                + ": insertWeather: fetching=" + WeatherFetcher.isFetching());
         if (ActivityCompat.checkSelfPermission(this,
                 Manifest.permission.ACCESS_FINE_LOCATION) !=
                 PackageManager.PERMISSION_GRANTED &&
@@ -255,29 +301,44 @@ public class DataEditActivity extends AppCompatActivity implements IConstants {
             Utils.errMsg(this, "Insert Weather requires Location permission");
             return;
         }
-        Log.d(TAG, "Location granted: start WeatherTask");
-        updateTask = new GetWeatherTask(this);
-        updateTask.execute();
+        Log.d(TAG, "Location granted: fetch weather");
+        WeatherFetcher.fetch(this, mWeatherCallback);
     }
 
     /**
      * Updates the database, depending on the state. If the state is
      * CANCELLED, it does nothing. It it is DELETE, the record is deleted.
-     * Otherwise it creates or updates the record as appropriate.
+     * Otherwise it creates or updates the record as appropriate. The write
+     * is queued on the SaveQueue, so this does not wait for it.
      */
     private void saveState() {
+        long start = Timings.start();
+        try {
+            doSaveState();
+        } finally {
+            Timings.stop(Timings.SAVE_STATE, start);
+        }
+    }
+
+    /**
+     * Does the work for saveState.
+     */
+    private void doSaveState() {
         // DEBUG
-        Log.v(TAG, this.getClass().getSimpleName() + "saveState called mRowId="
-                + mRowId + " state=" + state);
+        Log.v(TAG, this.getClass().getSimpleName() + "saveState called rowId="
+                + mTicket.getRowId() + " state=" + state);
         // Do nothing if cancelled
         if (state == State.CANCELLED) {
             return;
         }
+        // Never write fields that were not set from the entry
+        if (state == State.SAVED && !mPopulated) {
+            Log.e(TAG, "saveState: not saving, the entry was not loaded");
+            return;
+        }
         // Delete if deleted and there is a row ID
         if (state == State.DELETED) {
-            if (mRowId != null) {
-                mDbAdapter.deleteData(mRowId);
-            }
+            SaveQueue.delete(this, mTicket);
             return;
         }
         // Remaining state is saved, get the entries
@@ -294,7 +355,7 @@ public class DataEditActivity extends AppCompatActivity implements IConstants {
             string = mDateText.getText().toString();
             Date testDate;
             try {
-                testDate = longFormatter.parse(string);
+                testDate = HeartNotesFormat.parseDate(string);
             } catch (ParseException ex) {
                 Utils.excMsg(this, "Cannot parse the date", ex);
                 return;
@@ -310,38 +371,29 @@ public class DataEditActivity extends AppCompatActivity implements IConstants {
         }
         // Save the values
         dateMod = new Date().getTime();
-        if (mRowId == null) {
-            // Is new
-            long id = mDbAdapter.createData(date, dateMod, count, total, false,
-                    comment);
-            if (id > 0) {
-                mRowId = id;
-            }
-        } else {
-            // Is edited
-            mDbAdapter.updateData(mRowId, date, dateMod, count, total, true,
-                    comment);
-        }
+        SaveQueue.save(this, mTicket, date, dateMod, count, total, comment);
     }
 
     /**
-     * Initializes the edit fields.
+     * Initializes the edit fields. An existing entry is loaded in the
+     * background, and the buttons are disabled until it arrives.
+     *
+     * @param rowId The id or null for a new entry.
      */
-    private void populateFields() {
-        if (mRowId != null) {
-            Cursor cursor = mDbAdapter.fetchData(mRowId);
-            mCountText.setText(cursor.getString(cursor
-                    .getColumnIndexOrThrow(COL_COUNT)));
-            mTotalText.setText(cursor.getString(cursor
-                    .getColumnIndexOrThrow(COL_TOTAL)));
-            long time = cursor.getLong(cursor.getColumnIndexOrThrow(COL_DATE));
-            mDateText.setText(HeartNotesActivity.formatDate(time));
-            time = cursor.getLong(cursor.getColumnIndexOrThrow(COL_DATEMOD));
-            mDateModText.setText(HeartNotesActivity.formatDate(time));
-            long val = cursor.getLong(cursor.getColumnIndexOrThrow(COL_EDITED));
-            mEditedText.setText(val == 0 ? "false" : "true");
-            mCommentText.setText(cursor.getString(cursor
-                    .getColumnIndexOrThrow(COL_COMMENT)));
+    private void populateFields(final Long rowId) {
+        if (rowId != null) {
+            setButtonsEnabled(false);
+            SaveQueue.load(this, rowId, data -> {
+                if (isFinishing() || isDestroyed()) return;
+                if (data == null) {
+                    Utils.errMsg(this, "Cannot find the entry with id "
+                            + rowId);
+                    return;
+                }
+                setFields(data);
+                mPopulated = true;
+                setButtonsEnabled(true);
+            });
         } else {
             // A new data, set defaults
             mCountText.setText(R.string.default_count);
@@ -351,55 +403,27 @@ public class DataEditActivity extends AppCompatActivity implements IConstants {
             mDateText.setText(HeartNotesActivity.formatDate(now.getTime()));
             mDateModText
                     .setText(HeartNotesActivity.formatDate(now.getTime()));
+            mPopulated = true;
         }
     }
 
     /**
-     * An AsyncTask to get the weather from the web.
+     * Sets the edit fields from the given entry.
+     *
+     * @param data The entry.
      */
-    private static class GetWeatherTask extends AsyncTask<Void, Void, Boolean> {
-        private String weatherString;
-        private final WeakReference<Activity> activityRef;
-
-        public GetWeatherTask(DataEditActivity activity) {
-            super();
-            activityRef = new WeakReference<>(activity);
-        }
-
-        @Override
-        protected Boolean doInBackground(Void... dummy) {
-            // DEBUG TIME
-            // Log.d(TAG, this.getClass().getSimpleName()
-            // + ": doInBackground: delta=" + getDeltaTime());
-
-            // Up the priority
-            Thread.currentThread().setPriority(Thread.MAX_PRIORITY);
-            weatherString =
-                    LocationUtils.getOpenWeather(activityRef);
-            return true;
-        }
+    private void setFields(Data data) {
+        mCountText.setText(String.valueOf(data.getCount()));
+        mTotalText.setText(String.valueOf(data.getTotal()));
+        mDateText.setText(HeartNotesActivity.formatDate(data.getDateNum()));
+        mDateModText.setText(HeartNotesActivity.formatDate(
+                data.getDateMod()));
+        mEditedText.setText(data.isEdited() ? "true" : "false");
+        mCommentText.setText(data.getComment());
+    }
 
-        @Override
-        protected void onPostExecute(Boolean result) {
-            Log.d(TAG, this.getClass().getSimpleName()
-                    + ": onPostExecute: result=" + result);
-            // // Should not be called if it is cancelled
-            // if (isCancelled()) {
-            // updateTask = null;
-            // Log.d(TAG, this.getClass().getSimpleName()
-            updateTask = null;
-            DataEditActivity activity = (DataEditActivity) activityRef.get();
-
-            if (weatherString == null) {
-                Utils.errMsg(activity, "Failed to get weather");
-                if (activity != null) {
-                    activity.mCommentText.append("Weather NA.");
-                }
-                return;
-            }
-            if (activity != null) {
-                activity.mCommentText.append(weatherString);
-            }
-        }
+    private void setButtonsEnabled(boolean enabled) {
+        findViewById(R.id.save).setEnabled(enabled);
+        findViewById(R.id.delete).setEnabled(enabled);
     }
 }
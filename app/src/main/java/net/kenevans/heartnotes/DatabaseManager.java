@@ -0,0 +1,98 @@
+package net.kenevans.heartnotes;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.util.Locale;
+
+/**
+ * Manages the one connection to the app's database for the whole process.
+ * Components acquire the shared HeartNotesDbAdapter and release it when
+ * done instead of opening and closing their own. The database is opened on
+ * the first acquire and closed when the last reference is released, so
+ * opening a second screen over the first costs nothing.
+ * <p/>
+ * Do not call close on the adapter from here, call release.
+ */
+public class DatabaseManager implements IConstants {
+    private static HeartNotesDbAdapter sAdapter;
+    private static int sRefCount;
+    /**
+     * The number of times the database has been opened.
+     */
+    private static int sOpenCount;
+    /**
+     * The number of acquires since the process started.
+     */
+    private static long sAcquireCount;
+    /**
+     * How long the last open took in us.
+     */
+    private static long sLastOpenTime = -1;
+
+    /**
+     * Gets the shared adapter, opening the database if necessary. Every
+     * acquire must be matched by a release.
+     *
+     * @param context The context.
+     * @return The adapter.
+     */
+    public static synchronized HeartNotesDbAdapter acquire(Context context) {
+        if (sAdapter == null) {
+            long start = Timings.start();
+            HeartNotesDbAdapter adapter = new HeartNotesDbAdapter(
+                    context.getApplicationContext());
+            adapter.open();
+            sLastOpenTime = (System.nanoTime() - start) / 1000;
+            Timings.get(Timings.OPEN_DATABASE).record(sLastOpenTime, false);
+            sOpenCount++;
+            sAdapter = adapter;
+            Log.d(TAG, "DatabaseManager: opened in " + sLastOpenTime + " us");
+        }
+        sRefCount++;
+        sAcquireCount++;
+        return sAdapter;
+    }
+
+    /**
+     * Releases an adapter from acquire, closing the database if this was
+     * the last reference.
+     *
+     * @param adapter The adapter.
+     */
+    public static synchronized void release(HeartNotesDbAdapter adapter) {
+        if (adapter == null || adapter != sAdapter || sRefCount <= 0) {
+            Log.w(TAG, "DatabaseManager: release of an adapter that is not"
+                    + " held");
+            return;
+        }
+        if (--sRefCount == 0) {
+            sAdapter.close();
+            sAdapter = null;
+            Log.d(TAG, "DatabaseManager: closed");
+        }
+    }
+
+    /**
+     * Gets the number of references currently held.
+     *
+     * @return The count.
+     */
+    public static synchronized int getRefCount() {
+        return sRefCount;
+    }
+
+    /**
+     * Gets a report of the connection state and history.
+     *
+     * @return The report.
+     */
+    public static synchronized String getReport() {
+        return String.format(Locale.US, "Database connection\n"
+                        + "%s, references=%d\n"
+                        + "opens=%d acquires=%d last open=%s\n",
+                sAdapter != null ? "Open" : "Closed", sRefCount, sOpenCount,
+                sAcquireCount, sLastOpenTime < 0 ? "none"
+                        : sLastOpenTime + " us");
+    }
+}
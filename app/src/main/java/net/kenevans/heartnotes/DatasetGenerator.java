@@ -0,0 +1,171 @@
+package net.kenevans.heartnotes;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Generates synthetic data for load testing. The same Config always gives
+ * the same rows, which can be written as a text backup in the Save as Text
+ * format or, with HeartNotesDbAdapter.writeDatabase, as a database with the
+ * real schema. Apart from that it has no Android dependencies, so the
+ * benchmarks can use it on a desktop JVM.
+ * <p/>
+ * The rows are spread over the date span in ascending order with random
+ * spacing. The total is uniform between 1 and maxTotal. The count is 0 with
+ * probability zeroCountRatio, equal to the total with probability
+ * fullCountRatio, and otherwise uniform between 1 and the total. Comments
+ * are made from a word list with an exponentially distributed length, and a
+ * weather string like the one from OpenWeatherMap is appended with
+ * probability weatherRatio.
+ */
+public class DatasetGenerator implements IConstants {
+    private static final String[] WORDS = {"felt", "fine", "tired",
+            "after", "walk", "dinner", "coffee", "skipped", "beats", "while",
+            "resting", "stairs", "slept", "well", "poorly", "dizzy", "short",
+            "run", "morning", "evening", "medication", "taken", "late",
+            "stress", "work", "no", "symptoms", "some", "palpitations",
+            "normal", "day"};
+    private static final long DAY = 24L * 60 * 60 * 1000;
+
+    /**
+     * The configuration. The defaults give a year of a few entries a day.
+     */
+    public static class Config {
+        public long seed = 1;
+        public int rows = 1000;
+        /**
+         * The time of the last row.
+         */
+        public long end = 1704067200000L; // 2024-01-01 UTC
+        public int spanDays = 365;
+        public int maxTotal = 10;
+        public double zeroCountRatio = .5;
+        public double fullCountRatio = .1;
+        /**
+         * Mean number of characters in the comment, excluding the weather.
+         */
+        public int meanCommentLength = 40;
+        public double weatherRatio = .3;
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "seed=%d rows=%d spanDays=%d "
+                            + "maxTotal=%d zero=%.2f full=%.2f comment=%d "
+                            + "weather=%.2f", seed, rows, spanDays, maxTotal,
+                    zeroCountRatio, fullCountRatio, meanCommentLength,
+                    weatherRatio);
+        }
+    }
+
+    /**
+     * Receives the generated rows.
+     */
+    public interface RowVisitor {
+        void visit(long date, long count, long total, String comment)
+                throws IOException;
+    }
+
+    private final Config mConfig;
+
+    public DatasetGenerator(Config config) {
+        mConfig = config;
+    }
+
+    public Config getConfig() {
+        return mConfig;
+    }
+
+    /**
+     * Generates the rows in ascending date order. Returns early if cancelled.
+     *
+     * @param visitor  The RowVisitor.
+     * @param progress The Progress or null.
+     * @throws IOException If the visitor throws it.
+     */
+    public void generate(RowVisitor visitor, Progress progress)
+            throws IOException {
+        Random random = new Random(mConfig.seed);
+        int rows = Math.max(0, mConfig.rows);
+        long span = Math.max(0, mConfig.spanDays) * DAY;
+        long start = mConfig.end - span;
+        // Mean spacing, each step is random in [0, 2 * mean]
+        double step = rows > 1 ? (double) span / (rows - 1) : 0;
+        double date = start;
+        StringBuilder comment = new StringBuilder();
+        for (int i = 0; i < rows; i++) {
+            if (progress != null && progress.isCancelled()) return;
+            long total = 1 + random.nextInt(Math.max(1, mConfig.maxTotal));
+            long count;
+            double r = random.nextDouble();
+            if (r < mConfig.zeroCountRatio) {
+                count = 0;
+            } else if (r < mConfig.zeroCountRatio + mConfig.fullCountRatio) {
+                count = total;
+            } else {
+                count = 1 + random.nextInt((int) total);
+            }
+            makeComment(random, (long) date, comment);
+            visitor.visit(Math.min((long) date, mConfig.end), count, total,
+                    comment.toString());
+            if (progress != null) {
+                progress.update(i + 1, rows);
+            }
+            date += 2 * step * random.nextDouble();
+        }
+    }
+
+    /**
+     * Writes the rows in the Save as Text format.
+     *
+     * @param out      The Writer. Is not closed.
+     * @param progress The Progress or null.
+     * @throws IOException On failure.
+     */
+    public void writeText(final Writer out, Progress progress)
+            throws IOException {
+        generate((date, count, total, comment) ->
+                out.write(HeartNotesFormat.formatLine(count, total,
+                        HeartNotesFormat.formatDate(date), comment)),
+                progress);
+    }
+
+    /**
+     * Makes a comment in the given StringBuilder.
+     *
+     * @param random  The Random.
+     * @param date    The date of the row, used for the weather.
+     * @param comment The StringBuilder, which is cleared first.
+     */
+    private void makeComment(Random random, long date,
+                             StringBuilder comment) {
+        comment.setLength(0);
+        if (mConfig.meanCommentLength > 0) {
+            long length = Math.round(-mConfig.meanCommentLength
+                    * Math.log(1 - random.nextDouble()));
+            while (comment.length() < length) {
+                if (comment.length() > 0) comment.append(' ');
+                comment.append(WORDS[random.nextInt(WORDS.length)]);
+            }
+            if (comment.length() > 0) {
+                // Occasionally span lines like a real edited comment
+                comment.append(random.nextInt(10) == 0 ? ".\n" : ". ");
+            }
+        }
+        if (random.nextDouble() < mConfig.weatherRatio) {
+            int temp = 20 + random.nextInt(70);
+            comment.append(String.format(Locale.US, "temp=%d°F (feels like "
+                            + "%d°F) humidity=%d%% on %s.", temp,
+                    temp - 5 + random.nextInt(10), 20 + random.nextInt(80),
+                    new Date(date)));
+        }
+        // Trim trailing spaces and newlines
+        int len = comment.length();
+        while (len > 0 && Character.isWhitespace(comment.charAt(len - 1))) {
+            len--;
+        }
+        comment.setLength(len);
+    }
+}
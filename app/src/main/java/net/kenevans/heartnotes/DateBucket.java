@@ -0,0 +1,37 @@
+package net.kenevans.heartnotes;
+
+/**
+ * The statistics of the rows in one bucket of a date range, as returned by
+ * HeartNotesDbAdapter.getDateBuckets. The ratio is count / total, and the
+ * ratio values are NaN if no row in the bucket has a total. Immutable.
+ */
+public class DateBucket {
+    /**
+     * The index of the bucket in the range.
+     */
+    public final int index;
+    public final int rows;
+    public final long firstDate;
+    public final long lastDate;
+    public final int minCount;
+    public final int maxCount;
+    public final double meanCount;
+    public final double minRatio;
+    public final double maxRatio;
+    public final double meanRatio;
+
+    public DateBucket(int index, int rows, long firstDate, long lastDate,
+                      int minCount, int maxCount, double meanCount,
+                      double minRatio, double maxRatio, double meanRatio) {
+        this.index = index;
+        this.rows = rows;
+        this.firstDate = firstDate;
+        this.lastDate = lastDate;
+        this.minCount = minCount;
+        this.maxCount = maxCount;
+        this.meanCount = meanCount;
+        this.minRatio = minRatio;
+        this.maxRatio = maxRatio;
+        this.meanRatio = meanRatio;
+    }
+}
@@ -0,0 +1,28 @@
+package net.kenevans.heartnotes;
+
+/**
+ * A section of the grouped list, that is, the rows that pass the filter
+ * and have the same key for a Grouping, as returned by
+ * HeartNotesDbAdapter.getSections. Immutable.
+ */
+public class DateSection {
+    /**
+     * The key, for example 2024-03 for a month.
+     */
+    public final String key;
+    public final int rows;
+    public final long sumCount;
+    public final long sumTotal;
+    public final long firstDate;
+    public final long lastDate;
+
+    public DateSection(String key, int rows, long sumCount, long sumTotal,
+                       long firstDate, long lastDate) {
+        this.key = key;
+        this.rows = rows;
+        this.sumCount = sumCount;
+        this.sumTotal = sumTotal;
+        this.firstDate = firstDate;
+        this.lastDate = lastDate;
+    }
+}
@@ -0,0 +1,135 @@
+package net.kenevans.heartnotes;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.net.Uri;
+import android.os.Bundle;
+import android.util.Log;
+import android.view.Menu;
+import android.view.MenuInflater;
+import android.view.MenuItem;
+import android.widget.TextView;
+import android.widget.Toast;
+
+import androidx.appcompat.app.AppCompatActivity;
+
+/**
+ * Shows the Timings and MainThreadIo reports and allows exporting them to
+ * the data directory.
+ */
+public class DiagnosticsActivity extends AppCompatActivity implements
+        IConstants {
+    /**
+     * Template for the name of the exported report.
+     */
+    public static final String DIAGNOSTICS_FILE_TEMPLATE =
+            "HeartNotesDiagnostics.%s.txt";
+
+    private TextView mText;
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.diagnostics);
+        mText = findViewById(R.id.diagnostics_text);
+    }
+
+    @Override
+    protected void onResume() {
+        super.onResume();
+        refresh();
+    }
+
+    @Override
+    public boolean onCreateOptionsMenu(Menu menu) {
+        MenuInflater inflater = getMenuInflater();
+        inflater.inflate(R.menu.diagnosticsmenu, menu);
+        menu.findItem(R.id.diagnostics_main_thread_io).setChecked(
+                MainThreadIo.isEnabled());
+        return true;
+    }
+
+    @Override
+    public boolean onOptionsItemSelected(MenuItem item) {
+        int id = item.getItemId();
+        if (id == R.id.diagnostics_refresh) {
+            refresh();
+            return true;
+        } else if (id == R.id.diagnostics_clear) {
+            Timings.clear();
+            MainThreadIo.clear();
+            refresh();
+            return true;
+        } else if (id == R.id.diagnostics_main_thread_io) {
+            MainThreadIo.setEnabled(!item.isChecked());
+            item.setChecked(MainThreadIo.isEnabled());
+            refresh();
+            return true;
+        } else if (id == R.id.diagnostics_export) {
+            export();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Gets the full report.
+     *
+     * @return The report.
+     */
+    private String getReport() {
+        return Timings.getReport() + "\nWeather providers\n"
+                + WeatherProviders.getLatencyInfo() + "\n"
+                + MainThreadIo.getReport() + "\n"
+                + DatabaseManager.getReport() + "\n"
+                + SaveQueue.getReport();
+    }
+
+    private void refresh() {
+        mText.setText(getReport());
+    }
+
+    /**
+     * Writes the report to a file in the data directory in the background.
+     */
+    private void export() {
+        SharedPreferences prefs = getSharedPreferences(MAIN_ACTIVITY,
+                MODE_PRIVATE);
+        String treeUriStr = prefs.getString(PREF_TREE_URI, null);
+        if (treeUriStr == null) {
+            Utils.errMsg(this, "There is no data directory set");
+            return;
+        }
+        final Uri treeUri = Uri.parse(treeUriStr);
+        final String report = getReport();
+        final Context appContext = getApplicationContext();
+        JobRunner.submit("Export diagnostics", progress -> {
+            Uri docUri = BackupWriter.writeText(appContext, treeUri,
+                    BackupWriter.makeFileName(DIAGNOSTICS_FILE_TEMPLATE),
+                    (out, prog) -> out.write(report), progress);
+            return "Wrote " + docUri.getLastPathSegment();
+        }, new JobRunner.Listener() {
+            @Override
+            public void onProgress(long done, long total) {
+                // Do nothing
+            }
+
+            @Override
+            public void onComplete(String message) {
+                Toast.makeText(appContext, message, Toast.LENGTH_LONG).show();
+            }
+
+            @Override
+            public void onFailure(Exception ex) {
+                Log.e(TAG, "Error exporting diagnostics", ex);
+                Toast.makeText(appContext, "Error exporting diagnostics: "
+                        + ex, Toast.LENGTH_LONG).show();
+            }
+
+            @Override
+            public void onCancelled() {
+                // Do nothing
+            }
+        });
+    }
+}
@@ -0,0 +1,64 @@
+package net.kenevans.heartnotes;
+
+/**
+ * The filters for the data. Each has an SQL selection and an equivalent
+ * test for a single row, so stores that do not use SQL give the same
+ * results. The ordinal is what is stored in the preferences. All of them
+ * exclude deleted rows, which is a test on an indexed column. The names
+ * shown to the user come from Utils.getFilterName, so this has no
+ * Android dependencies.
+ */
+public enum Filter implements IConstants {
+    NONE(SELECTION_LIVE),
+    NONZERO(SELECTION_LIVE + " AND " + COL_COUNT + " <> 0"),
+    COUNT_TOTAL(SELECTION_LIVE + " AND " + COL_COUNT + " = " + COL_TOTAL);
+
+    private final String mSelection;
+
+    Filter(String selection) {
+        mSelection = selection;
+    }
+
+    /**
+     * Gets the SQL selection.
+     *
+     * @return The selection.
+     */
+    public String getSelection() {
+        return mSelection;
+    }
+
+    /**
+     * Returns whether the row passes the filter.
+     *
+     * @param data The row.
+     * @return If it passes.
+     */
+    public boolean accept(Data data) {
+        if (data.isDeleted()) {
+            return false;
+        }
+        switch (this) {
+            case NONZERO:
+                return data.getCount() != 0;
+            case COUNT_TOTAL:
+                return data.getCount() == data.getTotal();
+            default:
+                return true;
+        }
+    }
+
+    /**
+     * Gets the Filter with the given ordinal, as stored in the preferences.
+     *
+     * @param ordinal The ordinal.
+     * @return The Filter or NONE if the ordinal is invalid.
+     */
+    public static Filter fromOrdinal(int ordinal) {
+        Filter[] values = values();
+        if (ordinal < 0 || ordinal >= values.length) {
+            return NONE;
+        }
+        return values[ordinal];
+    }
+}
@@ -0,0 +1,65 @@
+package net.kenevans.heartnotes;
+
+/**
+ * The ways the main list can be grouped into sections by date. Each has an
+ * SQLite strftime format that gives the same key to all the dates in a
+ * section, and a SimpleDateFormat pattern for its header. The ordinal is
+ * what is stored in the preferences.
+ */
+public enum Grouping {
+    NONE(R.string.grouping_none, null, null),
+    DAY(R.string.grouping_day, "%Y-%m-%d", "EEE MMM d, yyyy"),
+    MONTH(R.string.grouping_month, "%Y-%m", "MMMM yyyy");
+
+    private final int mNameId;
+    private final String mKeyFormat;
+    private final String mLabelPattern;
+
+    Grouping(int nameId, String keyFormat, String labelPattern) {
+        mNameId = nameId;
+        mKeyFormat = keyFormat;
+        mLabelPattern = labelPattern;
+    }
+
+    /**
+     * Gets the string resource id for the name shown in the menu.
+     *
+     * @return The id.
+     */
+    public int getNameId() {
+        return mNameId;
+    }
+
+    /**
+     * Gets the strftime format for the section key of a date.
+     *
+     * @return The format or null for NONE.
+     */
+    public String getKeyFormat() {
+        return mKeyFormat;
+    }
+
+    /**
+     * Gets the SimpleDateFormat pattern for the section headers.
+     *
+     * @return The pattern or null for NONE.
+     */
+    public String getLabelPattern() {
+        return mLabelPattern;
+    }
+
+    /**
+     * Gets the Grouping with the given ordinal, as stored in the
+     * preferences.
+     *
+     * @param ordinal The ordinal.
+     * @return The Grouping or NONE if the ordinal is invalid.
+     */
+    public static Grouping fromOrdinal(int ordinal) {
+        Grouping[] values = values();
+        if (ordinal < 0 || ordinal >= values.length) {
+            return NONE;
+        }
+        return values[ordinal];
+    }
+}
@@ -1,47 +1,58 @@
 package net.kenevans.heartnotes;
 
 import android.app.AlertDialog;
-import android.content.ContentResolver;
+import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
-import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
 import android.net.Uri;
 import android.os.Bundle;
-import android.os.ParcelFileDescriptor;
-import android.provider.DocumentsContract;
+import android.os.StrictMode;
 import android.util.Log;
+import android.util.SparseArray;
+import android.util.SparseBooleanArray;
+import android.view.ActionMode;
 import android.view.LayoutInflater;
 import android.view.Menu;
 import android.view.MenuInflater;
 import android.view.MenuItem;
 import android.view.View;
 import android.view.ViewGroup;
+import android.widget.AbsListView;
 import android.widget.BaseAdapter;
 import android.widget.CheckBox;
 import android.widget.EditText;
 import android.widget.ListView;
+import android.widget.ProgressBar;
+import android.widget.SectionIndexer;
 import android.widget.TextView;
+import android.widget.Toast;
 
 import com.google.android.material.floatingactionbutton.FloatingActionButton;
+import com.google.android.material.snackbar.Snackbar;
 
 import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
-import java.io.FileWriter;
+import java.io.IOException;
 import java.io.InputStreamReader;
-import java.nio.channels.FileChannel;
+import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Arrays;
+import java.util.Calendar;
 import java.util.Date;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import androidx.activity.result.ActivityResultLauncher;
 import androidx.activity.result.contract.ActivityResultContracts;
 import androidx.appcompat.app.AppCompatActivity;
+import androidx.lifecycle.Lifecycle;
 
 /**
  * Manages a database with entries for the number of Premature Ventricular
@@ -49,26 +60,63 @@ import androidx.appcompat.app.AppCompatActivity;
  * to the Notes example, but the database is on the SD card.
  */
 public class HeartNotesActivity extends AppCompatActivity implements IConstants {
+    private HeartNotesStore mStore;
     /**
-     * Template for the name of the file written to the SD card
+     * The adapter used by mStore, for bulk inserts that should not go
+     * through the capture journal.
      */
-    private static final String saveFileTemplate = "HeartNotes.%s.txt";
-    private static final String saveDatabaseTemplate = "HeartNotes.%s.db";
-
     private HeartNotesDbAdapter mDbAdapter;
-    private CustomListAdapter mListAdapter;
+    /**
+     * The id of a deleted entry to offer undo for when resumed, or -1.
+     */
+    private long mUndoId = -1;
+    /**
+     * Refreshes the list when an edit has been written, and offers undo
+     * for a delete. Edits usually finish while this is paused, in which
+     * case onResume does it.
+     */
+    private final SaveQueue.Listener mSaveListener = (deletedId, error) -> {
+        if (deletedId >= 0) {
+            mUndoId = deletedId;
+        }
+        if (!getLifecycle().getCurrentState().isAtLeast(
+                Lifecycle.State.RESUMED)) {
+            if (error != null) {
+                Log.e(TAG, "Save failed: " + error);
+            }
+            return;
+        }
+        if (error != null) {
+            Utils.errMsg(this, error);
+        }
+        refresh();
+        showUndo();
+    };
+    private SectionedListAdapter mListAdapter;
     private ListView mListView;
+    /**
+     * The ids of the entries selected in the list. They are kept by id,
+     * since the positions change when the list is loaded again, and the
+     * entries at them may not be loaded.
+     */
+    private final Set<Long> mSelectedIds = new LinkedHashSet<>();
     private String mSortOrder = SORT_DESCENDING;
-    private boolean mListViewToEnd = false;
-
+    private Grouping mGrouping = Grouping.NONE;
     /**
-     * Array of hard-coded filters
+     * The maximum number of sections of the list to keep loaded.
      */
-    protected Filter[] filters;
+    private static final int MAX_PAGES = 12;
+    /**
+     * Loads the sections of the list in the background.
+     */
+    private final ExecutorService mListExecutor =
+            Executors.newSingleThreadExecutor();
+    private boolean mListViewToEnd = false;
+
     /**
-     * The current mFilter.
+     * The current filter.
      */
-    private int mFilter = 0;
+    private Filter mFilter = Filter.NONE;
 
     // Launcher for PREF_TREE_URI
     private final ActivityResultLauncher<Intent> openDocumentTreeLauncher =
@@ -110,6 +158,8 @@ public class HeartNotesActivity extends AppCompatActivity implements IConstants
                                     editor.apply();
                                     // Trim the persisted permissions
                                     UriUtils.trimPermissions(this, 1);
+                                    // Automatic backups need the directory
+                                    BackupScheduler.schedule(this);
                                 } catch (Exception ex) {
                                     String msg = "Failed to " +
                                             "takePersistableUriPermission for "
@@ -133,6 +183,16 @@ public class HeartNotesActivity extends AppCompatActivity implements IConstants
     @Override
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+        if (BuildConfig.DEBUG) {
+            // Report disk and network access on the main thread
+            MainThreadIo.setEnabled(true);
+            StrictMode.setThreadPolicy(new StrictMode.ThreadPolicy.Builder()
+                    .detectDiskReads()
+                    .detectDiskWrites()
+                    .detectNetwork()
+                    .penaltyLog()
+                    .build());
+        }
 //        // Capture global exceptions
 //        Thread.setDefaultUncaughtExceptionHandler((paramThread,
 //                                                   paramThrowable) -> {
@@ -145,30 +205,33 @@ public class HeartNotesActivity extends AppCompatActivity implements IConstants
         mListView = findViewById(R.id.listview);
         mListView.setOnItemClickListener((parent, view,
                                           position, id) -> onListItemClick(position, id));
+        // Long press starts selecting entries for the bulk actions
+        mListView.setChoiceMode(ListView.CHOICE_MODE_MULTIPLE_MODAL);
+        // Jumps by month using the SectionIndexer
+        mListView.setFastScrollEnabled(true);
+        mListView.setMultiChoiceModeListener(new SelectionListener());
 
         FloatingActionButton fab =
                 findViewById(R.id.fab);
         fab.setOnClickListener(view -> createData());
 
-        // Create filters here so getText is available
-        filters = new Filter[]{
-                new Filter(getText(R.string.filter_none), null),
-                new Filter(getText(R.string.filter_nonzero), COL_COUNT
-                        + " <> 0"),
-                new Filter(getText(R.string.filter_counttotal), COL_COUNT
-                        + " = " + COL_TOTAL),};
-
         // Get the preferences here before refresh()
         SharedPreferences prefs = getSharedPreferences(MAIN_ACTIVITY,
                 MODE_PRIVATE);
-        mFilter = prefs.getInt(PREF_FILTER, 0);
-        if (mFilter < 0 || mFilter >= filters.length) {
-            mFilter = 0;
-        }
+        mFilter = Filter.fromOrdinal(prefs.getInt(PREF_FILTER, 0));
         mSortOrder = prefs.getString(PREF_SORT_ORDER, SORT_DESCENDING);
+        mGrouping = Grouping.fromOrdinal(prefs.getInt(PREF_GROUPING, 0));
 
-        mDbAdapter = new HeartNotesDbAdapter(this);
-        mDbAdapter.open();
+        mDbAdapter = DatabaseManager.acquire(this);
+        try {
+            mStore = new JournalingStore(this, mDbAdapter);
+        } catch (IOException ex) {
+            // Fall back to inserting new entries directly
+            Utils.excMsg(this, "Error opening the capture journal", ex);
+            mStore = mDbAdapter;
+        }
+        SaveQueue.addListener(mSaveListener);
+        TombstoneCompactor.compactInBackground(this);
 
         refresh();
 
@@ -181,6 +244,7 @@ public class HeartNotesActivity extends AppCompatActivity implements IConstants
         Log.d(TAG, this.getClass().getSimpleName() + ": onResume");
         super.onResume();
         refresh();
+        showUndo();
     }
 
     @Override
@@ -196,16 +260,25 @@ public class HeartNotesActivity extends AppCompatActivity implements IConstants
     protected void onDestroy() {
         Log.d(TAG, this.getClass().getSimpleName() + ": onDestroy");
         super.onDestroy();
-        if (mDbAdapter != null) {
-            mDbAdapter.close();
+        SaveQueue.removeListener(mSaveListener);
+        if (mStore != null) {
+            // mStore may be the adapter itself, so release rather than
+            // close it
+            mStore = null;
+            // Release after any list loads that are queued
+            final HeartNotesDbAdapter dbAdapter = mDbAdapter;
             mDbAdapter = null;
+            mListExecutor.execute(() -> DatabaseManager.release(dbAdapter));
         }
+        mListExecutor.shutdown();
     }
 
     @Override
     public boolean onCreateOptionsMenu(Menu menu) {
         MenuInflater inflater = getMenuInflater();
         inflater.inflate(R.menu.mainmenu, menu);
+        // Only for load testing
+        menu.findItem(R.id.generate_dataset).setVisible(BuildConfig.DEBUG);
         return true;
     }
 
@@ -238,6 +311,9 @@ public class HeartNotesActivity extends AppCompatActivity implements IConstants
         } else if (id == R.id.sortOrder) {
             setSortOrder();
             return true;
+        } else if (id == R.id.grouping) {
+            setGrouping();
+            return true;
         } else if (id == R.id.restore) {
             checkRestore();
             return true;
@@ -250,6 +326,30 @@ public class HeartNotesActivity extends AppCompatActivity implements IConstants
         } else if (id == R.id.choose_data_directory) {
             chooseDataDirectory();
             return true;
+        } else if (id == R.id.backup_retention) {
+            setBackupRetention();
+            return true;
+        } else if (id == R.id.auto_backup) {
+            setAutoBackup();
+            return true;
+        } else if (id == R.id.chart) {
+            startActivity(new Intent(this, ChartActivity.class));
+            return true;
+        } else if (id == R.id.analytics) {
+            showReport(R.string.analytics_item, dbAdapter ->
+                    RollingAnalytics.getInstance(this).getReport(dbAdapter));
+            return true;
+        } else if (id == R.id.statistics) {
+            final Filter filter = mFilter;
+            showReport(R.string.statistics_item, dbAdapter ->
+                    getStatisticsReport(dbAdapter, filter));
+            return true;
+        } else if (id == R.id.diagnostics) {
+            startActivity(new Intent(this, DiagnosticsActivity.class));
+            return true;
+        } else if (id == R.id.generate_dataset) {
+            generateDataset();
+            return true;
         } else if (id == R.id.help) {
             showHelp();
             return true;
@@ -272,6 +372,191 @@ public class HeartNotesActivity extends AppCompatActivity implements IConstants
         startActivity(intent);
     }
 
+    /**
+     * Gets the ids of the entries selected in the list.
+     *
+     * @return The ids.
+     */
+    private long[] getSelectedIds() {
+        long[] result = new long[mSelectedIds.size()];
+        int i = 0;
+        for (long id : mSelectedIds) {
+            result[i++] = id;
+        }
+        return result;
+    }
+
+    /**
+     * Deletes the selected entries after confirming.
+     *
+     * @param ids  The ids.
+     * @param mode The ActionMode to finish when done.
+     */
+    private void bulkDelete(final long[] ids, final ActionMode mode) {
+        new AlertDialog.Builder(this)
+                .setIcon(android.R.drawable.ic_dialog_alert)
+                .setTitle(R.string.confirm)
+                .setMessage(getString(R.string.bulk_delete_prompt,
+                        ids.length))
+                .setPositiveButton(R.string.ok, (dialog, which) -> {
+                    mode.finish();
+                    runBulkEdit(getString(R.string.delete), ids,
+                            store -> store.deleteData(ids), data -> null);
+                })
+                .setNegativeButton(R.string.cancel, null)
+                .show();
+    }
+
+    /**
+     * Prompts for text and appends it to the comments of the selected
+     * entries.
+     *
+     * @param ids  The ids.
+     * @param mode The ActionMode to finish when done.
+     */
+    private void bulkAppendComment(final long[] ids, final ActionMode mode) {
+        View view = getLayoutInflater().inflate(R.layout.bulk_comment, null);
+        final EditText commentText =
+                view.findViewById(R.id.bulk_comment_edittext);
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.append_comment_item)
+                .setView(view)
+                .setPositiveButton(R.string.ok, (dialog, which) -> {
+                    final String text = commentText.getText().toString();
+                    if (text.isEmpty()) return;
+                    mode.finish();
+                    final long dateMod = System.currentTimeMillis();
+                    runBulkEdit(getString(R.string.append_comment_item), ids,
+                            store -> store.appendComment(ids, text, dateMod),
+                            data -> new Data(data.getId(), data.getDateNum(),
+                                    dateMod, data.getCount(),
+                                    data.getTotal(), true,
+                                    data.getComment() + text));
+                })
+                .setNegativeButton(R.string.cancel, null)
+                .show();
+    }
+
+    /**
+     * Prompts for amounts and adds them to the counts and totals of the
+     * selected entries.
+     *
+     * @param ids  The ids.
+     * @param mode The ActionMode to finish when done.
+     */
+    private void bulkAdjust(final long[] ids, final ActionMode mode) {
+        View view = getLayoutInflater().inflate(R.layout.bulk_adjust, null);
+        final EditText countText =
+                view.findViewById(R.id.bulk_count_edittext);
+        final EditText totalText =
+                view.findViewById(R.id.bulk_total_edittext);
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.adjust_item)
+                .setView(view)
+                .setPositiveButton(R.string.ok, (dialog, which) -> {
+                    final int countDelta, totalDelta;
+                    try {
+                        countDelta = Integer.parseInt(
+                                countText.getText().toString().trim());
+                        totalDelta = Integer.parseInt(
+                                totalText.getText().toString().trim());
+                    } catch (NumberFormatException ex) {
+                        Utils.excMsg(this, "Invalid value", ex);
+                        return;
+                    }
+                    mode.finish();
+                    final long dateMod = System.currentTimeMillis();
+                    // Same clamping as the SQL
+                    runBulkEdit(getString(R.string.adjust_item), ids,
+                            store -> store.adjustCountTotal(ids, countDelta,
+                                    totalDelta, dateMod),
+                            data -> new Data(data.getId(), data.getDateNum(),
+                                    dateMod,
+                                    Math.max(0, data.getCount() + countDelta),
+                                    Math.max(0, data.getTotal() + totalDelta),
+                                    true, data.getComment()));
+                })
+                .setNegativeButton(R.string.cancel, null)
+                .show();
+    }
+
+    /**
+     * A bulk action on the store, run in the background.
+     */
+    private interface BulkAction {
+        /**
+         * @param store The store.
+         * @return The number of rows changed.
+         */
+        int run(HeartNotesStore store);
+    }
+
+    /**
+     * The change a bulk action makes to one row, applied to the list so it
+     * does not have to be reloaded.
+     */
+    private interface RowUpdate {
+        /**
+         * @param data The row.
+         * @return The changed row or null if it was removed.
+         */
+        Data apply(Data data);
+    }
+
+    /**
+     * Runs a bulk action as one transaction in the background, then
+     * updates the rows in the list in place.
+     *
+     * @param title  The name of the action.
+     * @param ids    The ids of the rows.
+     * @param action The BulkAction.
+     * @param update The RowUpdate for the list.
+     */
+    private void runBulkEdit(final String title, final long[] ids,
+                             final BulkAction action,
+                             final RowUpdate update) {
+        final Context appContext = getApplicationContext();
+        JobRunner.submit(title, progress -> {
+            HeartNotesDbAdapter dbAdapter =
+                    DatabaseManager.acquire(appContext);
+            long start = Timings.start();
+            try {
+                int changed = action.run(
+                        new JournalingStore(appContext, dbAdapter));
+                return title + ": " + changed + " of " + ids.length
+                        + " entries";
+            } finally {
+                Timings.stop(Timings.BULK_EDIT, start);
+                DatabaseManager.release(dbAdapter);
+            }
+        }, new JobRunner.Listener() {
+            @Override
+            public void onProgress(long done, long total) {
+            }
+
+            @Override
+            public void onComplete(String message) {
+                Toast.makeText(appContext, message, Toast.LENGTH_SHORT)
+                        .show();
+                if (isFinishing() || isDestroyed()) return;
+                if (mListAdapter != null) {
+                    mListAdapter.update(ids, update);
+                }
+            }
+
+            @Override
+            public void onFailure(Exception ex) {
+                if (isFinishing() || isDestroyed()) return;
+                Utils.excMsg(HeartNotesActivity.this, title + " failed", ex);
+                refresh();
+            }
+
+            @Override
+            public void onCancelled() {
+            }
+        });
+    }
+
     @Override
     protected void onActivityResult(int requestCode, int resultCode,
                                     Intent intent) {
@@ -327,6 +612,9 @@ public class HeartNotesActivity extends AppCompatActivity implements IConstants
         // Set an EditText view to get user input
         EditText editText = view.findViewById(R.id.open_weather_edittext);
         CheckBox cb = view.findViewById(R.id.open_weather_checkbox);
+        CheckBox stubCb = view.findViewById(R.id.stub_weather_checkbox);
+        EditText latencyText = view.findViewById(R.id.stub_latency_edittext);
+        EditText failureText = view.findViewById(R.id.stub_failure_edittext);
         // Set them with the current values
         SharedPreferences prefs = getSharedPreferences(MAIN_ACTIVITY,
                 MODE_PRIVATE);
@@ -336,14 +624,105 @@ public class HeartNotesActivity extends AppCompatActivity implements IConstants
         }
         boolean autoWeather = prefs.getBoolean(PREF_AUTO_WEATHER, false);
         cb.setChecked(autoWeather);
+        stubCb.setChecked(prefs.getBoolean(PREF_STUB_WEATHER, false));
+        latencyText.setText(String.valueOf(prefs.getLong(
+                PREF_STUB_WEATHER_LATENCY,
+                StubWeatherProvider.DEFAULT_LATENCY)));
+        failureText.setText(String.valueOf(Math.round(100 * prefs.getFloat(
+                PREF_STUB_WEATHER_FAILURE_RATE,
+                StubWeatherProvider.DEFAULT_FAILURE_RATE))));
+        // Show the response times so far
+        String latencyInfo = WeatherProviders.getLatencyInfo();
+        if (!latencyInfo.isEmpty()) {
+            alert.setMessage(latencyInfo);
+        }
         alert.setPositiveButton("Ok", (dialog, whichButton) -> {
             String value = editText.getText().toString();
             boolean newAutoWeather = cb.isChecked();
+            long latency;
+            int failurePercent;
+            try {
+                latency = Long.parseLong(
+                        latencyText.getText().toString().trim());
+                failurePercent = Integer.parseInt(
+                        failureText.getText().toString().trim());
+            } catch (NumberFormatException ex) {
+                Utils.excMsg(this, "Invalid value", ex);
+                return;
+            }
             SharedPreferences.Editor editor =
                     getSharedPreferences(MAIN_ACTIVITY, MODE_PRIVATE)
                     .edit();
             editor.putString(PREF_OPENWEATHER_KEY, value);
             editor.putBoolean(PREF_AUTO_WEATHER, newAutoWeather);
+            editor.putBoolean(PREF_STUB_WEATHER, stubCb.isChecked());
+            editor.putLong(PREF_STUB_WEATHER_LATENCY, Math.max(0, latency));
+            editor.putFloat(PREF_STUB_WEATHER_FAILURE_RATE,
+                    Math.max(0, Math.min(100, failurePercent)) / 100f);
+            editor.apply();
+        });
+
+        alert.setNegativeButton("Cancel",
+                (dialog, whichButton) -> {
+                    // Do nothing
+                });
+
+        alert.show();
+    }
+
+    /**
+     * Sets the policy for pruning old backups.
+     */
+    private void setBackupRetention() {
+        AlertDialog.Builder alert = new AlertDialog.Builder(this);
+        alert.setTitle(R.string.backup_retention_item);
+        LayoutInflater inflater = this.getLayoutInflater();
+        View view = inflater.inflate(R.layout.backup_retention, null);
+        alert.setView(view);
+
+        CheckBox enabledCb =
+                view.findViewById(R.id.retention_enabled_checkbox);
+        EditText newestText =
+                view.findViewById(R.id.retention_keep_newest_edittext);
+        EditText dailyText =
+                view.findViewById(R.id.retention_keep_daily_edittext);
+        CheckBox monthlyCb =
+                view.findViewById(R.id.retention_keep_monthly_checkbox);
+        // Set them with the current values
+        SharedPreferences prefs = getSharedPreferences(MAIN_ACTIVITY,
+                MODE_PRIVATE);
+        enabledCb.setChecked(prefs.getBoolean(PREF_RETENTION_ENABLED, false));
+        newestText.setText(String.valueOf(prefs.getInt(
+                PREF_RETENTION_KEEP_NEWEST,
+                BackupRetention.DEFAULT_KEEP_NEWEST)));
+        dailyText.setText(String.valueOf(prefs.getInt(
+                PREF_RETENTION_KEEP_DAILY_DAYS,
+                BackupRetention.DEFAULT_KEEP_DAILY_DAYS)));
+        monthlyCb.setChecked(prefs.getBoolean(PREF_RETENTION_KEEP_MONTHLY,
+                BackupRetention.DEFAULT_KEEP_MONTHLY));
+        alert.setPositiveButton("Ok", (dialog, whichButton) -> {
+            int keepNewest, keepDailyDays;
+            try {
+                keepNewest = Integer.parseInt(
+                        newestText.getText().toString().trim());
+                keepDailyDays = Integer.parseInt(
+                        dailyText.getText().toString().trim());
+            } catch (NumberFormatException ex) {
+                Utils.excMsg(this, "Invalid retention value", ex);
+                return;
+            }
+            if (keepNewest < 1 || keepDailyDays < 0) {
+                Utils.errMsg(this, "Must keep at least the newest backup");
+                return;
+            }
+            SharedPreferences.Editor editor =
+                    getSharedPreferences(MAIN_ACTIVITY, MODE_PRIVATE)
+                            .edit();
+            editor.putBoolean(PREF_RETENTION_ENABLED, enabledCb.isChecked());
+            editor.putInt(PREF_RETENTION_KEEP_NEWEST, keepNewest);
+            editor.putInt(PREF_RETENTION_KEEP_DAILY_DAYS, keepDailyDays);
+            editor.putBoolean(PREF_RETENTION_KEEP_MONTHLY,
+                    monthlyCb.isChecked());
             editor.apply();
         });
 
@@ -355,6 +734,73 @@ public class HeartNotesActivity extends AppCompatActivity implements IConstants
         alert.show();
     }
 
+    /**
+     * Sets the options for automatic backups and reschedules them.
+     */
+    private void setAutoBackup() {
+        AlertDialog.Builder alert = new AlertDialog.Builder(this);
+        alert.setTitle(R.string.auto_backup_item);
+        LayoutInflater inflater = this.getLayoutInflater();
+        View view = inflater.inflate(R.layout.auto_backup, null);
+        alert.setView(view);
+
+        CheckBox enabledCb =
+                view.findViewById(R.id.auto_backup_enabled_checkbox);
+        EditText intervalText =
+                view.findViewById(R.id.auto_backup_interval_edittext);
+        CheckBox textCb = view.findViewById(R.id.auto_backup_text_checkbox);
+        CheckBox idleChargingCb =
+                view.findViewById(R.id.auto_backup_idle_charging_checkbox);
+        // Set them with the current values
+        SharedPreferences prefs = getSharedPreferences(MAIN_ACTIVITY,
+                MODE_PRIVATE);
+        enabledCb.setChecked(prefs.getBoolean(PREF_AUTO_BACKUP_ENABLED,
+                false));
+        intervalText.setText(String.valueOf(prefs.getInt(
+                PREF_AUTO_BACKUP_INTERVAL, BackupScheduler.DEFAULT_INTERVAL)));
+        textCb.setChecked(prefs.getBoolean(PREF_AUTO_BACKUP_TEXT, false));
+        idleChargingCb.setChecked(prefs.getBoolean(
+                PREF_AUTO_BACKUP_IDLE_CHARGING,
+                BackupScheduler.DEFAULT_IDLE_CHARGING));
+        alert.setPositiveButton("Ok", (dialog, whichButton) -> {
+            int interval;
+            try {
+                interval = Integer.parseInt(
+                        intervalText.getText().toString().trim());
+            } catch (NumberFormatException ex) {
+                Utils.excMsg(this, "Invalid interval", ex);
+                return;
+            }
+            if (interval < 1) {
+                Utils.errMsg(this, "The interval must be at least 1 hour");
+                return;
+            }
+            if (enabledCb.isChecked() && prefs.getString(PREF_TREE_URI,
+                    null) == null) {
+                Utils.warnMsg(this, "There is no data directory set. " +
+                        "Automatic backups will not run until one is set.");
+            }
+            SharedPreferences.Editor editor =
+                    getSharedPreferences(MAIN_ACTIVITY, MODE_PRIVATE)
+                            .edit();
+            editor.putBoolean(PREF_AUTO_BACKUP_ENABLED, enabledCb.isChecked());
+            editor.putInt(PREF_AUTO_BACKUP_INTERVAL, interval);
+            editor.putBoolean(PREF_AUTO_BACKUP_TEXT, textCb.isChecked());
+            editor.putBoolean(PREF_AUTO_BACKUP_IDLE_CHARGING,
+                    idleChargingCb.isChecked());
+            // Use commit so the scheduler sees the new values
+            editor.commit();
+            BackupScheduler.schedule(this);
+        });
+
+        alert.setNegativeButton("Cancel",
+                (dialog, whichButton) -> {
+                    // Do nothing
+                });
+
+        alert.show();
+    }
+
     private void createData() {
         Intent intent = new Intent(this,
                 net.kenevans.heartnotes.DataEditActivity.class);
@@ -363,6 +809,104 @@ public class HeartNotesActivity extends AppCompatActivity implements IConstants
         startActivity(intent);
     }
 
+    /**
+     * Makes the text for a report.
+     */
+    private interface Report {
+        /**
+         * Called in the background.
+         *
+         * @param dbAdapter An open adapter with all entries compacted.
+         * @return The text.
+         * @throws Exception On failure.
+         */
+        String run(HeartNotesDbAdapter dbAdapter) throws Exception;
+    }
+
+    /**
+     * Gets the RangeStatistics for all time, the last 30 days and the last
+     * 7 days. The ranges start at midnight, so they stay the same, and stay
+     * cached, through the day.
+     *
+     * @param dbAdapter An open adapter.
+     * @param filter    The Filter.
+     * @return The report.
+     */
+    private String getStatisticsReport(HeartNotesDbAdapter dbAdapter,
+                                       Filter filter) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(Utils.getFilterName(this, filter)).append("\n");
+        int[] days = {0, 30, 7};
+        for (int nDays : days) {
+            long start = 0;
+            if (nDays > 0) {
+                Calendar calendar = Calendar.getInstance();
+                calendar.set(Calendar.HOUR_OF_DAY, 0);
+                calendar.set(Calendar.MINUTE, 0);
+                calendar.set(Calendar.SECOND, 0);
+                calendar.set(Calendar.MILLISECOND, 0);
+                calendar.add(Calendar.DAY_OF_MONTH, 1 - nDays);
+                start = calendar.getTimeInMillis();
+            }
+            RangeStatistics stats = dbAdapter.getRangeStatistics(filter,
+                    start, Long.MAX_VALUE);
+            if (stats == null) continue;
+            sb.append("\n").append(nDays > 0 ? "Last " + nDays + " days"
+                    : "All").append(": ").append(stats.format());
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Makes a report in the background and shows it in a dialog.
+     *
+     * @param titleId The resource id of the title.
+     * @param report  The Report.
+     */
+    private void showReport(final int titleId, final Report report) {
+        final Context appContext = getApplicationContext();
+        final String title = getString(titleId);
+        JobRunner.submit(title, progress -> {
+            HeartNotesDbAdapter dbAdapter =
+                    DatabaseManager.acquire(appContext);
+            try {
+                // So entries just captured are included
+                CaptureJournal.getInstance(appContext).compact(dbAdapter);
+                return report.run(dbAdapter);
+            } finally {
+                DatabaseManager.release(dbAdapter);
+            }
+        }, new JobRunner.Listener() {
+            @Override
+            public void onProgress(long done, long total) {
+            }
+
+            @Override
+            public void onComplete(String message) {
+                if (isFinishing() || isDestroyed()) return;
+                View view = getLayoutInflater().inflate(R.layout.report,
+                        null);
+                TextView text = view.findViewById(R.id.report_text);
+                text.setText(message);
+                new AlertDialog.Builder(HeartNotesActivity.this)
+                        .setTitle(title)
+                        .setView(view)
+                        .setPositiveButton(R.string.ok, null)
+                        .show();
+            }
+
+            @Override
+            public void onFailure(Exception ex) {
+                if (isFinishing() || isDestroyed()) return;
+                Utils.excMsg(HeartNotesActivity.this, title + " failed", ex);
+            }
+
+            @Override
+            public void onCancelled() {
+            }
+        });
+    }
+
     /**
      * Show the help.
      */
@@ -387,7 +931,11 @@ public class HeartNotesActivity extends AppCompatActivity implements IConstants
      * @return The formatted date.
      */
     public static String formatDate(Long dateNum) {
-        return formatDate(HeartNotesActivity.longFormatter, dateNum);
+        if (dateNum == null || dateNum == -1) {
+            return formatDate(HeartNotesActivity.longFormatter, dateNum);
+        }
+        // Thread safe, unlike the shared longFormatter
+        return HeartNotesFormat.formatDate(dateNum);
     }
 
     /**
@@ -430,7 +978,7 @@ public class HeartNotesActivity extends AppCompatActivity implements IConstants
     }
 
     /**
-     * Saves the info to the SD card.
+     * Saves the info as text to the data directory in the background.
      */
     private void saveData() {
         SharedPreferences prefs = getSharedPreferences(MAIN_ACTIVITY,
@@ -440,75 +988,30 @@ public class HeartNotesActivity extends AppCompatActivity implements IConstants
             Utils.errMsg(this, "There is no data directory set");
             return;
         }
-        String format = "yyyy-MM-dd-HHmmss";
-        SimpleDateFormat df = new SimpleDateFormat(format, Locale.US);
-        Date now = new Date();
-        String fileName = String.format(saveFileTemplate,
-                df.format(now));
-        try {
-            Uri treeUri = Uri.parse(treeUriStr);
-            String treeDocumentId =
-                    DocumentsContract.getTreeDocumentId(treeUri);
-            Uri docTreeUri =
-                    DocumentsContract.buildDocumentUriUsingTree(treeUri,
-                            treeDocumentId);
-            ContentResolver resolver = this.getContentResolver();
-            ParcelFileDescriptor pfd;
-            Uri docUri = DocumentsContract.createDocument(resolver, docTreeUri,
-                    "text/plain", fileName);
-            pfd = getContentResolver().
-                    openFileDescriptor(docUri, "w");
-            try (FileWriter writer = new FileWriter(pfd.getFileDescriptor());
-                 BufferedWriter out = new BufferedWriter(writer);
-                 Cursor cursor =
-                         mDbAdapter.fetchAllData(filters[mFilter].selection,
-                                 mSortOrder)) {
-                // int indexId = cursor.getColumnIndex(COL_ID);
-                int indexDate = cursor.getColumnIndex(COL_DATE);
-                // int indexDateMod = cursor.getColumnIndex(COL_DATEMOD);
-                int indexCount = cursor.getColumnIndex(COL_COUNT);
-                int indexTotal = cursor.getColumnIndex(COL_TOTAL);
-                // indexEdited = cursor.getColumnIndex(COL_EDITED);
-                int indexComment = cursor.getColumnIndex(COL_COMMENT);
-                // Loop over items
-                cursor.moveToFirst();
-                String comment, info, date;
-                long count, total, dateNum;
-                while (!cursor.isAfterLast()) {
-                    comment = "<None>";
-                    if (indexComment > -1) {
-                        // Convert tabs and newlines to text for restore
-                        comment = cursor.getString(indexComment)
-                                .replaceAll("\\n", "<br>")
-                                .replaceAll("\\t", "<tab>");
-                    }
-                    date = "<Unknown>";
-                    if (indexDate > -1) {
-                        dateNum = cursor.getLong(indexDate);
-                        date = formatDate(dateNum);
-                    }
-                    count = -1;
-                    if (indexCount > -1) {
-                        count = cursor.getInt(indexCount);
-                    }
-                    total = -1;
-                    if (indexTotal > -1) {
-                        total = cursor.getInt(indexTotal);
-                    }
-                    info = String.format(Locale.US, "%2d/%d \t%s \t%s\n", count,
-                            total, date, comment);
-                    out.write(info);
-                    cursor.moveToNext();
-                }
-                Utils.infoMsg(this, "Wrote " + docUri.getLastPathSegment());
+        final Uri treeUri = Uri.parse(treeUriStr);
+        final Filter filter = mFilter;
+        final String sortOrder = mSortOrder;
+        final Context appContext = getApplicationContext();
+        runSaveJob(getString(R.string.save_item), progress -> {
+            // Hold a reference so this does not depend on the activity
+            HeartNotesDbAdapter dbAdapter =
+                    DatabaseManager.acquire(appContext);
+            try {
+                Uri docUri = BackupWriter.writeText(appContext,
+                        new JournalingStore(appContext, dbAdapter), treeUri,
+                        filter, sortOrder, progress);
+                if (docUri == null) return null;
+                BackupRetention.pruneInBackground(appContext, treeUri);
+                return "Wrote " + docUri.getLastPathSegment();
+            } finally {
+                DatabaseManager.release(dbAdapter);
             }
-        } catch (Exception ex) {
-            String msg = "Error saving to SD card";
-            Utils.excMsg(this, msg, ex);
-            Log.e(TAG, msg, ex);
-        }
+        });
     }
 
+    /**
+     * Saves the database to the data directory in the background.
+     */
     private void saveDatabase() {
         SharedPreferences prefs = getSharedPreferences(MAIN_ACTIVITY,
                 MODE_PRIVATE);
@@ -517,47 +1020,167 @@ public class HeartNotesActivity extends AppCompatActivity implements IConstants
             Utils.errMsg(this, "There is no data directory set");
             return;
         }
-        try {
-            String format = "yyyy-MM-dd-HHmmss";
-            SimpleDateFormat df = new SimpleDateFormat(format, Locale.US);
-            Date now = new Date();
-            String fileName = String.format(saveDatabaseTemplate,
-                    df.format(now));
-            Uri treeUri = Uri.parse(treeUriStr);
-            String treeDocumentId =
-                    DocumentsContract.getTreeDocumentId(treeUri);
-            Uri docTreeUri =
-                    DocumentsContract.buildDocumentUriUsingTree(treeUri,
-                            treeDocumentId);
-            ContentResolver resolver = this.getContentResolver();
-            Uri docUri = DocumentsContract.createDocument(resolver, docTreeUri,
-                    "application/vnd.sqlite3", fileName);
-            if (docUri == null) {
-                Utils.errMsg(this, "Could not create document Uri");
+        final Uri treeUri = Uri.parse(treeUriStr);
+        final Context appContext = getApplicationContext();
+        runSaveJob(getString(R.string.save_db), progress -> {
+            Uri docUri = BackupWriter.writeDatabase(appContext, treeUri,
+                    progress);
+            if (docUri == null) return null;
+            BackupRetention.pruneInBackground(appContext, treeUri);
+            return "Wrote " + docUri.getLastPathSegment();
+        });
+    }
+
+    /**
+     * Prompts for the parameters and writes a generated database, and
+     * optionally a text backup, to the data directory in the background.
+     * They can then be loaded with Replace Database or Restore. For load
+     * testing.
+     */
+    private void generateDataset() {
+        SharedPreferences prefs = getSharedPreferences(MAIN_ACTIVITY,
+                MODE_PRIVATE);
+        String treeUriStr = prefs.getString(PREF_TREE_URI, null);
+        if (treeUriStr == null) {
+            Utils.errMsg(this, "There is no data directory set");
+            return;
+        }
+        final Uri treeUri = Uri.parse(treeUriStr);
+        final DatasetGenerator.Config config = new DatasetGenerator.Config();
+        AlertDialog.Builder alert = new AlertDialog.Builder(this);
+        alert.setTitle(R.string.generate_dataset_item);
+        View view = getLayoutInflater().inflate(R.layout.generate_dataset,
+                null);
+        alert.setView(view);
+        EditText rowsText = view.findViewById(R.id.generate_rows_edittext);
+        EditText spanText = view.findViewById(R.id.generate_span_edittext);
+        EditText weatherText =
+                view.findViewById(R.id.generate_weather_edittext);
+        EditText seedText = view.findViewById(R.id.generate_seed_edittext);
+        CheckBox textCb = view.findViewById(R.id.generate_text_checkbox);
+        rowsText.setText(String.valueOf(config.rows));
+        spanText.setText(String.valueOf(config.spanDays));
+        weatherText.setText(String.valueOf(
+                Math.round(100 * config.weatherRatio)));
+        seedText.setText(String.valueOf(config.seed));
+        alert.setPositiveButton("Ok", (dialog, whichButton) -> {
+            try {
+                config.rows = Integer.parseInt(
+                        rowsText.getText().toString().trim());
+                config.spanDays = Integer.parseInt(
+                        spanText.getText().toString().trim());
+                config.weatherRatio = .01 * Integer.parseInt(
+                        weatherText.getText().toString().trim());
+                config.seed = Long.parseLong(
+                        seedText.getText().toString().trim());
+            } catch (NumberFormatException ex) {
+                Utils.excMsg(this, "Invalid value", ex);
                 return;
             }
-            ParcelFileDescriptor pfd = getContentResolver().
-                    openFileDescriptor(docUri, "rw");
-            File src = new File(getExternalFilesDir(null), DB_NAME);
-            Log.d(TAG, "saveDatabase: docUri=" + docUri);
-            try (FileChannel in =
-                         new FileInputStream(src).getChannel();
-                 FileChannel out =
-                         new FileOutputStream(pfd.getFileDescriptor()).getChannel()) {
-                out.transferFrom(in, 0, in.size());
-            } catch (Exception ex) {
-                String msg = "Error copying source database from "
-                        + docUri.getLastPathSegment() + " to "
-                        + src.getPath();
-                Log.e(TAG, msg, ex);
-                Utils.excMsg(this, msg, ex);
-            }
-            Utils.infoMsg(this, "Wrote " + docUri.getLastPathSegment());
-        } catch (Exception ex) {
-            String msg = "Error saving to SD card";
-            Utils.excMsg(this, msg, ex);
-            Log.e(TAG, msg, ex);
-        }
+            config.end = System.currentTimeMillis();
+            final boolean writeText = textCb.isChecked();
+            final Context appContext = getApplicationContext();
+            runSaveJob(getString(R.string.generate_dataset_item),
+                    progress -> {
+                        DatasetGenerator generator =
+                                new DatasetGenerator(config);
+                        File dbFile = new File(appContext.getCacheDir(),
+                                "generated.db");
+                        Uri docUri;
+                        try {
+                            HeartNotesDbAdapter.writeDatabase(dbFile,
+                                    generator, progress);
+                            if (progress.isCancelled()) return null;
+                            docUri = BackupWriter.writeDatabase(appContext,
+                                    treeUri, dbFile, progress);
+                        } finally {
+                            SQLiteDatabase.deleteDatabase(dbFile);
+                        }
+                        if (docUri == null) return null;
+                        String msg = "Wrote " + docUri.getLastPathSegment();
+                        if (writeText) {
+                            Uri textUri = BackupWriter.writeText(appContext,
+                                    treeUri, generator::writeText, progress);
+                            if (textUri == null) return null;
+                            msg += "\nWrote " + textUri.getLastPathSegment();
+                        }
+                        return msg + "\n" + config;
+                    });
+        });
+        alert.setNegativeButton("Cancel",
+                (dialog, whichButton) -> {
+                    // Do nothing
+                });
+        alert.show();
+    }
+
+    /**
+     * Runs a save job with the JobRunner, showing a progress dialog with a
+     * Cancel button. When it is done, shows the result if this activity is
+     * still around and otherwise a Toast.
+     *
+     * @param title The title for the dialog.
+     * @param job   The job.
+     */
+    private void runSaveJob(String title, JobRunner.Job job) {
+        View view = getLayoutInflater().inflate(R.layout.progress, null);
+        final ProgressBar progressBar = view.findViewById(R.id.progress_bar);
+        final TextView progressText = view.findViewById(R.id.progress_text);
+        final AlertDialog dialog = new AlertDialog.Builder(this)
+                .setTitle(title)
+                .setView(view)
+                .setCancelable(false)
+                .setNegativeButton(R.string.cancel, null)
+                .create();
+        final Context appContext = getApplicationContext();
+        final JobRunner.Handle handle = JobRunner.submit(title, job,
+                new JobRunner.Listener() {
+                    @Override
+                    public void onProgress(long done, long total) {
+                        if (total <= 0) return;
+                        progressBar.setProgress((int) (100 * done / total));
+                        progressText.setText(String.format(Locale.US,
+                                "%d / %d", done, total));
+                    }
+
+                    @Override
+                    public void onComplete(String message) {
+                        finish(message, null);
+                    }
+
+                    @Override
+                    public void onFailure(Exception ex) {
+                        finish("Error saving to the data directory", ex);
+                    }
+
+                    @Override
+                    public void onCancelled() {
+                        finish(title + " cancelled", null);
+                    }
+
+                    private void finish(String message, Exception ex) {
+                        if (isFinishing() || isDestroyed()) {
+                            Toast.makeText(appContext, message,
+                                    Toast.LENGTH_LONG).show();
+                            return;
+                        }
+                        dialog.dismiss();
+                        if (ex != null) {
+                            Utils.excMsg(HeartNotesActivity.this, message,
+                                    ex);
+                        } else if (message != null) {
+                            Utils.infoMsg(HeartNotesActivity.this, message);
+                        }
+                    }
+                });
+        dialog.show();
+        // Set the listener here so the dialog is not dismissed until the job
+        // has stopped
+        dialog.getButton(AlertDialog.BUTTON_NEGATIVE).setOnClickListener(
+                v -> {
+                    handle.cancel();
+                    progressText.setText(R.string.cancelling);
+                });
     }
 
     /**
@@ -582,11 +1205,7 @@ public class HeartNotesActivity extends AppCompatActivity implements IConstants
             Utils.errMsg(this, "There are no .txt files in the data directory");
             return;
         }
-        // Sort them by date with newest first
-        Collections.sort(children,
-                (data1, data2) -> Long.compare(data2.modifiedTime,
-                        data1.modifiedTime));
-
+        // They are already sorted by date with newest first
         // Prompt for the file to use
         final CharSequence[] items = new CharSequence[children.size()];
         String displayName;
@@ -649,11 +1268,7 @@ public class HeartNotesActivity extends AppCompatActivity implements IConstants
             Utils.errMsg(this, "There are no .db files in the data directory");
             return;
         }
-        // Sort them by date with newest first
-        Collections.sort(children,
-                (data1, data2) -> Long.compare(data2.modifiedTime,
-                        data1.modifiedTime));
-
+        // They are already sorted by date with newest first
         // Prompt for the file to use
         final CharSequence[] items = new CharSequence[children.size()];
         String displayName;
@@ -687,7 +1302,8 @@ public class HeartNotesActivity extends AppCompatActivity implements IConstants
                                         Log.d(TAG, "Calling replaceDatabase: " +
                                                 "uri="
                                                 + children.get(item).uri);
-                                        replaceDatabase(children.get(item).uri);
+                                        replaceDatabase(treeUri,
+                                                children.get(item));
                                     })
                             .setNegativeButton(R.string.cancel, null)
                             .show();
@@ -704,6 +1320,8 @@ public class HeartNotesActivity extends AppCompatActivity implements IConstants
     private void restoreData(Uri uri) {
         Log.d(TAG, "restoreData: uri=" + uri);
         int lineNum = 0;
+        long start = Timings.start();
+        boolean failed = true;
         try (InputStreamReader inputStreamReader = new InputStreamReader(
                 getContentResolver().openInputStream(uri));
              BufferedReader in = new BufferedReader(inputStreamReader)) {
@@ -713,62 +1331,36 @@ public class HeartNotesActivity extends AppCompatActivity implements IConstants
 //                return;
 //            }
 
-            // Delete all the data and recreate the table
-            mDbAdapter.recreateDataTable();
-
             // Read the file and get the data to restore
             long dateMod = new Date().getTime();
-            String[] tokens;
+            List<Data> rows = new ArrayList<>();
             String line;
-            int count, total;
-            String comment;
-            Date date;
-            int slash;
+            HeartNotesFormat.Entry entry;
             while ((line = in.readLine()) != null) {
                 lineNum++;
-                Log.d(TAG, lineNum + " " + line);
-                tokens = line.trim().split("\t");
-                // Skip blank lines
-                if (tokens.length == 0) {
-                    continue;
-                }
-                // Skip lines starting with #
-                if (tokens[0].trim().startsWith("#")) {
-                    continue;
-                }
-                if (tokens.length != 3) {
-                    Utils.errMsg(this, "Found " + tokens.length
-                            + " tokens for line " + lineNum
-                            + "\nShould be 3 tokens");
-                    in.close();
-                    return;
-                }
-                slash = tokens[0].indexOf("/");
-                if (slash < 0 || slash == tokens[0].length() - 1) {
-                    Utils.errMsg(this, "count/total field is invalid |"
-                            + tokens[0] + "|");
-                    in.close();
+                try {
+                    entry = HeartNotesFormat.parseLine(line);
+                } catch (ParseException ex) {
+                    Utils.errMsg(this, "Line " + lineNum + ": "
+                            + ex.getMessage());
                     return;
                 }
-                count = Integer.parseInt(tokens[0].substring(0, slash));
-                total = Integer.parseInt(tokens[0].substring(slash + 1).trim());
-                date = HeartNotesActivity.longFormatter.parse(tokens[1]
-                        .trim());
-                // Convert newline and tabs back
-                comment = tokens[2].replaceAll("<br>", "\n").replaceAll("<tab" +
-                        ">", "\t");
-                long id = -1;
-                if (date != null) {
-                    id = mDbAdapter.createData(date.getTime(), dateMod, count,
-                            total, true, comment);
-                }
-                if (id < 0) {
-                    Utils.errMsg(this, "Failed to create the entry for line "
-                            + lineNum);
-                    in.close();
-                    return;
+                if (entry == null) {
+                    continue;
                 }
+                rows.add(new Data(-1, entry.date, dateMod, entry.count,
+                        entry.total, true, entry.comment));
             }
+
+            // Only now delete all the data, so a bad file changes nothing,
+            // and add the new rows in one transaction. They bypass the
+            // journal, since they do not need to be durable one at a time.
+            mStore.recreateDataTable();
+            if (!mStore.createAll(rows)) {
+                Utils.errMsg(this, "Failed to create the restored entries");
+                return;
+            }
+            failed = false;
             refresh();
             Utils.infoMsg(this,
                     "Restored " + lineNum + " lines from " + uri.getPath());
@@ -776,22 +1368,28 @@ public class HeartNotesActivity extends AppCompatActivity implements IConstants
             String msg = "Error restoring at line " + lineNum;
             Utils.excMsg(this, msg, ex);
             Log.e(TAG, msg, ex);
+        } finally {
+            Timings.stop(Timings.RESTORE, start, failed);
         }
     }
 
     /**
-     * Replaces the database without prompting.
+     * Replaces the database without prompting. The backup is first copied
+     * to a temporary file and verified against its manifest, and the
+     * current data is only replaced if that succeeds.
      *
-     * @param uri The Uri.
+     * @param treeUri The tree Uri of the data directory.
+     * @param uriData The UriData for the backup.
      */
-    private void replaceDatabase(Uri uri) {
-        Log.d(TAG, "replaceDatabase: uri=" + uri.getLastPathSegment());
+    private void replaceDatabase(Uri treeUri, UriUtils.UriData uriData) {
+        Uri uri = uriData != null ? uriData.uri : null;
         if (uri == null) {
             Log.d(TAG, this.getClass().getSimpleName()
                     + "replaceDatabase: Source database is null");
             Utils.errMsg(this, "Source database is null");
             return;
         }
+        Log.d(TAG, "replaceDatabase: uri=" + uri.getLastPathSegment());
         String lastSeg = uri.getLastPathSegment();
         if (!UriUtils.exists(this, uri)) {
             String msg = "Source database does not exist " + lastSeg;
@@ -800,41 +1398,34 @@ public class HeartNotesActivity extends AppCompatActivity implements IConstants
             Utils.errMsg(this, msg);
             return;
         }
-        // Copy the data base to app storage
+        String fileName = uriData.displayName != null ?
+                uriData.displayName : UriUtils.getFileNameFromUri(uri);
+        // Copy the database to a temporary file and verify it
         File dest = null;
+        long start = Timings.start();
+        boolean failed = true;
         try {
-            String destFileName = UriUtils.getFileNameFromUri(uri);
-            dest = new File(getExternalFilesDir(null), destFileName);
-            dest.createNewFile();
-            ParcelFileDescriptor pfd = getContentResolver().
-                    openFileDescriptor(uri, "rw");
-            try (FileChannel in =
-                         new FileInputStream(pfd.getFileDescriptor()).getChannel();
-                 FileChannel out =
-                         new FileOutputStream(dest).getChannel()) {
-                out.transferFrom(in, 0, in.size());
-            } catch (Exception ex) {
-                String msg = "Error copying source database from "
-                        + uri.getLastPathSegment() + " to "
-                        + dest.getPath();
-                Log.e(TAG, msg, ex);
-                Utils.excMsg(this, msg, ex);
-            }
-        } catch (Exception ex) {
-            String msg = "Error getting source database" + uri;
-            Log.e(TAG, msg, ex);
-            Utils.excMsg(this, msg, ex);
-        }
-        try {
+            dest = File.createTempFile("replace", ".db", getCacheDir());
+            String verification = BackupWriter.copyVerifiedDatabase(this,
+                    treeUri, uri, fileName, dest);
+            Log.d(TAG, "replaceDatabase: " + verification);
             // Replace (Use null for default alias)
-            mDbAdapter.replaceDatabase(dest.getPath(), null);
+            mStore.replaceDatabase(dest.getPath(), null);
+            failed = false;
             refresh();
             Utils.infoMsg(this,
-                    "Restored database from " + uri.getLastPathSegment());
+                    "Restored database from " + fileName + "\n"
+                            + verification);
         } catch (Exception ex) {
-            String msg = "Error replacing data from " + dest.getPath();
+            String msg = "Error replacing data from " + fileName
+                    + "\nThe current data has not been changed";
             Log.e(TAG, msg, ex);
             Utils.excMsg(this, msg, ex);
+        } finally {
+            Timings.stop(Timings.REPLACE_DATABASE, start, failed);
+            if (dest != null && dest.exists() && !dest.delete()) {
+                Log.e(TAG, "replaceDatabase: Failed to delete " + dest);
+            }
         }
     }
 
@@ -842,25 +1433,26 @@ public class HeartNotesActivity extends AppCompatActivity implements IConstants
      * Bring up a dialog to change the mFilter order.
      */
     private void setFilter() {
+        final Filter[] filters = Filter.values();
         final CharSequence[] items = new CharSequence[filters.length];
         for (int i = 0; i < filters.length; i++) {
-            items[i] = filters[i].name;
+            items[i] = Utils.getFilterName(this, filters[i]);
         }
         AlertDialog.Builder builder = new AlertDialog.Builder(this);
         builder.setTitle(getText(R.string.filter_title));
-        builder.setSingleChoiceItems(items, mFilter,
+        builder.setSingleChoiceItems(items, mFilter.ordinal(),
                 (dialog, item) -> {
                     dialog.dismiss();
                     if (item < 0 || item >= filters.length) {
                         Utils.errMsg(HeartNotesActivity.this,
                                 "Invalid mFilter");
-                        mFilter = 0;
+                        mFilter = Filter.NONE;
                     } else {
-                        mFilter = item;
+                        mFilter = filters[item];
                     }
                     SharedPreferences.Editor editor =
                             getSharedPreferences(MAIN_ACTIVITY, MODE_PRIVATE).edit();
-                    editor.putInt(PREF_FILTER, mFilter);
+                    editor.putInt(PREF_FILTER, mFilter.ordinal());
                     editor.apply();
                     refresh();
                 });
@@ -897,154 +1489,375 @@ public class HeartNotesActivity extends AppCompatActivity implements IConstants
     }
 
     /**
-     * Gets a new cursor and starts managing it.
+     * Bring up a dialog to change the grouping of the list.
      */
-    private void refresh() {
-        // Initialize the mListAdapter
-        mListAdapter = new CustomListAdapter();
-        mListView.setAdapter(mListAdapter);
-        positionListView(mListViewToEnd);
+    private void setGrouping() {
+        final Grouping[] groupings = Grouping.values();
+        final CharSequence[] items = new CharSequence[groupings.length];
+        for (int i = 0; i < groupings.length; i++) {
+            items[i] = getText(groupings[i].getNameId());
+        }
+        AlertDialog.Builder builder = new AlertDialog.Builder(this);
+        builder.setTitle(getText(R.string.grouping_title));
+        builder.setSingleChoiceItems(items, mGrouping.ordinal(),
+                (dialog, item) -> {
+                    dialog.dismiss();
+                    mGrouping = Grouping.fromOrdinal(item);
+                    SharedPreferences.Editor editor =
+                            getSharedPreferences(MAIN_ACTIVITY, MODE_PRIVATE).edit();
+                    editor.putInt(PREF_GROUPING, mGrouping.ordinal());
+                    editor.apply();
+                    refresh();
+                });
+        AlertDialog alert = builder.create();
+        alert.show();
     }
 
     /**
-     * Class to manage a Filter.
+     * Offers to undo the last delete, if there is one. The entry stays a
+     * tombstone until purged, so undo is a single update.
      */
-    private static class Filter {
-        private final CharSequence name;
-        private final String selection;
-
-        private Filter(CharSequence menuName, String selection) {
-            this.name = menuName;
-            this.selection = selection;
-        }
+    private void showUndo() {
+        if (mUndoId < 0) return;
+        final long rowId = mUndoId;
+        mUndoId = -1;
+        Snackbar.make(findViewById(android.R.id.content),
+                R.string.entry_deleted, Snackbar.LENGTH_LONG)
+                .setAction(R.string.undo,
+                        view -> SaveQueue.undelete(this, rowId))
+                .show();
     }
 
     /**
-     * Class to manage the data needed for an item in the ListView.
+     * Gets a new cursor and starts managing it.
      */
-    private static class Data {
-        private final long id;
-        private final String comment;
-        private final long dateNum;
-        private final int count;
-        private final int total;
-
-        public Data(long id, String comment, long dateNum, int count, int
-                total) {
-            this.id = id;
-            this.comment = comment;
-            this.dateNum = dateNum;
-            this.count = count;
-            this.total = total;
+    private void refresh() {
+        long start = Timings.start();
+        // Initialize the mListAdapter. Without grouping, the list is still
+        // paged by month, but without the headers.
+        if (mGrouping == Grouping.NONE) {
+            mListAdapter = new SectionedListAdapter(Grouping.MONTH, false);
+        } else {
+            mListAdapter = new SectionedListAdapter(mGrouping, true);
         }
+        mListView.setAdapter(mListAdapter);
+        positionListView(mListViewToEnd);
+        Timings.stop(Timings.REFRESH, start);
+    }
 
-        private long getId() {
-            return id;
+    /**
+     * ListView adapter class for this activity. The entries are divided
+     * into sections by a Grouping. The sections, with their sizes and
+     * sums, come from one grouped query, which HeartNotesDbAdapter caches
+     * per filter and sort order, so the size of the list and where each
+     * section starts are known without reading any entries. The entries
+     * of a section are loaded as a page when one of them is first shown,
+     * so the fast scroll index, which is by section, can jump anywhere
+     * without loading the entries in between. Only MAX_PAGES pages are
+     * kept. The queries are done on mListExecutor.
+     */
+    private class SectionedListAdapter extends BaseAdapter implements
+            SectionIndexer {
+        private final Filter mSectionFilter = mFilter;
+        private final String mSectionSortOrder = mSortOrder;
+        private final Grouping mSectionGrouping;
+        /**
+         * Whether each section starts with a header.
+         */
+        private final boolean mShowHeaders;
+        private final SimpleDateFormat mLabelFormat;
+        private final SimpleDateFormat mIndexFormat;
+        private List<DateSection> mSections = new ArrayList<>();
+        /**
+         * The labels for the fast scroll index.
+         */
+        private String[] mIndexLabels = new String[0];
+        /**
+         * The position of the start of each section.
+         */
+        private int[] mStarts = new int[0];
+        private int mCount;
+        /**
+         * The entries of the sections that are loaded, by section.
+         */
+        private final SparseArray<List<Data>> mRows = new SparseArray<>();
+        /**
+         * The sections that are loaded or being loaded.
+         */
+        private final SparseBooleanArray mRequested =
+                new SparseBooleanArray();
+        /**
+         * Incremented when the sections are replaced, so loads for the
+         * old ones are ignored.
+         */
+        private int mGeneration;
+
+        private SectionedListAdapter(Grouping grouping, boolean showHeaders) {
+            super();
+            mSectionGrouping = grouping;
+            mShowHeaders = showHeaders;
+            mLabelFormat = new SimpleDateFormat(grouping.getLabelPattern(),
+                    Locale.US);
+            mIndexFormat = new SimpleDateFormat(grouping == Grouping.DAY
+                    ? "MMM d" : "MMM yyyy", Locale.US);
+            List<DateSection> sections = null;
+            if (mDbAdapter != null && !hasPendingCaptures()) {
+                sections = mDbAdapter.getCachedSections(mSectionFilter,
+                        grouping, mSectionSortOrder);
+            }
+            if (sections != null) {
+                // Nothing has changed, so there is no need to wait
+                setSections(sections);
+            } else {
+                loadSections();
+            }
         }
 
-        private String getComment() {
-            return comment;
+        /**
+         * Returns whether there are new entries in the capture journal,
+         * which the cached sections do not include.
+         *
+         * @return If there are or it cannot be determined.
+         */
+        private boolean hasPendingCaptures() {
+            try {
+                return CaptureJournal.getInstance(HeartNotesActivity.this)
+                        .getPendingCount() > 0;
+            } catch (IOException ex) {
+                return true;
+            }
         }
 
-        private long getDateNum() {
-            return dateNum;
+        /**
+         * Gets the sections in the background.
+         */
+        private void loadSections() {
+            final HeartNotesDbAdapter dbAdapter = mDbAdapter;
+            if (dbAdapter == null) return;
+            final Context appContext = getApplicationContext();
+            mListExecutor.execute(() -> {
+                List<DateSection> sections = null;
+                try {
+                    // So entries just captured are included
+                    CaptureJournal.getInstance(appContext).compact(dbAdapter);
+                    long start = Timings.start();
+                    sections = dbAdapter.getSections(mSectionFilter,
+                            mSectionGrouping, mSectionSortOrder);
+                    Timings.stop(Timings.SECTIONS_QUERY, start);
+                } catch (Exception ex) {
+                    Log.e(TAG, "Error getting the sections", ex);
+                }
+                final List<DateSection> result = sections;
+                runOnUiThread(() -> {
+                    if (isFinishing() || isDestroyed()
+                            || mListAdapter != this) {
+                        return;
+                    }
+                    if (result == null) {
+                        Utils.errMsg(HeartNotesActivity.this,
+                                "Error getting the sections");
+                        return;
+                    }
+                    setSections(result);
+                });
+            });
         }
 
-        private int getCount() {
-            return count;
+        private void setSections(List<DateSection> sections) {
+            mGeneration++;
+            mSections = sections;
+            mStarts = new int[sections.size()];
+            mIndexLabels = new String[sections.size()];
+            int position = 0;
+            for (int i = 0; i < mStarts.length; i++) {
+                DateSection section = sections.get(i);
+                mStarts[i] = position;
+                mIndexLabels[i] = mIndexFormat.format(
+                        new Date(section.firstDate));
+                position += getHeaderSize() + section.rows;
+            }
+            mCount = position;
+            clear();
+            // The positions have changed. The selected entries are checked
+            // again as their sections are loaded.
+            if (!mSelectedIds.isEmpty()) {
+                mListView.clearChoices();
+            }
+            notifyDataSetChanged();
+            if (mGeneration == 1) {
+                // Reloads keep the position
+                positionListView(mListViewToEnd);
+            }
+            Log.d(TAG, "List created with " + mCount + " items in "
+                    + mSections.size() + " sections");
         }
 
-        private int getTotal() {
-            return total;
+        private int getHeaderSize() {
+            return mShowHeaders ? 1 : 0;
         }
-    }
-
-    /**
-     * ListView adapter class for this activity.
-     */
-    private class CustomListAdapter extends BaseAdapter {
-        private final ArrayList<Data> mData;
-        private final LayoutInflater mInflator;
 
-        private CustomListAdapter() {
-            super();
-            mData = new ArrayList<>();
-            mInflator = HeartNotesActivity.this.getLayoutInflater();
-            Cursor cursor = null;
-            int nItems = 0;
-            try {
-                if (mDbAdapter != null) {
-                    cursor = mDbAdapter.fetchAllData(filters[mFilter]
-                            .selection, mSortOrder);
-                    int indexId = cursor.getColumnIndex(COL_ID);
-                    int indexDate = cursor.getColumnIndex(COL_DATE);
-                    // indexDateMod = cursor.getColumnIndex(COL_DATEMOD);
-                    int indexCount = cursor.getColumnIndex(COL_COUNT);
-                    int indexTotal = cursor.getColumnIndex(COL_TOTAL);
-                    // indexEdited = cursor.getColumnIndex(COL_EDITED);
-                    int indexComment = cursor.getColumnIndex(COL_COMMENT);
-
-                    // Loop over items
-                    cursor.moveToFirst();
-                    while (!cursor.isAfterLast()) {
-                        nItems++;
-                        long id = cursor.getLong(indexId);
-                        String comment = "<Comment NA>";
-                        if (indexComment > -1) {
-                            comment = cursor.getString(indexComment);
-                        }
-                        long dateNum = -1L;
-                        if (indexDate > -1) {
-                            dateNum = cursor.getLong(indexDate);
-                        }
-                        int count = -1;
-                        if (indexCount > -1) {
-                            count = cursor.getInt(indexCount);
-                        }
-                        int total = -1;
-                        if (indexTotal > -1) {
-                            total = cursor.getInt(indexTotal);
-                        }
-                        addData(new Data(id, comment, dateNum, count, total));
-                        cursor.moveToNext();
-                    }
-                }
-                if (cursor != null) cursor.close();
-            } catch (Exception ex) {
-                Utils.excMsg(HeartNotesActivity.this,
-                        "Error getting data", ex);
-            } finally {
+        /**
+         * Gets the entries of a section in the background, unless they
+         * have already been requested.
+         *
+         * @param index The index of the section.
+         */
+        private void loadRows(final int index) {
+            final HeartNotesDbAdapter dbAdapter = mDbAdapter;
+            if (mRequested.get(index) || dbAdapter == null) return;
+            mRequested.put(index, true);
+            final int generation = mGeneration;
+            final DateSection section = mSections.get(index);
+            mListExecutor.execute(() -> {
+                List<Data> rows;
+                long start = Timings.start();
                 try {
-                    if (cursor != null) cursor.close();
+                    rows = dbAdapter.getDataInRange(mSectionFilter,
+                            mSectionSortOrder, section.firstDate,
+                            section.lastDate);
                 } catch (Exception ex) {
-                    // Do nothing
+                    Log.e(TAG, "Error getting the entries for "
+                            + section.key, ex);
+                    return;
+                }
+                Timings.stop(Timings.CURSOR_LOOP, start);
+                runOnUiThread(() -> {
+                    if (mListAdapter != this || generation != mGeneration) {
+                        return;
+                    }
+                    putRows(index, rows);
+                    checkSelected(index, rows);
+                    notifyDataSetChanged();
+                });
+            });
+        }
+
+        /**
+         * Keeps the entries of a section, dropping the loaded section
+         * farthest from it if there are more than MAX_PAGES.
+         *
+         * @param index The index of the section.
+         * @param rows  The entries.
+         */
+        private void putRows(int index, List<Data> rows) {
+            mRows.put(index, rows);
+            if (mRows.size() <= MAX_PAGES) return;
+            int farthest = index;
+            for (int i = 0; i < mRows.size(); i++) {
+                int key = mRows.keyAt(i);
+                if (Math.abs(key - index) > Math.abs(farthest - index)) {
+                    farthest = key;
                 }
             }
-            Log.d(TAG, "Data list created with " + nItems + " items");
+            mRows.remove(farthest);
+            mRequested.delete(farthest);
         }
 
-        private void addData(Data data) {
-            if (!mData.contains(data)) {
-                mData.add(data);
+        /**
+         * Checks the entries of a section that are selected.
+         *
+         * @param index The index of the section.
+         * @param rows  The entries.
+         */
+        private void checkSelected(int index, List<Data> rows) {
+            if (mSelectedIds.isEmpty()) return;
+            int start = mStarts[index] + getHeaderSize();
+            for (int j = 0; j < rows.size(); j++) {
+                if (mSelectedIds.contains(rows.get(j).getId())) {
+                    mListView.setItemChecked(start + j, true);
+                }
             }
         }
 
+        /**
+         * Gets the section a position is in.
+         *
+         * @param position The position.
+         * @return The index of the section.
+         */
+        private int getSection(int position) {
+            // The starts are distinct, since no section is empty
+            int index = Arrays.binarySearch(mStarts, position);
+            return index >= 0 ? index : -index - 2;
+        }
+
+        /**
+         * Returns whether the position is a header.
+         *
+         * @param position The position.
+         * @return If it is.
+         */
+        private boolean isHeader(int position) {
+            return mShowHeaders && mStarts[getSection(position)] == position;
+        }
+
+        /**
+         * Gets the entry at the given position.
+         *
+         * @param position The position.
+         * @return The entry or null for a header or one not loaded yet.
+         */
         private Data getData(int position) {
-            return mData.get(position);
+            int index = getSection(position);
+            int offset = position - mStarts[index] - getHeaderSize();
+            List<Data> rows = mRows.get(index);
+            if (offset < 0 || rows == null || offset >= rows.size()) {
+                return null;
+            }
+            return rows.get(offset);
         }
 
+        /**
+         * Frees the entries while paused.
+         */
         private void clear() {
-            mData.clear();
+            mRows.clear();
+            mRequested.clear();
+        }
+
+        /**
+         * Applies a change to the rows with the given ids in the loaded
+         * sections. The dates are not changed, so the order stays the
+         * same. If a row is removed or no longer passes the filter, or the
+         * header sums change, the sections are loaded again.
+         *
+         * @param ids    The ids.
+         * @param update The RowUpdate.
+         */
+        private void update(long[] ids, RowUpdate update) {
+            Set<Long> idSet = new HashSet<>();
+            for (long id : ids) {
+                idSet.add(id);
+            }
+            boolean removed = false;
+            for (int i = 0; i < mRows.size(); i++) {
+                List<Data> rows = mRows.valueAt(i);
+                for (int j = 0; j < rows.size(); j++) {
+                    Data data = rows.get(j);
+                    if (!idSet.contains(data.getId())) continue;
+                    data = update.apply(data);
+                    if (data == null || !mSectionFilter.accept(data)) {
+                        removed = true;
+                    } else {
+                        rows.set(j, data);
+                    }
+                }
+            }
+            if (removed || mShowHeaders) {
+                loadSections();
+            } else {
+                notifyDataSetChanged();
+            }
         }
 
         @Override
         public int getCount() {
-            return mData.size();
+            return mCount;
         }
 
         @Override
         public Object getItem(int i) {
-            return mData.get(i);
+            return getData(i);
         }
 
         @Override
@@ -1052,13 +1865,68 @@ public class HeartNotesActivity extends AppCompatActivity implements IConstants
             return i;
         }
 
+        @Override
+        public int getViewTypeCount() {
+            return 2;
+        }
+
+        @Override
+        public int getItemViewType(int position) {
+            return isHeader(position) ? 0 : 1;
+        }
+
+        @Override
+        public boolean areAllItemsEnabled() {
+            return false;
+        }
+
+        @Override
+        public boolean isEnabled(int position) {
+            return getData(position) != null;
+        }
+
+        @Override
+        public Object[] getSections() {
+            return mIndexLabels;
+        }
+
+        @Override
+        public int getPositionForSection(int sectionIndex) {
+            if (mStarts.length == 0) return 0;
+            return mStarts[Math.max(0, Math.min(sectionIndex,
+                    mStarts.length - 1))];
+        }
+
+        @Override
+        public int getSectionForPosition(int position) {
+            if (mStarts.length == 0) return 0;
+            return getSection(Math.max(0, Math.min(position, mCount - 1)));
+        }
+
         @Override
         public View getView(int i, View view, ViewGroup viewGroup) {
+            long start = Timings.start();
+            int index = getSection(i);
+            DateSection section = mSections.get(index);
+            if (isHeader(i)) {
+                if (view == null) {
+                    view = getLayoutInflater().inflate(R.layout.list_header,
+                            viewGroup, false);
+                }
+                TextView title = view.findViewById(R.id.header_title);
+                title.setText(getString(R.string.section_heading,
+                        mLabelFormat.format(new Date(section.firstDate)),
+                        section.rows, section.sumCount, section.sumTotal));
+                Timings.stop(Timings.GET_VIEW, start);
+                return view;
+            }
+            loadRows(index);
+            Data data = getData(i);
             ViewHolder viewHolder;
             // General ListView optimization code.
             if (view == null) {
-                view = mInflator.inflate(R.layout.list_row, viewGroup,
-                        false);
+                view = getLayoutInflater().inflate(R.layout.list_row,
+                        viewGroup, false);
                 viewHolder = new ViewHolder();
                 viewHolder.title = view.findViewById(R.id.title);
                 viewHolder.subTitle = view.findViewById(R.id
@@ -1068,16 +1936,77 @@ public class HeartNotesActivity extends AppCompatActivity implements IConstants
                 viewHolder = (ViewHolder) view.getTag();
             }
 
-            Data data = mData.get(i);
-            viewHolder.title.setText(String.format(Locale.US,
-                    getString(R.string.session_heading),
-                    data.getId(), data.getCount(), data.getTotal(),
-                    formatDate(data.getDateNum())));
-            viewHolder.subTitle.setText(data.getComment());
+            if (data == null) {
+                viewHolder.title.setText(R.string.list_loading);
+                viewHolder.subTitle.setText("");
+            } else {
+                viewHolder.title.setText(String.format(Locale.US,
+                        getString(R.string.session_heading),
+                        data.getId(), data.getCount(), data.getTotal(),
+                        formatDate(data.getDateNum())));
+                viewHolder.subTitle.setText(data.getComment());
+            }
+            Timings.stop(Timings.GET_VIEW, start);
             return view;
         }
     }
 
+    /**
+     * Handles selecting entries in the list and the bulk actions on them.
+     */
+    private class SelectionListener implements
+            AbsListView.MultiChoiceModeListener {
+        @Override
+        public void onItemCheckedStateChanged(ActionMode mode, int position,
+                                              long id, boolean checked) {
+            // Only loaded entries are enabled, so this is not null
+            Data data = mListAdapter.getData(position);
+            if (data != null) {
+                if (checked) {
+                    mSelectedIds.add(data.getId());
+                } else {
+                    mSelectedIds.remove(data.getId());
+                }
+            }
+            mode.setTitle(getString(R.string.selected_count,
+                    mSelectedIds.size()));
+        }
+
+        @Override
+        public boolean onCreateActionMode(ActionMode mode, Menu menu) {
+            mode.getMenuInflater().inflate(R.menu.selectmenu, menu);
+            return true;
+        }
+
+        @Override
+        public boolean onPrepareActionMode(ActionMode mode, Menu menu) {
+            return false;
+        }
+
+        @Override
+        public boolean onActionItemClicked(ActionMode mode, MenuItem item) {
+            long[] ids = getSelectedIds();
+            if (ids.length == 0) return true;
+            int id = item.getItemId();
+            if (id == R.id.select_delete) {
+                bulkDelete(ids, mode);
+                return true;
+            } else if (id == R.id.select_append_comment) {
+                bulkAppendComment(ids, mode);
+                return true;
+            } else if (id == R.id.select_adjust) {
+                bulkAdjust(ids, mode);
+                return true;
+            }
+            return false;
+        }
+
+        @Override
+        public void onDestroyActionMode(ActionMode mode) {
+            mSelectedIds.clear();
+        }
+    }
+
     /**
      * Convenience class for managing views for a ListView row.
      */
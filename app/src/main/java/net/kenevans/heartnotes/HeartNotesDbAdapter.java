@@ -3,12 +3,24 @@ package net.kenevans.heartnotes;
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.SQLException;
+import android.database.sqlite.SQLiteConstraintException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
 import android.util.Log;
 
 import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
 
 /**
  * Simple database access helper class. Defines the basic CRUD operations for
@@ -19,21 +31,94 @@ import java.io.File;
  * addition of better error handling and also using returning a Cursor instead
  * of using a collection of inner classes (which is less scalable and not
  * recommended).
+ * <p/>
+ * This is the SQLite implementation of HeartNotesStore. The Cursor methods
+ * remain for callers that need them. Get the adapter for the app's database
+ * from DatabaseManager rather than opening another one.
  */
-public class HeartNotesDbAdapter implements IConstants {
+public class HeartNotesDbAdapter implements IConstants, HeartNotesStore {
     private DatabaseHelper mDbHelper;
     private SQLiteDatabase mDb;
     private final Context mCtx;
+    /**
+     * Whether this is the app's database, whose changes update the data
+     * version.
+     */
+    private boolean mIsAppDb;
 
     /**
-     * Database creation SQL statement
+     * Database creation SQL statement. Package visible so tools that write
+     * databases use the same schema.
      */
-    private static final String DB_CREATE = "create table " + DB_DATA_TABLE
+    static final String DB_CREATE = "create table " + DB_DATA_TABLE
             + " (_id integer primary key autoincrement, " + COL_DATE
             + " integer not null, " + COL_DATEMOD + " integer not null, "
             + COL_COUNT + " integer not null, " + COL_TOTAL
             + " integer not null, " + COL_EDITED + " integer not null,"
-            + COL_COMMENT + " text not null);";
+            + COL_COMMENT + " text not null, " + COL_DELETED
+            + " integer not null default 0);";
+    /**
+     * The index for finding live rows and tombstones.
+     */
+    static final String DB_CREATE_DELETED_INDEX = "create index if not exists "
+            + DB_DATA_TABLE + "_" + COL_DELETED + " on " + DB_DATA_TABLE
+            + " (" + COL_DELETED + ");";
+    /**
+     * The index for range queries on the date over live rows. The
+     * selections start with the deleted test, so it is the first column.
+     */
+    static final String DB_CREATE_DATE_INDEX = "create index if not exists "
+            + DB_DATA_TABLE + "_" + COL_DATE + " on " + DB_DATA_TABLE
+            + " (" + COL_DELETED + ", " + COL_DATE + ");";
+    /**
+     * SQL for the ratio of count to total, or NULL if the total is 0.
+     */
+    static final String RATIO = "(CASE WHEN " + COL_TOTAL + " > 0 THEN "
+            + "CAST(" + COL_COUNT + " AS REAL) / " + COL_TOTAL + " END)";
+    /**
+     * The columns read into Data.
+     */
+    private static final String[] COLUMNS = {COL_ID, COL_DATE, COL_DATEMOD,
+            COL_COUNT, COL_TOTAL, COL_EDITED, COL_COMMENT, COL_DELETED};
+    /**
+     * The columns in version 1 of the schema, other than the id.
+     */
+    private static final String COLUMNS_V1 = COL_DATE + ", " + COL_DATEMOD
+            + ", " + COL_COUNT + ", " + COL_TOTAL + ", " + COL_EDITED + ", "
+            + COL_COMMENT;
+
+    /**
+     * The data version, which is incremented on every change to the data.
+     * Cached from the preferences.
+     */
+    private static long sDataVersion = -1;
+
+    /**
+     * The sections from getSections for the app's database, by filter,
+     * grouping and sort order. They are only used if they have the current
+     * data version.
+     */
+    private static final Map<String, CachedSections> sSectionsCache =
+            new HashMap<>();
+
+    /**
+     * The number of RangeStatistics to keep.
+     */
+    private static final int STATS_CACHE_SIZE = 16;
+    /**
+     * Recently computed RangeStatistics for the app's database, by filter
+     * and range, least recently used first. They are only used if they
+     * have the current data version.
+     */
+    private static final Map<String, RangeStatistics> sStatsCache =
+            new LinkedHashMap<String, RangeStatistics>(STATS_CACHE_SIZE,
+                    .75f, true) {
+                @Override
+                protected boolean removeEldestEntry(
+                        Map.Entry<String, RangeStatistics> eldest) {
+                    return size() > STATS_CACHE_SIZE;
+                }
+            };
 
     /**
      * Constructor - takes the context to allow the database to be
@@ -73,15 +158,40 @@ public class HeartNotesDbAdapter implements IConstants {
                     return null;
                 }
             }
-            mDbHelper = new DatabaseHelper(mCtx, dataDir.getPath()
-                    + File.separator + DB_NAME);
-            mDb = mDbHelper.getWritableDatabase();
         } catch (Exception ex) {
             Utils.excMsg(mCtx, "Error opening database at " + dataDir, ex);
+            return this;
+        }
+        open(new File(dataDir, DB_NAME));
+        mIsAppDb = true;
+        return this;
+    }
+
+    /**
+     * Open the database at the given location instead of the usual one,
+     * creating it if necessary. Used to work with generated or copied
+     * databases, for example when measuring performance with a given
+     * number of rows. Changes to it do not affect the data version.
+     *
+     * @param dbFile The database file.
+     * @return this (self reference, allowing this to be chained in an
+     * initialization call)
+     * @throws SQLException if the database could be neither opened or created
+     */
+    public HeartNotesDbAdapter open(File dbFile) throws SQLException {
+        mIsAppDb = false;
+        try {
+            mDbHelper = new DatabaseHelper(mCtx, dbFile.getPath());
+            try (MainThreadIo.Scope ignored = MainThreadIo.enter("db.open")) {
+                mDb = mDbHelper.getWritableDatabase();
+            }
+        } catch (Exception ex) {
+            Utils.excMsg(mCtx, "Error opening database at " + dbFile, ex);
         }
         return this;
     }
 
+    @Override
     public void close() {
         mDbHelper.close();
     }
@@ -99,6 +209,7 @@ public class HeartNotesDbAdapter implements IConstants {
      * @param comment The comment.
      * @return rowId or -1 on failure.
      */
+    @Override
     public long createData(long date, long dateMod, long count, long total,
                            boolean edited, String comment) {
         if (mDb == null) {
@@ -114,25 +225,148 @@ public class HeartNotesDbAdapter implements IConstants {
         values.put(COL_COMMENT, comment);
         values.put(COL_DATE, date);
 
-        return mDb.insert(DB_DATA_TABLE, null, values);
+        RollingAnalytics.Change change = beginChange(null);
+        long id;
+        try (MainThreadIo.Scope ignored =
+                     MainThreadIo.enter("db.createData")) {
+            id = mDb.insert(DB_DATA_TABLE, null, values);
+        }
+        dataChanged(change, COL_ID + " = " + id);
+        return id;
+    }
+
+    /**
+     * Creates the table and its index in the given database.
+     *
+     * @param db The database.
+     */
+    static void createSchema(SQLiteDatabase db) {
+        db.execSQL(DB_CREATE);
+        db.execSQL(DB_CREATE_DELETED_INDEX);
+        db.execSQL(DB_CREATE_DATE_INDEX);
     }
 
     /**
-     * Delete the data with the given rowId
+     * Writes the rows from a DatasetGenerator to a new database file with
+     * the real schema. Any existing file is replaced. The rows are inserted
+     * in one transaction, with the end of the Config as the modification
+     * date.
+     *
+     * @param dbFile    The file.
+     * @param generator The DatasetGenerator.
+     * @param progress  The Progress or null.
+     * @throws IOException On failure.
+     */
+    public static void writeDatabase(File dbFile, DatasetGenerator generator,
+                                     Progress progress)
+            throws IOException {
+        if (dbFile.exists() && !SQLiteDatabase.deleteDatabase(dbFile)) {
+            throw new IOException("Could not delete " + dbFile);
+        }
+        final long dateMod = generator.getConfig().end;
+        try (SQLiteDatabase db =
+                     SQLiteDatabase.openOrCreateDatabase(dbFile, null)) {
+            createSchema(db);
+            // So it opens without an upgrade
+            db.setVersion(DB_VERSION);
+            db.beginTransaction();
+            try (SQLiteStatement insert = db.compileStatement("INSERT INTO "
+                    + DB_DATA_TABLE + " (" + COL_DATE + ", " + COL_DATEMOD
+                    + ", " + COL_COUNT + ", " + COL_TOTAL + ", " + COL_EDITED
+                    + ", " + COL_COMMENT + ") VALUES (?, ?, ?, ?, ?, ?)")) {
+                generator.generate((date, count, total, comment) -> {
+                    insert.bindLong(1, date);
+                    insert.bindLong(2, dateMod);
+                    insert.bindLong(3, count);
+                    insert.bindLong(4, total);
+                    insert.bindLong(5, 0);
+                    insert.bindString(6, comment);
+                    insert.executeInsert();
+                }, progress);
+                if (progress == null || !progress.isCancelled()) {
+                    db.setTransactionSuccessful();
+                }
+            } finally {
+                db.endTransaction();
+            }
+        }
+    }
+
+    /**
+     * Delete the data with the given rowId. The row is kept as a tombstone
+     * until purged, so this can be undone with undeleteData.
      *
      * @param rowId id of data to delete
      * @return true if deleted, false otherwise
      */
+    @Override
     public boolean deleteData(long rowId) {
-        return mDb.delete(DB_DATA_TABLE, COL_ID + "=" + rowId, null) > 0;
+        ContentValues values = new ContentValues();
+        values.put(COL_DELETED, System.currentTimeMillis());
+        String where = COL_ID + " = " + rowId;
+        RollingAnalytics.Change change = beginChange(where);
+        boolean deleted;
+        try (MainThreadIo.Scope ignored =
+                     MainThreadIo.enter("db.deleteData")) {
+            deleted = mDb.update(DB_DATA_TABLE, values, where
+                    + " AND " + SELECTION_LIVE, null) > 0;
+        }
+        dataChanged(change, where);
+        return deleted;
+    }
+
+    @Override
+    public boolean undeleteData(long rowId) {
+        ContentValues values = new ContentValues();
+        values.put(COL_DELETED, 0);
+        String where = COL_ID + " = " + rowId;
+        RollingAnalytics.Change change = beginChange(where);
+        boolean undeleted;
+        try (MainThreadIo.Scope ignored =
+                     MainThreadIo.enter("db.undeleteData")) {
+            undeleted = mDb.update(DB_DATA_TABLE, values, where, null) > 0;
+        }
+        dataChanged(change, where);
+        return undeleted;
     }
 
     /**
-     * Delete all the data and recreate the table.
+     * Delete all the data. The rows are kept as tombstones until purged,
+     * so a mistaken restore can still be recovered from.
      */
+    @Override
     public void recreateDataTable() {
-        mDb.execSQL("DROP TABLE IF EXISTS " + DB_DATA_TABLE);
-        mDb.execSQL(DB_CREATE);
+        ContentValues values = new ContentValues();
+        values.put(COL_DELETED, System.currentTimeMillis());
+        try (MainThreadIo.Scope ignored =
+                     MainThreadIo.enter("db.recreateDataTable")) {
+            mDb.update(DB_DATA_TABLE, values, SELECTION_LIVE, null);
+        }
+        dataChanged();
+    }
+
+    /**
+     * Removes up to limit tombstones deleted before the given time. Each
+     * call is one statement, so purging in batches does not hold the
+     * database for long.
+     *
+     * @param before The time in ms.
+     * @param limit  The maximum number to remove.
+     * @return The number removed.
+     */
+    public int purgeTombstones(long before, int limit) {
+        if (mDb == null) {
+            return 0;
+        }
+        try (MainThreadIo.Scope ignored =
+                     MainThreadIo.enter("db.purgeTombstones")) {
+            // Live rows are not affected, so the data version is not changed
+            return mDb.delete(DB_DATA_TABLE, COL_ID + " IN (SELECT " + COL_ID
+                            + " FROM " + DB_DATA_TABLE + " WHERE " + COL_DELETED
+                            + " > 0 AND " + COL_DELETED + " < ? LIMIT "
+                            + limit + ")",
+                    new String[]{Long.toString(before)});
+        }
     }
 
     /**
@@ -144,29 +378,88 @@ public class HeartNotesDbAdapter implements IConstants {
         if (mDb == null) {
             return null;
         }
-        return mDb.query(DB_DATA_TABLE, new String[]{COL_ID, COL_DATE,
-                        COL_DATEMOD, COL_COUNT, COL_TOTAL, COL_EDITED,
-                        COL_COMMENT},
-                filter, null, null, null, sortOrder);
+        // The rows are read when the Cursor is first used, which is not
+        // included here
+        try (MainThreadIo.Scope ignored =
+                     MainThreadIo.enter("db.fetchAllData")) {
+            return mDb.query(DB_DATA_TABLE, COLUMNS, filter, null, null,
+                    null, sortOrder);
+        }
     }
 
     /**
-     * Return a Cursor positioned at the data that matches the given rowId
+     * Return a Cursor positioned at the data that matches the given rowId.
+     * Deleted rows are not found.
      *
      * @param rowId id of entry to retrieve
      * @return Cursor positioned to matching entry, if found
      * @throws SQLException if entry could not be found/retrieved
      */
     public Cursor fetchData(long rowId) throws SQLException {
-        Cursor mCursor = mDb.query(true, DB_DATA_TABLE, new String[]{COL_ID,
-                        COL_DATE, COL_DATEMOD, COL_COUNT, COL_TOTAL, COL_EDITED,
-                        COL_COMMENT}, COL_ID + "=" + rowId, null, null, null,
-                null,
-                null);
-        if (mCursor != null) {
-            mCursor.moveToFirst();
+        try (MainThreadIo.Scope ignored =
+                     MainThreadIo.enter("db.fetchData")) {
+            Cursor mCursor = mDb.query(true, DB_DATA_TABLE, COLUMNS,
+                    COL_ID + "=" + rowId + " AND " + SELECTION_LIVE, null,
+                    null, null, null, null);
+            if (mCursor != null) {
+                mCursor.moveToFirst();
+            }
+            return mCursor;
+        }
+    }
+
+    @Override
+    public Data getData(long rowId) {
+        if (mDb == null) {
+            return null;
+        }
+        try (Cursor cursor = fetchData(rowId)) {
+            if (cursor == null || cursor.isAfterLast()) {
+                return null;
+            }
+            return new DataReader(cursor).read();
+        }
+    }
+
+    @Override
+    public List<Data> getAllData(Filter filter, String sortOrder) {
+        final List<Data> list = new ArrayList<>();
+        try {
+            forEachData(filter, sortOrder, list::add);
+        } catch (IOException ex) {
+            // Does not happen since add does not throw
+            Log.e(TAG, "getAllData failed", ex);
+        }
+        return list;
+    }
+
+    @Override
+    public void forEachData(Filter filter, String sortOrder,
+                            Visitor visitor) throws IOException {
+        if (mDb == null) {
+            return;
+        }
+        try (Cursor cursor = fetchAllData(filter.getSelection(),
+                sortOrder)) {
+            DataReader reader = new DataReader(cursor);
+            while (cursor.moveToNext()) {
+                if (!visitor.visit(reader.read())) {
+                    break;
+                }
+            }
+        }
+    }
+
+    @Override
+    public int getCount(Filter filter) {
+        if (mDb == null) {
+            return 0;
+        }
+        try (MainThreadIo.Scope ignored =
+                     MainThreadIo.enter("db.getCount")) {
+            return (int) DatabaseUtils.queryNumEntries(mDb, DB_DATA_TABLE,
+                    filter.getSelection());
         }
-        return mCursor;
     }
 
     /**
@@ -180,6 +473,7 @@ public class HeartNotesDbAdapter implements IConstants {
      * @param comment The comment.
      * @return true if the entry was successfully updated, false otherwise
      */
+    @Override
     public boolean updateData(long rowId, long date, long dateMod, long count,
                               long total, boolean edited, String comment) {
         ContentValues values = new ContentValues();
@@ -190,28 +484,760 @@ public class HeartNotesDbAdapter implements IConstants {
         values.put(COL_EDITED, edited);
         values.put(COL_COMMENT, comment);
 
-        return mDb.update(DB_DATA_TABLE, values, COL_ID + "=" + rowId, null) > 0;
+        String where = COL_ID + " = " + rowId;
+        RollingAnalytics.Change change = beginChange(where);
+        boolean updated;
+        try (MainThreadIo.Scope ignored =
+                     MainThreadIo.enter("db.updateData")) {
+            updated = mDb.update(DB_DATA_TABLE, values, where, null) > 0;
+        }
+        dataChanged(change, where);
+        return updated;
     }
 
     /**
-     * Clears the working database, attaches the new one, copies all data,
-     * detaches the old one.
+     * Replaces the live rows with those in the given database. The current
+     * rows are kept as tombstones until purged, as in recreateDataTable, so
+     * a mistaken replace can still be recovered from. The copied rows get
+     * new ids, and tombstones in the new database are not copied. It is
+     * all done in one transaction, so the working data is unchanged if the
+     * copy fails.
      *
      * @param newFileName Path to the new database.
      * @param alias       Name for the new database or null to use "SourceDb"
      */
+    @Override
     public void replaceDatabase(String newFileName, String alias) {
         if (alias == null) alias = "TEMP_DB";
-        // Clear the working database
-        recreateDataTable();
-        // Attach the new database
-        mDb.execSQL("ATTACH DATABASE '" + newFileName
-                + "' AS " + alias);
-        // Copy the data
-        mDb.execSQL("INSERT INTO " + DB_DATA_TABLE + " SELECT * FROM "
-                + alias + "." + DB_DATA_TABLE);
-        // Detach the new database
-        mDb.execSQL("DETACH DATABASE " + alias);
+        ContentValues values = new ContentValues();
+        values.put(COL_DELETED, System.currentTimeMillis());
+        try (MainThreadIo.Scope ignored =
+                     MainThreadIo.enter("db.replaceDatabase")) {
+            // Attach the new database (cannot be done in a transaction)
+            mDb.execSQL("ATTACH DATABASE '" + newFileName
+                    + "' AS " + alias);
+            try {
+                mDb.beginTransaction();
+                try {
+                    // Tombstone the working data
+                    mDb.update(DB_DATA_TABLE, values, SELECTION_LIVE, null);
+                    // Copy the live data. Name the columns, since older
+                    // backups do not have the tombstone column.
+                    String where = hasColumn(alias, COL_DELETED)
+                            ? " WHERE " + SELECTION_LIVE : "";
+                    mDb.execSQL("INSERT INTO " + DB_DATA_TABLE + " ("
+                            + COLUMNS_V1 + ") SELECT " + COLUMNS_V1 + " FROM "
+                            + alias + "." + DB_DATA_TABLE + where);
+                    mDb.setTransactionSuccessful();
+                } finally {
+                    mDb.endTransaction();
+                }
+            } finally {
+                // Detach the new database
+                mDb.execSQL("DETACH DATABASE " + alias);
+            }
+        }
+        dataChanged();
+    }
+
+    /**
+     * Returns whether the data table in the given attached database has the
+     * given column.
+     *
+     * @param alias  The alias of the database.
+     * @param column The column.
+     * @return If it has it.
+     */
+    private boolean hasColumn(String alias, String column) {
+        try (Cursor cursor = mDb.rawQuery("PRAGMA " + alias + ".table_info("
+                + DB_DATA_TABLE + ")", null)) {
+            int index = cursor.getColumnIndexOrThrow("name");
+            while (cursor.moveToNext()) {
+                if (column.equals(cursor.getString(index))) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Gets the largest id ever used in the data table. Ids are not reused,
+     * so the next new row gets a larger one.
+     *
+     * @return The id or 0 if there have been no rows.
+     */
+    public long getLastId() {
+        if (mDb == null) {
+            return 0;
+        }
+        try (MainThreadIo.Scope ignored =
+                     MainThreadIo.enter("db.getLastId");
+             Cursor cursor = mDb.rawQuery("SELECT seq FROM sqlite_sequence"
+                     + " WHERE name = ?", new String[]{DB_DATA_TABLE})) {
+            return cursor.moveToFirst() ? cursor.getLong(0) : 0;
+        }
+    }
+
+    @Override
+    public int deleteData(long[] rowIds) {
+        return updateEach("db.deleteData[]", "UPDATE " + DB_DATA_TABLE
+                        + " SET " + COL_DELETED + " = ? WHERE " + COL_ID
+                        + " = ? AND " + SELECTION_LIVE, rowIds,
+                System.currentTimeMillis());
+    }
+
+    @Override
+    public int appendComment(long[] rowIds, String text, long dateMod) {
+        return updateEach("db.appendComment", "UPDATE " + DB_DATA_TABLE
+                        + " SET " + COL_COMMENT + " = " + COL_COMMENT
+                        + " || ?, " + COL_DATEMOD + " = ?, " + COL_EDITED
+                        + " = 1 WHERE " + COL_ID + " = ? AND "
+                        + SELECTION_LIVE, rowIds, text, dateMod);
+    }
+
+    @Override
+    public int adjustCountTotal(long[] rowIds, int countDelta,
+                                int totalDelta, long dateMod) {
+        return updateEach("db.adjustCountTotal", "UPDATE " + DB_DATA_TABLE
+                        + " SET " + COL_COUNT + " = max(0, " + COL_COUNT
+                        + " + ?), " + COL_TOTAL + " = max(0, " + COL_TOTAL
+                        + " + ?), " + COL_DATEMOD + " = ?, " + COL_EDITED
+                        + " = 1 WHERE " + COL_ID + " = ? AND "
+                        + SELECTION_LIVE, rowIds, countDelta, totalDelta,
+                dateMod);
+    }
+
+    /**
+     * Gets the dates of the first and last rows that pass the filter.
+     *
+     * @param filter The Filter.
+     * @return The first and last dates or null if there are no rows.
+     */
+    public long[] getDateRange(Filter filter) {
+        if (mDb == null) {
+            return null;
+        }
+        try (MainThreadIo.Scope ignored =
+                     MainThreadIo.enter("db.getDateRange");
+             Cursor cursor = mDb.rawQuery("SELECT min(" + COL_DATE
+                     + "), max(" + COL_DATE + ") FROM " + DB_DATA_TABLE
+                     + " WHERE " + filter.getSelection(), null)) {
+            if (!cursor.moveToFirst() || cursor.isNull(0)) {
+                return null;
+            }
+            return new long[]{cursor.getLong(0), cursor.getLong(1)};
+        }
+    }
+
+    /**
+     * Divides the given date range into equal buckets and gets the count
+     * and ratio statistics of the rows that pass the filter in each one.
+     * The grouping is done in SQLite over the date index, so the cost is
+     * one pass over the rows in the range and only the buckets are
+     * returned. Empty buckets are omitted.
+     *
+     * @param filter  The Filter.
+     * @param start   The start of the range in ms.
+     * @param end     The end of the range in ms, exclusive.
+     * @param buckets The number of buckets, typically the width in pixels.
+     * @return The non-empty buckets in date order.
+     */
+    public List<DateBucket> getDateBuckets(Filter filter, long start,
+                                           long end, int buckets) {
+        List<DateBucket> list = new ArrayList<>();
+        if (mDb == null || end <= start || buckets <= 0) {
+            return list;
+        }
+        String bucket = "((" + COL_DATE + " - " + start + ") * " + buckets
+                + " / " + (end - start) + ")";
+        String sql = "SELECT " + bucket + " AS b, count(*), min(" + COL_DATE
+                + "), max(" + COL_DATE + "), min(" + COL_COUNT + "), max("
+                + COL_COUNT + "), avg(" + COL_COUNT + "), min(" + RATIO
+                + "), max(" + RATIO + "), avg(" + RATIO + ") FROM "
+                + DB_DATA_TABLE + " WHERE " + filter.getSelection()
+                + " AND " + COL_DATE + " >= " + start + " AND " + COL_DATE
+                + " < " + end + " GROUP BY b ORDER BY b";
+        try (MainThreadIo.Scope ignored =
+                     MainThreadIo.enter("db.getDateBuckets");
+             Cursor cursor = mDb.rawQuery(sql, null)) {
+            while (cursor.moveToNext()) {
+                boolean hasRatio = !cursor.isNull(7);
+                list.add(new DateBucket(cursor.getInt(0), cursor.getInt(1),
+                        cursor.getLong(2), cursor.getLong(3),
+                        cursor.getInt(4), cursor.getInt(5),
+                        cursor.getDouble(6),
+                        hasRatio ? cursor.getDouble(7) : Double.NaN,
+                        hasRatio ? cursor.getDouble(8) : Double.NaN,
+                        hasRatio ? cursor.getDouble(9) : Double.NaN));
+            }
+        }
+        return list;
+    }
+
+    /**
+     * Gets the sections of the rows that pass the filter for the given
+     * Grouping, with the number of rows and the sums of count and total in
+     * each. The keys are computed and grouped in SQLite using local time,
+     * so only the sections are returned.
+     *
+     * @param filter    The Filter.
+     * @param grouping  The Grouping, not NONE.
+     * @param sortOrder The sort order for the dates.
+     * @return The sections in the sort order.
+     */
+    public List<DateSection> getSections(Filter filter, Grouping grouping,
+                                         String sortOrder) {
+        List<DateSection> list = new ArrayList<>();
+        if (mDb == null) {
+            return list;
+        }
+        List<DateSection> cached = getCachedSections(filter, grouping,
+                sortOrder);
+        if (cached != null) {
+            return cached;
+        }
+        long version = getDataVersion(mCtx);
+        String key = "strftime('" + grouping.getKeyFormat() + "', "
+                + COL_DATE + " / 1000, 'unixepoch', 'localtime')";
+        String order = SORT_ASCENDING.equals(sortOrder) ? " ASC" : " DESC";
+        try (MainThreadIo.Scope ignored =
+                     MainThreadIo.enter("db.getSections");
+             Cursor cursor = mDb.rawQuery("SELECT " + key + " AS k,"
+                     + " count(*), sum(" + COL_COUNT + "), sum(" + COL_TOTAL
+                     + "), min(" + COL_DATE + "), max(" + COL_DATE
+                     + ") FROM " + DB_DATA_TABLE + " WHERE "
+                     + filter.getSelection() + " GROUP BY k ORDER BY k"
+                     + order, null)) {
+            while (cursor.moveToNext()) {
+                list.add(new DateSection(cursor.getString(0),
+                        cursor.getInt(1), cursor.getLong(2),
+                        cursor.getLong(3), cursor.getLong(4),
+                        cursor.getLong(5)));
+            }
+        }
+        list = Collections.unmodifiableList(list);
+        if (mIsAppDb) {
+            synchronized (sSectionsCache) {
+                sSectionsCache.put(getSectionsKey(filter, grouping,
+                        sortOrder), new CachedSections(version, list));
+            }
+        }
+        return list;
+    }
+
+    /**
+     * Gets the sections from the last call to getSections with the same
+     * arguments if the data has not changed since. Does no I/O, so it can
+     * be used on the main thread.
+     *
+     * @param filter    The Filter.
+     * @param grouping  The Grouping, not NONE.
+     * @param sortOrder The sort order for the dates.
+     * @return The sections or null if there are none cached.
+     */
+    public List<DateSection> getCachedSections(Filter filter,
+                                               Grouping grouping,
+                                               String sortOrder) {
+        if (!mIsAppDb) {
+            return null;
+        }
+        CachedSections cached;
+        synchronized (sSectionsCache) {
+            cached = sSectionsCache.get(getSectionsKey(filter, grouping,
+                    sortOrder));
+        }
+        if (cached == null || cached.mVersion != getDataVersion(mCtx)) {
+            return null;
+        }
+        return cached.mSections;
+    }
+
+    private static String getSectionsKey(Filter filter, Grouping grouping,
+                                         String sortOrder) {
+        // The keys are in local time
+        return filter + " " + grouping + " " + sortOrder + " "
+                + TimeZone.getDefault().getID();
+    }
+
+    /**
+     * Gets the rows that pass the filter with dates in the given range,
+     * for example the rows of one DateSection.
+     *
+     * @param filter    The Filter.
+     * @param sortOrder The sort order.
+     * @param firstDate The first date in ms.
+     * @param lastDate  The last date in ms, inclusive.
+     * @return The rows.
+     */
+    public List<Data> getDataInRange(Filter filter, String sortOrder,
+                                     long firstDate, long lastDate) {
+        List<Data> list = new ArrayList<>();
+        if (mDb == null) {
+            return list;
+        }
+        try (Cursor cursor = fetchAllData(filter.getSelection() + " AND "
+                + COL_DATE + " >= " + firstDate + " AND " + COL_DATE + " <= "
+                + lastDate, sortOrder)) {
+            DataReader reader = new DataReader(cursor);
+            while (cursor.moveToNext()) {
+                list.add(reader.read());
+            }
+        }
+        return list;
+    }
+
+    /**
+     * Gets the statistics of count, total and count / total for the rows
+     * that pass the filter in the given date range. Everything is computed
+     * in SQLite: one aggregate query, then one GROUP BY per column whose
+     * histogram gives the percentiles, all over the date index. No rows
+     * are read into memory. The result is cached until the data version
+     * changes.
+     *
+     * @param filter The Filter.
+     * @param start  The start of the range in ms.
+     * @param end    The end of the range in ms, exclusive.
+     * @return The statistics or null if the database is not open.
+     */
+    public RangeStatistics getRangeStatistics(Filter filter, long start,
+                                              long end) {
+        if (mDb == null) {
+            return null;
+        }
+        long version = getDataVersion(mCtx);
+        String key = filter + " " + start + " " + end;
+        if (mIsAppDb) {
+            synchronized (sStatsCache) {
+                RangeStatistics stats = sStatsCache.get(key);
+                if (stats != null && stats.version == version) {
+                    return stats;
+                }
+            }
+        }
+        String where = filter.getSelection() + " AND " + COL_DATE + " >= "
+                + start + " AND " + COL_DATE + " < " + end;
+        String[] names = {"Count", "Total", "Ratio"};
+        String[] values = {COL_COUNT, COL_TOTAL, RATIO};
+        RangeStatistics.Column[] columns =
+                new RangeStatistics.Column[values.length];
+        int rows;
+        try (MainThreadIo.Scope ignored =
+                     MainThreadIo.enter("db.getRangeStatistics")) {
+            StringBuilder sql = new StringBuilder("SELECT count(*)");
+            for (String value : values) {
+                sql.append(", count(").append(value).append("), min(")
+                        .append(value).append("), max(").append(value)
+                        .append("), avg(").append(value).append("), total(")
+                        .append(value).append(")");
+            }
+            sql.append(" FROM ").append(DB_DATA_TABLE).append(" WHERE ")
+                    .append(where);
+            // The number of values, min, max, mean and sum for each column
+            double[][] aggregates = new double[values.length][5];
+            try (Cursor cursor = mDb.rawQuery(sql.toString(), null)) {
+                cursor.moveToFirst();
+                rows = cursor.getInt(0);
+                for (int i = 0; i < values.length; i++) {
+                    for (int j = 0; j < 5; j++) {
+                        int index = 1 + 5 * i + j;
+                        aggregates[i][j] = cursor.isNull(index) ? Double.NaN
+                                : cursor.getDouble(index);
+                    }
+                }
+            }
+            long ratioBins = Math.round(1 / RangeStatistics.RATIO_STEP);
+            for (int i = 0; i < values.length; i++) {
+                // Count and total are integers, so they are their own bins
+                String bin = i < 2 ? values[i] : "CAST(round(" + values[i]
+                        + " * " + ratioBins + ") AS INTEGER)";
+                double scale = i < 2 ? 1 : RangeStatistics.RATIO_STEP;
+                double[] aggregate = aggregates[i];
+                int n = (int) aggregate[0];
+                columns[i] = new RangeStatistics.Column(names[i], n,
+                        aggregate[1], aggregate[2], aggregate[3],
+                        aggregate[4], getPercentiles(bin, where, n, scale));
+            }
+        }
+        RangeStatistics stats = new RangeStatistics(filter, start, end,
+                version, rows, columns[0], columns[1], columns[2]);
+        if (mIsAppDb) {
+            synchronized (sStatsCache) {
+                sStatsCache.put(key, stats);
+            }
+        }
+        return stats;
+    }
+
+    /**
+     * Gets the RangeStatistics.PERCENTILES of an integer value from its
+     * histogram, using the nearest rank.
+     *
+     * @param value The SQL for the value.
+     * @param where The selection.
+     * @param rows  The number of rows where the value is not NULL.
+     * @param scale The factor to convert the value.
+     * @return The percentiles, NaN if there are no rows.
+     */
+    private double[] getPercentiles(String value, String where, int rows,
+                                    double scale) {
+        int[] percentiles = RangeStatistics.PERCENTILES;
+        double[] result = new double[percentiles.length];
+        Arrays.fill(result, Double.NaN);
+        if (rows == 0) {
+            return result;
+        }
+        try (Cursor cursor = mDb.rawQuery("SELECT " + value + " AS v,"
+                + " count(*) FROM " + DB_DATA_TABLE + " WHERE " + where
+                + " AND " + value + " IS NOT NULL GROUP BY v ORDER BY v",
+                null)) {
+            long seen = 0;
+            int next = 0;
+            while (next < percentiles.length && cursor.moveToNext()) {
+                seen += cursor.getLong(1);
+                while (next < percentiles.length && 100 * seen
+                        >= (long) percentiles[next] * rows) {
+                    result[next++] = cursor.getLong(0) * scale;
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Runs the given UPDATE once for each id in one transaction, with the
+     * compiled statement reused. The args are bound first and the id last.
+     *
+     * @param operation The name for MainThreadIo.
+     * @param sql       The UPDATE statement.
+     * @param rowIds    The ids.
+     * @param args      The other arguments, String or Number.
+     * @return The number of rows changed.
+     */
+    private int updateEach(String operation, String sql, long[] rowIds,
+                           Object... args) {
+        if (mDb == null || rowIds.length == 0) {
+            return 0;
+        }
+        String where = getIdSelection(rowIds);
+        RollingAnalytics.Change change = beginChange(where);
+        int changed = 0;
+        try (MainThreadIo.Scope ignored = MainThreadIo.enter(operation)) {
+            mDb.beginTransaction();
+            try (SQLiteStatement statement = mDb.compileStatement(sql)) {
+                for (int i = 0; i < args.length; i++) {
+                    if (args[i] instanceof String) {
+                        statement.bindString(i + 1, (String) args[i]);
+                    } else {
+                        statement.bindLong(i + 1,
+                                ((Number) args[i]).longValue());
+                    }
+                }
+                for (long rowId : rowIds) {
+                    statement.bindLong(args.length + 1, rowId);
+                    changed += statement.executeUpdateDelete();
+                }
+                mDb.setTransactionSuccessful();
+            } finally {
+                mDb.endTransaction();
+            }
+        }
+        dataChanged(change, where);
+        return changed;
+    }
+
+    /**
+     * Creates new rows for the given Data in one transaction. The ids of
+     * the Data are ignored, and the rows get new ones. The data version is
+     * incremented once, and the rolling analytics are not updated row by
+     * row but rebuilt when next used.
+     *
+     * @param rows The rows.
+     * @return Whether they were created. None are if not.
+     */
+    @Override
+    public boolean createAll(List<Data> rows) {
+        if (mDb == null) {
+            Utils.errMsg(mCtx, "Failed to create data. Database is null.");
+            return false;
+        }
+        if (rows.isEmpty()) {
+            return true;
+        }
+        try (MainThreadIo.Scope ignored =
+                     MainThreadIo.enter("db.createAll")) {
+            mDb.beginTransaction();
+            try {
+                ContentValues values = new ContentValues();
+                for (Data data : rows) {
+                    values.clear();
+                    values.put(COL_DATE, data.getDateNum());
+                    values.put(COL_DATEMOD, data.getDateMod());
+                    values.put(COL_COUNT, data.getCount());
+                    values.put(COL_TOTAL, data.getTotal());
+                    values.put(COL_EDITED, data.isEdited());
+                    values.put(COL_COMMENT, data.getComment());
+                    mDb.insertOrThrow(DB_DATA_TABLE, null, values);
+                }
+                mDb.setTransactionSuccessful();
+            } finally {
+                mDb.endTransaction();
+            }
+        } catch (SQLException ex) {
+            Log.e(TAG, "Failed to create " + rows.size() + " rows", ex);
+            return false;
+        }
+        // No Change, so the analytics are behind this version and rebuilt
+        dataChanged();
+        return true;
+    }
+
+    /**
+     * Inserts the rows with their ids in one transaction. A row identical
+     * to an existing one is skipped, so inserting the same rows again has
+     * no further effect. A row with the id of a different existing one is
+     * a conflict, and then nothing is inserted.
+     *
+     * @param rows The rows.
+     * @throws SQLiteConstraintException On a conflict.
+     */
+    public void insertAll(List<Data> rows) {
+        if (rows.isEmpty()) {
+            return;
+        }
+        long[] rowIds = new long[rows.size()];
+        for (int i = 0; i < rowIds.length; i++) {
+            rowIds[i] = rows.get(i).getId();
+        }
+        String where = getIdSelection(rowIds);
+        RollingAnalytics.Change change = beginChange(where);
+        try (MainThreadIo.Scope ignored =
+                     MainThreadIo.enter("db.insertAll")) {
+            mDb.beginTransaction();
+            try {
+                ContentValues values = new ContentValues();
+                for (Data data : rows) {
+                    values.clear();
+                    values.put(COL_ID, data.getId());
+                    values.put(COL_DATE, data.getDateNum());
+                    values.put(COL_DATEMOD, data.getDateMod());
+                    values.put(COL_COUNT, data.getCount());
+                    values.put(COL_TOTAL, data.getTotal());
+                    values.put(COL_EDITED, data.isEdited());
+                    values.put(COL_COMMENT, data.getComment());
+                    values.put(COL_DELETED, data.getDeleted());
+                    try {
+                        mDb.insertOrThrow(DB_DATA_TABLE, null, values);
+                    } catch (SQLiteConstraintException ex) {
+                        // Inserted before by a compaction that did not
+                        // finish. Anything else must not be overwritten.
+                        if (!hasRow(data)) {
+                            throw new SQLiteConstraintException("Row "
+                                    + data.getId() + " already exists with"
+                                    + " different values");
+                        }
+                    }
+                }
+                mDb.setTransactionSuccessful();
+            } finally {
+                mDb.endTransaction();
+            }
+        }
+        dataChanged(change, where);
+    }
+
+    /**
+     * Returns whether there is a row with the same id and values as the
+     * given Data.
+     *
+     * @param data The Data.
+     * @return If there is.
+     */
+    private boolean hasRow(Data data) {
+        return DatabaseUtils.queryNumEntries(mDb, DB_DATA_TABLE, COL_ID
+                        + " = ? AND " + COL_DATE + " = ? AND " + COL_DATEMOD
+                        + " = ? AND " + COL_COUNT + " = ? AND " + COL_TOTAL
+                        + " = ? AND " + COL_EDITED + " = ? AND " + COL_COMMENT
+                        + " = ? AND " + COL_DELETED + " = ?",
+                new String[]{Long.toString(data.getId()),
+                        Long.toString(data.getDateNum()),
+                        Long.toString(data.getDateMod()),
+                        Integer.toString(data.getCount()),
+                        Integer.toString(data.getTotal()),
+                        data.isEdited() ? "1" : "0", data.getComment(),
+                        Long.toString(data.getDeleted())}) > 0;
+    }
+
+    /**
+     * Adds the date, count and total of each live row matching the
+     * selection to the given State, in one pass over a Cursor without
+     * making Data.
+     *
+     * @param selection The selection or null for all live rows.
+     * @param state     The State.
+     * @param sign      1 to add the rows or -1 to remove them.
+     */
+    public void addCountTotals(String selection,
+                               RollingAnalytics.State state, int sign) {
+        if (mDb == null) {
+            return;
+        }
+        String where = SELECTION_LIVE;
+        if (selection != null) {
+            where += " AND " + selection;
+        }
+        try (MainThreadIo.Scope ignored =
+                     MainThreadIo.enter("db.addCountTotals");
+             Cursor cursor = mDb.query(DB_DATA_TABLE, new String[]{COL_DATE,
+                     COL_COUNT, COL_TOTAL}, where, null, null, null, null)) {
+            while (cursor.moveToNext()) {
+                state.add(cursor.getLong(0), cursor.getLong(1),
+                        cursor.getLong(2), sign);
+            }
+        }
+    }
+
+    /**
+     * Gets a selection for the rows with the given ids.
+     *
+     * @param rowIds The ids.
+     * @return The selection.
+     */
+    private static String getIdSelection(long[] rowIds) {
+        StringBuilder sb = new StringBuilder(COL_ID).append(" IN (");
+        for (int i = 0; i < rowIds.length; i++) {
+            if (i > 0) sb.append(',');
+            sb.append(rowIds[i]);
+        }
+        return sb.append(')').toString();
+    }
+
+    /**
+     * Starts a RollingAnalytics Change for a write to this, the app's
+     * database, with the rows matching the selection as they are before
+     * it.
+     *
+     * @param selection The rows the write affects or null if none exist
+     *                  yet.
+     * @return The Change or null if this is not the app's database.
+     */
+    private RollingAnalytics.Change beginChange(String selection) {
+        if (!mIsAppDb || mDb == null) {
+            return null;
+        }
+        RollingAnalytics.Change change =
+                RollingAnalytics.getInstance(mCtx).begin();
+        if (selection != null) {
+            addCountTotals(selection, change, -1);
+        }
+        return change;
+    }
+
+    /**
+     * Increments the data version and sends the Change, if any, with the
+     * rows as they are after the write to RollingAnalytics.
+     *
+     * @param change    The value from beginChange.
+     * @param selection The rows the write affected.
+     */
+    private void dataChanged(RollingAnalytics.Change change,
+                             String selection) {
+        // Use the version from this write. Another may have bumped it since.
+        long version = dataChanged();
+        if (change == null) {
+            return;
+        }
+        try {
+            addCountTotals(selection, change, 1);
+            RollingAnalytics.getInstance(mCtx).apply(change, version);
+        } catch (Exception ex) {
+            // The write succeeded. The analytics are rebuilt later.
+            Log.e(TAG, "Failed to update the analytics", ex);
+        }
+    }
+
+    /**
+     * Gets the data version. It is incremented every time the data is
+     * changed through this class, and persists across restarts, so it can be
+     * used to tell whether anything has changed since some earlier time.
+     *
+     * @param context The context.
+     * @return The data version.
+     */
+    public static synchronized long getDataVersion(Context context) {
+        if (sDataVersion < 0) {
+            sDataVersion = context.getSharedPreferences(MAIN_ACTIVITY,
+                    Context.MODE_PRIVATE).getLong(PREF_DATA_VERSION, 0);
+        }
+        return sDataVersion;
+    }
+
+    /**
+     * Increments the data version if this is the app's database.
+     *
+     * @return The new version or -1 if this is not the app's database.
+     */
+    private long dataChanged() {
+        return mIsAppDb ? bumpDataVersion(mCtx) : -1;
+    }
+
+    /**
+     * Increments the data version.
+     *
+     * @param context The context.
+     * @return The new version.
+     */
+    private static synchronized long bumpDataVersion(Context context) {
+        long version = getDataVersion(context) + 1;
+        sDataVersion = version;
+        context.getSharedPreferences(MAIN_ACTIVITY, Context.MODE_PRIVATE)
+                .edit().putLong(PREF_DATA_VERSION, version).apply();
+        return version;
+    }
+
+    /**
+     * Sections from getSections and the data version they are for.
+     */
+    private static class CachedSections {
+        private final long mVersion;
+        private final List<DateSection> mSections;
+
+        CachedSections(long version, List<DateSection> sections) {
+            mVersion = version;
+            mSections = sections;
+        }
+    }
+
+    /**
+     * Reads Data from the current row of a Cursor with all the columns.
+     */
+    private static class DataReader {
+        private final Cursor mCursor;
+        private final int mIndexId, mIndexDate, mIndexDateMod, mIndexCount,
+                mIndexTotal, mIndexEdited, mIndexComment, mIndexDeleted;
+
+        DataReader(Cursor cursor) {
+            mCursor = cursor;
+            mIndexId = cursor.getColumnIndexOrThrow(COL_ID);
+            mIndexDate = cursor.getColumnIndexOrThrow(COL_DATE);
+            mIndexDateMod = cursor.getColumnIndexOrThrow(COL_DATEMOD);
+            mIndexCount = cursor.getColumnIndexOrThrow(COL_COUNT);
+            mIndexTotal = cursor.getColumnIndexOrThrow(COL_TOTAL);
+            mIndexEdited = cursor.getColumnIndexOrThrow(COL_EDITED);
+            mIndexComment = cursor.getColumnIndexOrThrow(COL_COMMENT);
+            mIndexDeleted = cursor.getColumnIndexOrThrow(COL_DELETED);
+        }
+
+        Data read() {
+            return new Data(mCursor.getLong(mIndexId),
+                    mCursor.getLong(mIndexDate),
+                    mCursor.getLong(mIndexDateMod),
+                    mCursor.getInt(mIndexCount),
+                    mCursor.getInt(mIndexTotal),
+                    mCursor.getInt(mIndexEdited) != 0,
+                    mCursor.getString(mIndexComment),
+                    mCursor.getLong(mIndexDeleted));
+        }
     }
 
     /**
@@ -226,18 +1252,23 @@ public class HeartNotesDbAdapter implements IConstants {
 
         @Override
         public void onCreate(SQLiteDatabase db) {
-            db.execSQL(DB_CREATE);
+            createSchema(db);
         }
 
         @Override
         public void onUpgrade(SQLiteDatabase db, int oldVersion, int
                 newVersion) {
-            // TODO Re-do this so nothing is lost if there is a need to change
-            // the version
             Log.w(TAG, "Upgrading database from version " + oldVersion + " to "
-                    + newVersion + ", which will destroy all old data");
-            db.execSQL("DROP TABLE IF EXISTS " + DB_DATA_TABLE);
-            onCreate(db);
+                    + newVersion);
+            if (oldVersion < 2) {
+                // Add the tombstone column, existing rows are live
+                db.execSQL("ALTER TABLE " + DB_DATA_TABLE + " ADD COLUMN "
+                        + COL_DELETED + " integer not null default 0");
+                db.execSQL(DB_CREATE_DELETED_INDEX);
+            }
+            if (oldVersion < 3) {
+                db.execSQL(DB_CREATE_DATE_INDEX);
+            }
         }
     }
 
@@ -0,0 +1,125 @@
+package net.kenevans.heartnotes;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+
+/**
+ * The format of the lines in the text backups written by Save as Text and
+ * read by Restore, and the formatting of dates. This is plain Java with no
+ * Android dependencies so it can be run and measured on a desktop JVM.
+ * <p/>
+ * The date formatters are per thread, since SimpleDateFormat is not thread
+ * safe and these are used from both the main thread and the background
+ * jobs.
+ */
+public class HeartNotesFormat {
+    /**
+     * The pattern for the long format. Same as for IConstants.longFormatter.
+     */
+    public static final String LONG_FORMAT = "MMM dd, yyyy HH:mm:ss Z";
+
+    private static final ThreadLocal<SimpleDateFormat> sLongFormatter =
+            new ThreadLocal<SimpleDateFormat>() {
+                @Override
+                protected SimpleDateFormat initialValue() {
+                    return new SimpleDateFormat(LONG_FORMAT, Locale.US);
+                }
+            };
+
+    /**
+     * A parsed line from a text backup.
+     */
+    public static class Entry {
+        public final int count;
+        public final int total;
+        public final long date;
+        public final String comment;
+
+        public Entry(int count, int total, long date, String comment) {
+            this.count = count;
+            this.total = total;
+            this.date = date;
+            this.comment = comment;
+        }
+    }
+
+    /**
+     * Formats a date with the long format.
+     *
+     * @param dateNum The date.
+     * @return The formatted date.
+     */
+    public static String formatDate(long dateNum) {
+        return sLongFormatter.get().format(dateNum);
+    }
+
+    /**
+     * Parses a date in the long format.
+     *
+     * @param string The String to parse.
+     * @return The date.
+     * @throws ParseException If it cannot be parsed.
+     */
+    public static Date parseDate(String string) throws ParseException {
+        return sLongFormatter.get().parse(string);
+    }
+
+    /**
+     * Formats a line for a text backup. Tabs and newlines in the comment are
+     * converted to text so the line can be restored.
+     *
+     * @param count   The count.
+     * @param total   The total.
+     * @param date    The formatted date.
+     * @param comment The comment.
+     * @return The line including the line separator.
+     */
+    public static String formatLine(long count, long total, String date,
+                                    String comment) {
+        // Convert tabs and newlines to text for restore
+        comment = comment.replaceAll("\\n", "<br>")
+                .replaceAll("\\t", "<tab>");
+        return String.format(Locale.US, "%2d/%d \t%s \t%s\n", count,
+                total, date, comment);
+    }
+
+    /**
+     * Parses a line from a text backup.
+     *
+     * @param line The line.
+     * @return The Entry or null if the line is to be skipped.
+     * @throws ParseException If the line is not valid.
+     * @throws NumberFormatException If the count or total is not valid.
+     */
+    public static Entry parseLine(String line) throws ParseException {
+        String[] tokens = line.trim().split("\t");
+        // Skip blank lines
+        if (tokens.length == 0) {
+            return null;
+        }
+        // Skip lines starting with #
+        if (tokens[0].trim().startsWith("#")) {
+            return null;
+        }
+        // The trim removes the last tab when the comment is empty
+        if (tokens.length != 3 && tokens.length != 2) {
+            throw new ParseException("Found " + tokens.length
+                    + " tokens\nShould be 3 tokens", 0);
+        }
+        int slash = tokens[0].indexOf("/");
+        if (slash < 0 || slash == tokens[0].length() - 1) {
+            throw new ParseException("count/total field is invalid |"
+                    + tokens[0] + "|", 0);
+        }
+        int count = Integer.parseInt(tokens[0].substring(0, slash));
+        int total = Integer.parseInt(tokens[0].substring(slash + 1).trim());
+        Date date = parseDate(tokens[1].trim());
+        // Convert newline and tabs back
+        String comment = tokens.length < 3 ? ""
+                : tokens[2].replaceAll("<br>", "\n")
+                .replaceAll("<tab>", "\t");
+        return new Entry(count, total, date.getTime(), comment);
+    }
+}
@@ -0,0 +1,157 @@
+package net.kenevans.heartnotes;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * The storage for the data. Rows are returned as Data rather than as
+ * Cursors. HeartNotesDbAdapter is the SQLite implementation used by the
+ * app, and InMemoryHeartNotesStore keeps everything in memory for tests
+ * and benchmarks.
+ * <p/>
+ * The sort order is SORT_ASCENDING or SORT_DESCENDING from IConstants.
+ */
+public interface HeartNotesStore {
+    /**
+     * Receives rows from forEachData.
+     */
+    interface Visitor {
+        /**
+         * Called for each row.
+         *
+         * @param data The row.
+         * @return Whether to continue.
+         * @throws IOException If the visitor fails.
+         */
+        boolean visit(Data data) throws IOException;
+    }
+
+    /**
+     * Releases the resources of the store.
+     */
+    void close();
+
+    /**
+     * Creates a new row.
+     *
+     * @return The id of the row or -1 on failure.
+     */
+    long createData(long date, long dateMod, long count, long total,
+                    boolean edited, String comment);
+
+    /**
+     * Creates new rows for the given Data, all or none. The ids of the
+     * Data are ignored.
+     *
+     * @return Whether the rows were created.
+     */
+    boolean createAll(List<Data> rows);
+
+    /**
+     * Updates the row with the given id.
+     *
+     * @return Whether the row was updated.
+     */
+    boolean updateData(long rowId, long date, long dateMod, long count,
+                       long total, boolean edited, String comment);
+
+    /**
+     * Deletes the row with the given id. It is kept as a tombstone for
+     * TOMBSTONE_RETENTION, so the delete can be undone.
+     *
+     * @return Whether the row was deleted.
+     */
+    boolean deleteData(long rowId);
+
+    /**
+     * Deletes the rows with the given ids in one transaction, like
+     * deleteData.
+     *
+     * @param rowIds The ids.
+     * @return The number of rows deleted.
+     */
+    int deleteData(long[] rowIds);
+
+    /**
+     * Appends text to the comments of the rows with the given ids in one
+     * transaction. They are marked as edited.
+     *
+     * @param rowIds  The ids.
+     * @param text    The text to append.
+     * @param dateMod The modification date.
+     * @return The number of rows changed.
+     */
+    int appendComment(long[] rowIds, String text, long dateMod);
+
+    /**
+     * Adds to the counts and totals of the rows with the given ids in one
+     * transaction. Neither goes below 0. They are marked as edited.
+     *
+     * @param rowIds     The ids.
+     * @param countDelta The amount to add to the count.
+     * @param totalDelta The amount to add to the total.
+     * @param dateMod    The modification date.
+     * @return The number of rows changed.
+     */
+    int adjustCountTotal(long[] rowIds, int countDelta, int totalDelta,
+                         long dateMod);
+
+    /**
+     * Restores the row with the given id, if it is still a tombstone.
+     *
+     * @return Whether the row was restored.
+     */
+    boolean undeleteData(long rowId);
+
+    /**
+     * Deletes all the rows. They are kept as tombstones like deleteData.
+     */
+    void recreateDataTable();
+
+    /**
+     * Replaces all the rows with those from the given database file. The
+     * current rows are kept as tombstones like recreateDataTable.
+     *
+     * @param newFileName Path to the database file.
+     * @param alias       Name to use for it or null for the default.
+     * @throws UnsupportedOperationException If the store cannot do this.
+     */
+    void replaceDatabase(String newFileName, String alias);
+
+    /**
+     * Gets the row with the given id.
+     *
+     * @param rowId The id.
+     * @return The row or null if not found or deleted.
+     */
+    Data getData(long rowId);
+
+    /**
+     * Gets all the rows that pass the filter.
+     *
+     * @param filter    The Filter.
+     * @param sortOrder The sort order.
+     * @return The rows.
+     */
+    List<Data> getAllData(Filter filter, String sortOrder);
+
+    /**
+     * Visits the rows that pass the filter without holding them all in
+     * memory.
+     *
+     * @param filter    The Filter.
+     * @param sortOrder The sort order.
+     * @param visitor   The Visitor.
+     * @throws IOException If the visitor throws it.
+     */
+    void forEachData(Filter filter, String sortOrder, Visitor visitor)
+            throws IOException;
+
+    /**
+     * Gets the number of rows that pass the filter.
+     *
+     * @param filter The Filter.
+     * @return The number of rows.
+     */
+    int getCount(Filter filter);
+}
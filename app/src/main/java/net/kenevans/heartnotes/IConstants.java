@@ -51,14 +51,28 @@ public interface IConstants {
     /**
      * The database version
      */
-    int DB_VERSION = 1;
+    int DB_VERSION = 3;
 
     // Preferences
     String PREF_OPENWEATHER_KEY = "openWeatherKey";
     String PREF_AUTO_WEATHER = "autoWeather";
     String PREF_FILTER = "filter";
     String PREF_SORT_ORDER = "sortOrder";
+    String PREF_GROUPING = "grouping";
     String PREF_TREE_URI = "tree_uri";
+    String PREF_STUB_WEATHER = "stubWeather";
+    String PREF_STUB_WEATHER_LATENCY = "stubWeatherLatency";
+    String PREF_STUB_WEATHER_FAILURE_RATE = "stubWeatherFailureRate";
+    String PREF_RETENTION_ENABLED = "retentionEnabled";
+    String PREF_RETENTION_KEEP_NEWEST = "retentionKeepNewest";
+    String PREF_RETENTION_KEEP_DAILY_DAYS = "retentionKeepDailyDays";
+    String PREF_RETENTION_KEEP_MONTHLY = "retentionKeepMonthly";
+    String PREF_DATA_VERSION = "dataVersion";
+    String PREF_AUTO_BACKUP_ENABLED = "autoBackupEnabled";
+    String PREF_AUTO_BACKUP_INTERVAL = "autoBackupInterval";
+    String PREF_AUTO_BACKUP_TEXT = "autoBackupText";
+    String PREF_AUTO_BACKUP_IDLE_CHARGING = "autoBackupIdleCharging";
+    String PREF_AUTO_BACKUP_LAST_VERSION = "autoBackupLastVersion";
 
     // Information
     /**
@@ -95,6 +109,20 @@ public interface IConstants {
      * Database column for edited.
      */
     String COL_EDITED = "edited";
+    /**
+     * Database column for when the row was deleted in ms, or 0 if it has
+     * not been. Deleted rows are kept as tombstones for a while, so the
+     * delete can be undone.
+     */
+    String COL_DELETED = "deleted";
+    /**
+     * How long in ms to keep tombstones before they are purged.
+     */
+    long TOMBSTONE_RETENTION = 7L * 24 * 60 * 60 * 1000;
+    /**
+     * SQL selection for rows that are not deleted.
+     */
+    String SELECTION_LIVE = COL_DELETED + " = 0";
 
     /**
      * SQL sort command for date ascending
@@ -112,6 +140,10 @@ public interface IConstants {
      * Request code for ACTION_OPEN_DOCUMENT_TREE.
      */
     int REQ_GET_TREE = 10;
+    /**
+     * Job id for the scheduled backup.
+     */
+    int BACKUP_JOB_ID = 100;
 
     /**
      * The static long formatter to use for formatting dates.
@@ -141,4 +173,14 @@ public interface IConstants {
                     "?lat=%f&lon=%f&units=imperial" +
                     "&exclude=exclude=hourly,daily,minutely" +
                     "&appid=%s";
+
+    /**
+     * Connect timeout for getting the weather in ms.
+     */
+    int WEATHER_CONNECT_TIMEOUT = 10000;
+
+    /**
+     * Read timeout for getting the weather in ms.
+     */
+    int WEATHER_READ_TIMEOUT = 15000;
 }
@@ -0,0 +1,192 @@
+package net.kenevans.heartnotes;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A HeartNotesStore that keeps the rows in memory. It has no Android
+ * dependencies, so it can be used for tests and benchmarks on a desktop
+ * JVM, as StoreBenchmark does, and it gives the same rows as
+ * HeartNotesDbAdapter. Rows with the same date are ordered by id. It
+ * cannot read database files, so replaceDatabase is not supported.
+ * Thread safe.
+ */
+public class InMemoryHeartNotesStore implements HeartNotesStore, IConstants {
+    private static final Comparator<Data> ASCENDING = (d1, d2) -> {
+        int result = Long.compare(d1.getDateNum(), d2.getDateNum());
+        return result != 0 ? result : Long.compare(d1.getId(), d2.getId());
+    };
+    private static final Comparator<Data> DESCENDING =
+            Collections.reverseOrder(ASCENDING);
+
+    /**
+     * The rows by id in the order created.
+     */
+    private final Map<Long, Data> mRows = new LinkedHashMap<>();
+    private long mNextId = 1;
+
+    @Override
+    public void close() {
+        // Nothing to release
+    }
+
+    @Override
+    public synchronized long createData(long date, long dateMod, long count,
+                                        long total, boolean edited,
+                                        String comment) {
+        long id = mNextId++;
+        mRows.put(id, new Data(id, date, dateMod, (int) count, (int) total,
+                edited, comment));
+        return id;
+    }
+
+    @Override
+    public synchronized boolean createAll(List<Data> rows) {
+        for (Data data : rows) {
+            createData(data.getDateNum(), data.getDateMod(), data.getCount(),
+                    data.getTotal(), data.isEdited(), data.getComment());
+        }
+        return true;
+    }
+
+    @Override
+    public synchronized boolean updateData(long rowId, long date,
+                                           long dateMod, long count,
+                                           long total, boolean edited,
+                                           String comment) {
+        Data old = mRows.get(rowId);
+        if (old == null) {
+            return false;
+        }
+        mRows.put(rowId, new Data(rowId, date, dateMod, (int) count,
+                (int) total, edited, comment, old.getDeleted()));
+        return true;
+    }
+
+    @Override
+    public synchronized boolean deleteData(long rowId) {
+        Data data = mRows.get(rowId);
+        if (data == null || data.isDeleted()) {
+            return false;
+        }
+        mRows.put(rowId, withDeleted(data, System.currentTimeMillis()));
+        return true;
+    }
+
+    @Override
+    public synchronized int deleteData(long[] rowIds) {
+        int deleted = 0;
+        for (long rowId : rowIds) {
+            if (deleteData(rowId)) deleted++;
+        }
+        return deleted;
+    }
+
+    @Override
+    public synchronized int appendComment(long[] rowIds, String text,
+                                          long dateMod) {
+        int changed = 0;
+        for (long rowId : rowIds) {
+            Data data = getData(rowId);
+            if (data == null) continue;
+            mRows.put(rowId, new Data(rowId, data.getDateNum(), dateMod,
+                    data.getCount(), data.getTotal(), true,
+                    data.getComment() + text));
+            changed++;
+        }
+        return changed;
+    }
+
+    @Override
+    public synchronized int adjustCountTotal(long[] rowIds, int countDelta,
+                                             int totalDelta, long dateMod) {
+        int changed = 0;
+        for (long rowId : rowIds) {
+            Data data = getData(rowId);
+            if (data == null) continue;
+            mRows.put(rowId, new Data(rowId, data.getDateNum(), dateMod,
+                    Math.max(0, data.getCount() + countDelta),
+                    Math.max(0, data.getTotal() + totalDelta), true,
+                    data.getComment()));
+            changed++;
+        }
+        return changed;
+    }
+
+    @Override
+    public synchronized boolean undeleteData(long rowId) {
+        Data data = mRows.get(rowId);
+        if (data == null) {
+            return false;
+        }
+        mRows.put(rowId, withDeleted(data, 0));
+        return true;
+    }
+
+    @Override
+    public synchronized void recreateDataTable() {
+        long now = System.currentTimeMillis();
+        for (Data data : new ArrayList<>(mRows.values())) {
+            if (!data.isDeleted()) {
+                mRows.put(data.getId(), withDeleted(data, now));
+            }
+        }
+    }
+
+    @Override
+    public void replaceDatabase(String newFileName, String alias) {
+        throw new UnsupportedOperationException(
+                "The in-memory store cannot read database files");
+    }
+
+    @Override
+    public synchronized Data getData(long rowId) {
+        Data data = mRows.get(rowId);
+        return data != null && !data.isDeleted() ? data : null;
+    }
+
+    @Override
+    public synchronized List<Data> getAllData(Filter filter,
+                                              String sortOrder) {
+        List<Data> list = new ArrayList<>();
+        for (Data data : mRows.values()) {
+            if (filter.accept(data)) {
+                list.add(data);
+            }
+        }
+        Collections.sort(list, SORT_ASCENDING.equals(sortOrder) ?
+                ASCENDING : DESCENDING);
+        return list;
+    }
+
+    @Override
+    public void forEachData(Filter filter, String sortOrder,
+                            Visitor visitor) throws IOException {
+        // Visit a snapshot so the visitor can modify the store
+        for (Data data : getAllData(filter, sortOrder)) {
+            if (!visitor.visit(data)) {
+                break;
+            }
+        }
+    }
+
+    @Override
+    public synchronized int getCount(Filter filter) {
+        int count = 0;
+        for (Data data : mRows.values()) {
+            if (filter.accept(data)) count++;
+        }
+        return count;
+    }
+
+    private static Data withDeleted(Data data, long deleted) {
+        return new Data(data.getId(), data.getDateNum(), data.getDateMod(),
+                data.getCount(), data.getTotal(), data.isEdited(),
+                data.getComment(), deleted);
+    }
+}
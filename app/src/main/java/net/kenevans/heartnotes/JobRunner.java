@@ -0,0 +1,168 @@
+package net.kenevans.heartnotes;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Runs long jobs such as saves on a single background thread, one at a
+ * time, with progress reporting and cancellation. The Listener methods are
+ * called on the main thread.
+ */
+public class JobRunner implements IConstants {
+    /**
+     * Minimum time in ms between progress updates sent to the main thread.
+     */
+    private static final long PROGRESS_INTERVAL = 100;
+
+    private static final ExecutorService sExecutor =
+            Executors.newSingleThreadExecutor(runnable -> {
+                Thread thread = new Thread(() -> {
+                    Process.setThreadPriority(
+                            Process.THREAD_PRIORITY_BACKGROUND);
+                    runnable.run();
+                }, "JobRunner");
+                thread.setDaemon(true);
+                return thread;
+            });
+    private static final Handler sHandler =
+            new Handler(Looper.getMainLooper());
+
+    /**
+     * A job to run in the background.
+     */
+    public interface Job {
+        /**
+         * Does the work. Should call progress.update as it goes and return
+         * early when progress.isCancelled() becomes true.
+         *
+         * @param progress The Progress for the job.
+         * @return A message describing the result.
+         * @throws Exception On failure.
+         */
+        String run(Progress progress) throws Exception;
+    }
+
+    /**
+     * Callbacks for a job, called on the main thread.
+     */
+    public interface Listener {
+        void onProgress(long done, long total);
+
+        void onComplete(String message);
+
+        void onFailure(Exception ex);
+
+        void onCancelled();
+    }
+
+    /**
+     * The Progress for a job. Updates are throttled and sent to the
+     * Listener on the main thread.
+     */
+    private static class JobProgress implements Progress {
+        private final Listener mListener;
+        private volatile boolean mCancelled;
+        private long mLastUpdate;
+
+        private JobProgress(Listener listener) {
+            mListener = listener;
+        }
+
+        @Override
+        public void update(long done, long total) {
+            long now = SystemClock.elapsedRealtime();
+            if (done < total && now - mLastUpdate < PROGRESS_INTERVAL) {
+                return;
+            }
+            mLastUpdate = now;
+            if (mListener != null) {
+                sHandler.post(() -> mListener.onProgress(done, total));
+            }
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return mCancelled;
+        }
+    }
+
+    /**
+     * Handle for a submitted job.
+     */
+    public static class Handle {
+        private final JobProgress mProgress;
+        private Future<?> mFuture;
+
+        private Handle(JobProgress progress) {
+            mProgress = progress;
+        }
+
+        /**
+         * Requests cancellation. The job stops at its next check.
+         */
+        public void cancel() {
+            mProgress.mCancelled = true;
+            if (mFuture != null) {
+                // Only removes it if it has not started
+                mFuture.cancel(false);
+            }
+        }
+
+        public boolean isCancelled() {
+            return mProgress.mCancelled;
+        }
+    }
+
+    /**
+     * Submits a job. Jobs run one at a time in the order submitted.
+     *
+     * @param name     A name for the job, used for logging.
+     * @param job      The job.
+     * @param listener The listener or null.
+     * @return A Handle for the job.
+     */
+    public static Handle submit(final String name, final Job job,
+                                final Listener listener) {
+        final JobProgress progress = new JobProgress(listener);
+        final Handle handle = new Handle(progress);
+        handle.mFuture = sExecutor.submit(() -> {
+            long start = SystemClock.elapsedRealtime();
+            try {
+                if (progress.isCancelled()) {
+                    post(listener, Listener::onCancelled);
+                    return;
+                }
+                String message = job.run(progress);
+                if (progress.isCancelled()) {
+                    Log.d(TAG, "JobRunner: " + name + " cancelled");
+                    post(listener, Listener::onCancelled);
+                } else {
+                    Log.d(TAG, "JobRunner: " + name + " finished in "
+                            + (SystemClock.elapsedRealtime() - start) + " ms");
+                    post(listener, l -> l.onComplete(message));
+                }
+            } catch (Exception ex) {
+                Log.e(TAG, "JobRunner: " + name + " failed", ex);
+                post(listener, l -> l.onFailure(ex));
+            }
+        });
+        return handle;
+    }
+
+    private interface ListenerCall {
+        void call(Listener listener);
+    }
+
+    private static void post(final Listener listener,
+                             final ListenerCall call) {
+        if (listener == null) return;
+        sHandler.post(() -> call.call(listener));
+    }
+}
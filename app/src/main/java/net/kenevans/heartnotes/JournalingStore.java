@@ -0,0 +1,224 @@
+package net.kenevans.heartnotes;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A HeartNotesStore that captures new entries in the CaptureJournal and
+ * otherwise uses a HeartNotesDbAdapter. Reads merge the entries still in
+ * the journal with the table, so callers see the same rows as if they had
+ * been inserted. Updates, deletes, and replacing the database compact the
+ * journal first, so they only have to deal with the table. The adapter
+ * usually comes from DatabaseManager and is not closed by close.
+ */
+public class JournalingStore implements HeartNotesStore, IConstants {
+    private static final Comparator<Data> ASCENDING = (d1, d2) ->
+            Long.compare(d1.getDateNum(), d2.getDateNum());
+    private static final Comparator<Data> DESCENDING =
+            Collections.reverseOrder(ASCENDING);
+
+    private final HeartNotesDbAdapter mDbAdapter;
+    private final CaptureJournal mJournal;
+
+    /**
+     * Constructor.
+     *
+     * @param context   The context.
+     * @param dbAdapter An open adapter for the app's database.
+     * @throws IOException If the journal cannot be opened.
+     */
+    public JournalingStore(Context context, HeartNotesDbAdapter dbAdapter)
+            throws IOException {
+        mDbAdapter = dbAdapter;
+        mJournal = CaptureJournal.getInstance(context);
+    }
+
+    /**
+     * Inserts the journaled entries into the table.
+     *
+     * @return Whether it succeeded.
+     */
+    public boolean compact() {
+        try {
+            mJournal.compact(mDbAdapter);
+            return true;
+        } catch (Exception ex) {
+            Log.e(TAG, "JournalingStore: compaction failed", ex);
+            return false;
+        }
+    }
+
+    /**
+     * Runs an insert that bypasses the journal. See
+     * CaptureJournal.insertDirect.
+     *
+     * @param insert The insert.
+     */
+    private void insertDirect(Runnable insert) {
+        try {
+            mJournal.insertDirect(mDbAdapter, insert);
+        } catch (Exception ex) {
+            Log.e(TAG, "JournalingStore: direct insert failed", ex);
+        }
+    }
+
+    @Override
+    public void close() {
+        // The adapter belongs to the caller
+    }
+
+    @Override
+    public long createData(long date, long dateMod, long count, long total,
+                           boolean edited, String comment) {
+        if (!CaptureJournal.fits(comment)) {
+            // Rare, insert it directly after the entries ahead of it
+            final long[] id = {-1};
+            insertDirect(() -> id[0] = mDbAdapter.createData(date, dateMod,
+                    count, total, edited, comment));
+            return id[0];
+        }
+        long start = Timings.start();
+        boolean failed = true;
+        try {
+            long id = mJournal.append(mDbAdapter.getLastId(), date, dateMod,
+                    count, total, edited, comment);
+            failed = false;
+            return id;
+        } catch (IOException ex) {
+            Log.e(TAG, "JournalingStore: append failed", ex);
+            return -1;
+        } finally {
+            Timings.stop(Timings.CAPTURE, start, failed);
+        }
+    }
+
+    @Override
+    public boolean createAll(List<Data> rows) {
+        final boolean[] created = {false};
+        insertDirect(() -> created[0] = mDbAdapter.createAll(rows));
+        return created[0];
+    }
+
+    @Override
+    public boolean updateData(long rowId, long date, long dateMod, long count,
+                              long total, boolean edited, String comment) {
+        return compact() && mDbAdapter.updateData(rowId, date, dateMod,
+                count, total, edited, comment);
+    }
+
+    @Override
+    public boolean deleteData(long rowId) {
+        return compact() && mDbAdapter.deleteData(rowId);
+    }
+
+    @Override
+    public int deleteData(long[] rowIds) {
+        return compact() ? mDbAdapter.deleteData(rowIds) : 0;
+    }
+
+    @Override
+    public int appendComment(long[] rowIds, String text, long dateMod) {
+        return compact() ? mDbAdapter.appendComment(rowIds, text, dateMod)
+                : 0;
+    }
+
+    @Override
+    public int adjustCountTotal(long[] rowIds, int countDelta,
+                                int totalDelta, long dateMod) {
+        return compact() ? mDbAdapter.adjustCountTotal(rowIds, countDelta,
+                totalDelta, dateMod) : 0;
+    }
+
+    @Override
+    public boolean undeleteData(long rowId) {
+        return compact() && mDbAdapter.undeleteData(rowId);
+    }
+
+    @Override
+    public void recreateDataTable() {
+        // Compact so the journaled entries become tombstones too
+        compact();
+        mDbAdapter.recreateDataTable();
+    }
+
+    @Override
+    public void replaceDatabase(String newFileName, String alias) {
+        // Compact so the journaled entries become tombstones too
+        compact();
+        mDbAdapter.replaceDatabase(newFileName, alias);
+    }
+
+    @Override
+    public Data getData(long rowId) {
+        Data data = mJournal.getPending(rowId);
+        return data != null ? data : mDbAdapter.getData(rowId);
+    }
+
+    @Override
+    public List<Data> getAllData(Filter filter, String sortOrder) {
+        List<Data> pending = getPending(filter);
+        List<Data> rows = mDbAdapter.getAllData(filter, sortOrder);
+        if (pending.isEmpty()) return rows;
+        // Drop any that were compacted in between
+        Set<Long> ids = new HashSet<>();
+        for (Data data : pending) {
+            ids.add(data.getId());
+        }
+        for (Data data : rows) {
+            ids.remove(data.getId());
+        }
+        if (ids.size() < pending.size()) {
+            List<Data> remaining = new ArrayList<>();
+            for (Data data : pending) {
+                if (ids.contains(data.getId())) remaining.add(data);
+            }
+            pending = remaining;
+        }
+        // Both lists are sorted, so merge them
+        Comparator<Data> comparator = SORT_ASCENDING.equals(sortOrder) ?
+                ASCENDING : DESCENDING;
+        Collections.sort(pending, comparator);
+        List<Data> list = new ArrayList<>(rows.size() + pending.size());
+        int i = 0, j = 0;
+        while (i < rows.size() || j < pending.size()) {
+            if (j >= pending.size() || (i < rows.size() && comparator
+                    .compare(rows.get(i), pending.get(j)) <= 0)) {
+                list.add(rows.get(i++));
+            } else {
+                list.add(pending.get(j++));
+            }
+        }
+        return list;
+    }
+
+    @Override
+    public void forEachData(Filter filter, String sortOrder,
+                            Visitor visitor) throws IOException {
+        // Used for exports, which run in the background
+        mJournal.compact(mDbAdapter);
+        mDbAdapter.forEachData(filter, sortOrder, visitor);
+    }
+
+    @Override
+    public int getCount(Filter filter) {
+        return mDbAdapter.getCount(filter) + getPending(filter).size();
+    }
+
+    private List<Data> getPending(Filter filter) {
+        List<Data> list = new ArrayList<>();
+        for (Data data : mJournal.getPending()) {
+            if (filter.accept(data)) {
+                list.add(data);
+            }
+        }
+        return list;
+    }
+}
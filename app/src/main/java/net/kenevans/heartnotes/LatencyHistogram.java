@@ -0,0 +1,130 @@
+package net.kenevans.heartnotes;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Keeps the most recent latency samples in a ring buffer and gives
+ * percentiles over them. Also keeps totals over all samples. Thread safe.
+ */
+public class LatencyHistogram {
+    /**
+     * Default number of samples kept.
+     */
+    public static final int DEFAULT_CAPACITY = 256;
+
+    private final String mName;
+    private final String mUnit;
+    private final long[] mSamples;
+    private int mNext;
+    private int mSize;
+    private long mCount;
+    private long mFailures;
+    private long mMax;
+    private long mTotal;
+
+    public LatencyHistogram(String name) {
+        this(name, DEFAULT_CAPACITY);
+    }
+
+    public LatencyHistogram(String name, int capacity) {
+        this(name, capacity, "ms");
+    }
+
+    /**
+     * Constructor for samples in some other unit than ms.
+     *
+     * @param name     The name.
+     * @param capacity The number of samples kept.
+     * @param unit     The unit of the samples, used in the summary.
+     */
+    public LatencyHistogram(String name, int capacity, String unit) {
+        mName = name;
+        mUnit = unit;
+        mSamples = new long[capacity];
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    /**
+     * Records a sample.
+     *
+     * @param latency The latency in the unit of the histogram.
+     * @param failed  Whether the operation failed.
+     */
+    public synchronized void record(long latency, boolean failed) {
+        mSamples[mNext] = latency;
+        mNext = (mNext + 1) % mSamples.length;
+        if (mSize < mSamples.length) mSize++;
+        mCount++;
+        if (failed) mFailures++;
+        if (latency > mMax) mMax = latency;
+        mTotal += latency;
+    }
+
+    /**
+     * Records a successful sample.
+     *
+     * @param latency The latency in the unit of the histogram.
+     */
+    public void record(long latency) {
+        record(latency, false);
+    }
+
+    /**
+     * Gets the number of samples recorded over all time.
+     *
+     * @return The count.
+     */
+    public synchronized long getCount() {
+        return mCount;
+    }
+
+    /**
+     * Gets percentiles over the samples in the ring buffer.
+     *
+     * @param percentiles The percentiles in the range [0, 100].
+     * @return The values, or -1 for each if there are no samples.
+     */
+    public synchronized long[] getPercentiles(double... percentiles) {
+        long[] values = new long[percentiles.length];
+        if (mSize == 0) {
+            Arrays.fill(values, -1);
+            return values;
+        }
+        long[] sorted = Arrays.copyOf(mSamples, mSize);
+        Arrays.sort(sorted);
+        for (int i = 0; i < percentiles.length; i++) {
+            // Nearest rank
+            int rank = (int) Math.ceil(percentiles[i] / 100. * mSize);
+            values[i] = sorted[Math.max(0, Math.min(mSize - 1, rank - 1))];
+        }
+        return values;
+    }
+
+    /**
+     * Clears all the samples and totals.
+     */
+    public synchronized void clear() {
+        mNext = mSize = 0;
+        mCount = mFailures = mMax = mTotal = 0;
+    }
+
+    /**
+     * Returns a one-line summary.
+     *
+     * @return The summary.
+     */
+    public synchronized String getSummary() {
+        if (mCount == 0) {
+            return mName + ": no samples";
+        }
+        long[] p = getPercentiles(50, 95, 99);
+        return String.format(Locale.US,
+                "%s: n=%d failed=%d mean=%d p50=%d p95=%d p99=%d max=%d %s",
+                mName, mCount, mFailures, mTotal / mCount, p[0], p[1], p[2],
+                mMax, mUnit);
+    }
+}
@@ -0,0 +1,238 @@
+package net.kenevans.heartnotes;
+
+import android.annotation.SuppressLint;
+import android.content.Context;
+import android.location.Location;
+import android.location.LocationManager;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import androidx.core.location.LocationManagerCompat;
+import androidx.core.os.CancellationSignal;
+
+/**
+ * Keeps the best recent location fix so repeated lookups do not have to go
+ * to the location providers. When the cached fix is too old or too
+ * inaccurate, the last known locations of the providers are checked, and a
+ * single update is requested only if those are too old as well.
+ * <p/>
+ * The permission check is done by the caller. See LocationUtils.findLocation.
+ */
+public class LocationCache implements IConstants {
+    /**
+     * A fix younger than this (ms) is used without asking the providers.
+     */
+    public static final long MAX_AGE = 15 * 60 * 1000L;
+    /**
+     * A fix older than this (ms) is never used.
+     */
+    public static final long MAX_STALE_AGE = 2 * 60 * 60 * 1000L;
+    /**
+     * A fix with an accuracy worse than this (m) is not considered fresh.
+     */
+    public static final float MAX_ACCURACY = 1000f;
+    /**
+     * How long to wait for a single update (ms).
+     */
+    public static final long UPDATE_TIMEOUT = 20000L;
+
+    private static Location sLocation;
+    private static long sLastLookupTime = -1;
+    private static int sLookups;
+    private static int sCacheHits;
+
+    /**
+     * Gets the best recent location. This may wait for a location update and
+     * should not be called on the main thread. On the main thread it does not
+     * wait and can return null when the cached fix is too old.
+     *
+     * @param context The context.
+     * @return The location or null if there is none recent enough.
+     */
+    @SuppressLint("MissingPermission")
+    public static Location getLocation(Context context) {
+        long start = SystemClock.elapsedRealtime();
+        Location location;
+        synchronized (LocationCache.class) {
+            sLookups++;
+            location = sLocation;
+        }
+        if (isFresh(location)) {
+            synchronized (LocationCache.class) {
+                sCacheHits++;
+            }
+            finishLookup(start, "cache");
+            return location;
+        }
+
+        // Try the last known locations
+        LocationManager locationManager = (LocationManager) context
+                .getSystemService(Context.LOCATION_SERVICE);
+        Location best = location;
+        for (String provider : new String[]{LocationManager.GPS_PROVIDER,
+                LocationManager.NETWORK_PROVIDER}) {
+            try {
+                best = better(best,
+                        locationManager.getLastKnownLocation(provider));
+            } catch (Exception ex) {
+                Log.d(TAG, "LocationCache: getLastKnownLocation failed for "
+                        + provider, ex);
+            }
+        }
+        if (isFresh(best)) {
+            cache(best);
+            finishLookup(start, "last known");
+            return best;
+        }
+
+        // Ask for a single update unless on the main thread
+        if (Looper.myLooper() != Looper.getMainLooper()) {
+            Location update = requestUpdate(locationManager);
+            if (update != null) {
+                best = better(best, update);
+            }
+        }
+        if (best != null && getAge(best) > MAX_STALE_AGE) {
+            Log.d(TAG, "LocationCache: discarding fix that is "
+                    + getAge(best) / 60000 + " min old");
+            best = null;
+        }
+        if (best != null) {
+            cache(best);
+        }
+        finishLookup(start, "update");
+        return best;
+    }
+
+    /**
+     * Clears the cached fix.
+     */
+    public static synchronized void clear() {
+        sLocation = null;
+    }
+
+    /**
+     * Gets the time the last lookup took.
+     *
+     * @return The time in ms or -1 if there has been no lookup.
+     */
+    public static synchronized long getLastLookupTime() {
+        return sLastLookupTime;
+    }
+
+    /**
+     * Returns information about the lookups as a formatted string.
+     *
+     * @return The information.
+     */
+    public static synchronized String getInfo() {
+        return "Location lookups=" + sLookups + " cacheHits=" + sCacheHits
+                + " lastLookup=" + sLastLookupTime + " ms";
+    }
+
+    /**
+     * Requests a single update from the enabled providers and waits for the
+     * first fix to arrive, or for all of them to answer without one.
+     *
+     * @param locationManager The LocationManager.
+     * @return The location or null if none arrived in time.
+     */
+    @SuppressLint("MissingPermission")
+    private static Location requestUpdate(LocationManager locationManager) {
+        List<String> providers = new ArrayList<>();
+        for (String provider : new String[]{LocationManager.NETWORK_PROVIDER,
+                LocationManager.GPS_PROVIDER}) {
+            if (locationManager.isProviderEnabled(provider)) {
+                providers.add(provider);
+            }
+        }
+        if (providers.isEmpty()) {
+            return null;
+        }
+        final Location[] result = new Location[1];
+        // Counted down once by each provider, and to 0 by the first fix
+        final CountDownLatch latch = new CountDownLatch(providers.size());
+        CancellationSignal cancellationSignal = new CancellationSignal();
+        for (String provider : providers) {
+            LocationManagerCompat.getCurrentLocation(locationManager,
+                    provider, cancellationSignal, Runnable::run,
+                    location -> {
+                        if (location == null) {
+                            latch.countDown();
+                            return;
+                        }
+                        synchronized (result) {
+                            if (result[0] == null) {
+                                result[0] = location;
+                            }
+                        }
+                        while (latch.getCount() > 0) {
+                            latch.countDown();
+                        }
+                    });
+        }
+        try {
+            latch.await(UPDATE_TIMEOUT, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } finally {
+            cancellationSignal.cancel();
+        }
+        synchronized (result) {
+            return result[0];
+        }
+    }
+
+    private static synchronized void cache(Location location) {
+        sLocation = better(sLocation, location);
+    }
+
+    private static synchronized void finishLookup(long start, String source) {
+        sLastLookupTime = SystemClock.elapsedRealtime() - start;
+        Log.d(TAG, "LocationCache: lookup from " + source + " took "
+                + sLastLookupTime + " ms");
+    }
+
+    /**
+     * Gets the age of a fix.
+     *
+     * @param location The location.
+     * @return The age in ms.
+     */
+    private static long getAge(Location location) {
+        return (SystemClock.elapsedRealtimeNanos()
+                - location.getElapsedRealtimeNanos()) / 1000000L;
+    }
+
+    private static boolean isFresh(Location location) {
+        return location != null && getAge(location) <= MAX_AGE
+                && location.hasAccuracy()
+                && location.getAccuracy() <= MAX_ACCURACY;
+    }
+
+    /**
+     * Returns the better of two fixes. A fresh fix is better than one that
+     * is not, and otherwise the newer one is better.
+     *
+     * @param location1 The first location, may be null.
+     * @param location2 The second location, may be null.
+     * @return The better location.
+     */
+    private static Location better(Location location1, Location location2) {
+        if (location1 == null) return location2;
+        if (location2 == null) return location1;
+        boolean fresh1 = isFresh(location1);
+        boolean fresh2 = isFresh(location2);
+        if (fresh1 != fresh2) {
+            return fresh1 ? location1 : location2;
+        }
+        return location1.getElapsedRealtimeNanos() >=
+                location2.getElapsedRealtimeNanos() ? location1 : location2;
+    }
+}
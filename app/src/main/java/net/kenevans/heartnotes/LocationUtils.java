@@ -22,23 +22,14 @@
 package net.kenevans.heartnotes;
 
 import android.Manifest;
-import android.app.Activity;
 import android.content.Context;
 import android.content.SharedPreferences;
 import android.content.pm.PackageManager;
 import android.location.Location;
-import android.location.LocationManager;
+import android.os.SystemClock;
 import android.util.Log;
 
-import org.json.JSONObject;
-
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
-import java.lang.ref.WeakReference;
-import java.net.HttpURLConnection;
-import java.net.URL;
-import java.util.Date;
-import java.util.Locale;
+import java.net.SocketTimeoutException;
 
 import androidx.core.app.ActivityCompat;
 
@@ -48,17 +39,34 @@ import androidx.core.app.ActivityCompat;
  */
 public class LocationUtils implements IConstants {
     /**
-     * Gets the current location first trying GPS then Network.
+     * The result of getWeather. Immutable.
+     */
+    public static class WeatherResult {
+        /**
+         * The weather String, a message saying why it could not be
+         * gotten, or null if there is no location permission.
+         */
+        public final String weather;
+        /**
+         * Whether getting the weather failed.
+         */
+        public final boolean failed;
+
+        private WeatherResult(String weather, boolean failed) {
+            this.weather = weather;
+            this.failed = failed;
+        }
+    }
+
+    /**
+     * Gets a recent location. Uses the LocationCache, which only goes to the
+     * GPS and Network providers when the cached fix is too old.
      *
      * @param context The context.
-     * @return The Location.
+     * @return The Location or null if there is none recent enough.
+     * @see LocationCache
      */
     public static Location findLocation(Context context) {
-        Location location;
-        LocationManager locationManager = (LocationManager) context
-                .getSystemService(Context.LOCATION_SERVICE);
-        String gpsProvider = LocationManager.GPS_PROVIDER;
-        String networkProvider = LocationManager.NETWORK_PROVIDER;
         if (ActivityCompat.checkSelfPermission(context,
                 Manifest.permission.ACCESS_FINE_LOCATION) !=
                 PackageManager.PERMISSION_GRANTED &&
@@ -67,124 +75,65 @@ public class LocationUtils implements IConstants {
                         PackageManager.PERMISSION_GRANTED) {
             return null;
         }
-        location = locationManager.getLastKnownLocation(gpsProvider);
-        if (location == null) {
-            location = locationManager.getLastKnownLocation(networkProvider);
-        }
-        return location;
+        return LocationCache.getLocation(context);
     }
 
     /**
-     * Gets a weather String for OpenWeatherMap.
+     * Gets a weather String from the current WeatherProvider. Does network
+     * I/O and should not be called on the main thread.
      *
-     * @param activityRef The WeakReference to the activity
-     * @return The weather String.
+     * @param context The context.
+     * @return The WeatherResult.
+     * @see WeatherProviders
      */
-    public static String getOpenWeather(WeakReference<Activity> activityRef) {
-        Log.d(TAG, "LocationUtils " + ".getOpenWeather: ");
-        if (ActivityCompat.checkSelfPermission(activityRef.get(),
+    public static WeatherResult getWeather(Context context) {
+        Log.d(TAG, "LocationUtils " + ".getWeather: ");
+        if (ActivityCompat.checkSelfPermission(context,
                 Manifest.permission.ACCESS_FINE_LOCATION) !=
                 PackageManager.PERMISSION_GRANTED &&
-                ActivityCompat.checkSelfPermission(activityRef.get(),
+                ActivityCompat.checkSelfPermission(context,
                         Manifest.permission.ACCESS_COARSE_LOCATION) !=
                         PackageManager.PERMISSION_GRANTED) {
-            return null;
+            return new WeatherResult(null, true);
         }
         // Get the location
-        Location location = findLocation(activityRef.get());
+        Location location = findLocation(context);
         if (location == null) {
             Log.d(TAG, "  location=null");
-            return "Failed to find location for weather.";
+            return new WeatherResult("Failed to find location for weather.",
+                    true);
         }
         Log.d(TAG,
                 "  location=" + location.getLatitude() + ","
                         + location.getLongitude());
+        WeatherProvider provider = WeatherProviders.getProvider(context);
         // Get the OpenWeather key
-        SharedPreferences prefs = activityRef.get().getSharedPreferences(
-                "HeartNotesActivity", Context.MODE_PRIVATE);
+        SharedPreferences prefs = context.getSharedPreferences(
+                MAIN_ACTIVITY, Context.MODE_PRIVATE);
         String key = prefs.getString(PREF_OPENWEATHER_KEY, null);
-        if (key == null || key.isEmpty()) {
+        if (provider.needsKey() && (key == null || key.isEmpty())) {
             Log.d(TAG, "  no key");
-            return "No OpenWeather Key found.";
+            return new WeatherResult("No OpenWeather Key found.", true);
         }
 
-        try {
-            URL url = new URL(String.format(Locale.US, OPEN_WEATHER_MAP_API,
-                    location.getLatitude(), location.getLongitude(), key));
-            Log.d(TAG, "  url=" + url.getFile());
-            HttpURLConnection connection =
-                    (HttpURLConnection) url.openConnection();
-            int responseCode = connection.getResponseCode();
-            if (responseCode != 200) {
-                Log.d(TAG, "  response code not 200");
-                return "Get weather failed: responseCode=" + responseCode + ".";
-            }
-
-            BufferedReader reader = new BufferedReader(
-                    new InputStreamReader(connection.getInputStream()));
-            StringBuilder json = new StringBuilder(1024);
-            String line;
-            while ((line = reader.readLine()) != null)
-                json.append(line).append("\n");
-            reader.close();
-            JSONObject data = new JSONObject(json.toString());
-            return parseOpenWeather(data) + ".";
+        long start = SystemClock.elapsedRealtime();
+        boolean failed = true;
+        try (MainThreadIo.Scope ignored =
+                     MainThreadIo.enter("net.getWeather")) {
+            String weather = provider.getWeather(location.getLatitude(),
+                    location.getLongitude(), key);
+            failed = false;
+            return new WeatherResult(weather, false);
+        } catch (SocketTimeoutException ex) {
+            Log.d(TAG, "  timed out");
+            return new WeatherResult("Get weather failed: timed out.", true);
         } catch (Exception ex) {
             Log.d(TAG, "  exception");
-            return "Get weather failed: exception=" + ex + ".";
-        }
-    }
-
-    /**
-     * Parses the JSONObject from OpenWeatherMap.
-     *
-     * @param json The JSONObject to parse.
-     * @return The String generated from the JSONObject.
-     */
-    private static String parseOpenWeather(JSONObject json) {
-        String info = "";
-        JSONObject current;
-        String strVal;
-        double val;
-        try {
-            current = json.getJSONObject("current");
-        } catch (Exception ex) {
-            info += "Current weather not found";
-            return info;
-        }
-        boolean first = true;
-        try {
-            val = current.getDouble("temp");
-            strVal = String.format(Locale.US, "%.0f", val);
-            info += "temp=" + strVal + "°F";
-            first = false;
-        } catch (Exception ex) {
+            return new WeatherResult("Get weather failed: exception=" + ex
+                    + ".", true);
+        } finally {
+            WeatherProviders.recordLatency(provider,
+                    SystemClock.elapsedRealtime() - start, failed);
         }
-        if (!first) info += " ";
-        try {
-            val = current.getDouble("feels_like");
-            strVal = String.format(Locale.US, "%.0f", val);
-            info += "(feels like " + strVal + "°F)";
-        } catch (Exception ex) {
-        }
-        if (!first) info += " ";
-        try {
-            strVal = current.getString("humidity");
-            info += "humidity=" + strVal + "%";
-        } catch (Exception ex) {
-        }
-        if (!first) info += " ";
-        try {
-            long timeval = 1000L * current.getLong("dt");
-            Date date = null;
-            if (timeval != 0) {
-                date = new Date(timeval);
-            }
-            info += "on " + date;
-        } catch (Exception ex) {
-        }
-        if (first) info += "No data found";
-        return info;
     }
-
 }
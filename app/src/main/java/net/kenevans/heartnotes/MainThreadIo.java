@@ -0,0 +1,240 @@
+package net.kenevans.heartnotes;
+
+import android.os.Looper;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Detects disk and network access on the main thread. The database adapter
+ * and the I/O helpers wrap their blocking calls as
+ * <pre>
+ * try (MainThreadIo.Scope ignored = MainThreadIo.enter("db.fetchData")) {
+ *     ...
+ * }
+ * </pre>
+ * When enabled, each such call made on the main thread is recorded with its
+ * call site and duration, and the records are aggregated by operation and
+ * call site. In strict mode the call throws a Violation instead, which lets
+ * a JVM test fail when a UI path does blocking I/O. The test can set its
+ * own Predicate for which thread counts as the main thread.
+ * <p/>
+ * When disabled, or off the main thread, enter only does the check and
+ * returns a shared no-op Scope.
+ */
+public class MainThreadIo {
+    /**
+     * Decides whether the current thread is the main thread.
+     */
+    public interface Predicate {
+        boolean isMainThread();
+    }
+
+    /**
+     * Thrown in strict mode when I/O is done on the main thread.
+     */
+    public static class Violation extends RuntimeException {
+        public Violation(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * Marks the end of an I/O call. Does not throw from close.
+     */
+    public interface Scope extends AutoCloseable {
+        @Override
+        void close();
+    }
+
+    private static final Scope NO_OP = () -> {
+    };
+    /**
+     * The classes that call enter and those that only wrap them, which are
+     * skipped to find the call site. Nested classes and lambdas are
+     * matched by the name of the outermost class.
+     */
+    private static final Set<String> INSTRUMENTED =
+            new HashSet<>(Arrays.asList(MainThreadIo.class.getName(),
+                    HeartNotesDbAdapter.class.getName(),
+                    JournalingStore.class.getName(),
+                    CaptureJournal.class.getName(),
+                    UriUtils.class.getName(),
+                    BackupWriter.class.getName(),
+                    LocationUtils.class.getName()));
+    private static final Map<String, Stats> sStats = new HashMap<>();
+    private static volatile boolean sEnabled;
+    private static volatile boolean sStrict;
+    private static volatile Predicate sPredicate = () ->
+            Looper.getMainLooper().getThread() == Thread.currentThread();
+
+    public static void setEnabled(boolean enabled) {
+        sEnabled = enabled;
+    }
+
+    public static boolean isEnabled() {
+        return sEnabled;
+    }
+
+    /**
+     * Sets whether main thread I/O throws a Violation rather than being
+     * recorded. Also enables detection when set.
+     *
+     * @param strict Whether to throw.
+     */
+    public static void setStrict(boolean strict) {
+        sStrict = strict;
+        if (strict) sEnabled = true;
+    }
+
+    /**
+     * Sets the Predicate that decides what the main thread is.
+     *
+     * @param predicate The Predicate.
+     */
+    public static void setPredicate(Predicate predicate) {
+        sPredicate = predicate;
+    }
+
+    /**
+     * Called at the start of a blocking I/O call.
+     *
+     * @param operation The name of the operation, such as "db.fetchData".
+     * @return The Scope to close at the end of the call.
+     * @throws Violation In strict mode, if called on the main thread.
+     */
+    public static Scope enter(final String operation) {
+        if (!sEnabled || !sPredicate.isMainThread()) {
+            return NO_OP;
+        }
+        final String callSite = findCallSite();
+        if (sStrict) {
+            throw new Violation(operation + " on the main thread from "
+                    + callSite);
+        }
+        final long start = System.nanoTime();
+        return () -> record(operation + " @ " + callSite,
+                (System.nanoTime() - start) / 1000);
+    }
+
+    /**
+     * Clears the records.
+     */
+    public static void clear() {
+        synchronized (sStats) {
+            sStats.clear();
+        }
+    }
+
+    /**
+     * Gets the number of main thread I/O calls recorded.
+     *
+     * @return The count.
+     */
+    public static long getCount() {
+        long count = 0;
+        synchronized (sStats) {
+            for (Stats stats : sStats.values()) {
+                count += stats.count;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Gets the aggregated report, with the most total time first.
+     *
+     * @return The report.
+     */
+    public static String getReport() {
+        List<Map.Entry<String, Stats>> entries;
+        synchronized (sStats) {
+            entries = new ArrayList<>();
+            for (Map.Entry<String, Stats> entry : sStats.entrySet()) {
+                entries.add(new AbstractMap.SimpleEntry<>(
+                        entry.getKey(), entry.getValue().copy()));
+            }
+        }
+        Collections.sort(entries, (e1, e2) ->
+                Long.compare(e2.getValue().total, e1.getValue().total));
+        StringBuilder sb = new StringBuilder();
+        sb.append("Main thread I/O");
+        if (!sEnabled) sb.append(" (detection is off)");
+        sb.append("\n");
+        if (entries.isEmpty()) {
+            sb.append("None recorded\n");
+        }
+        for (Map.Entry<String, Stats> entry : entries) {
+            Stats stats = entry.getValue();
+            sb.append(String.format(Locale.US,
+                    "%s: n=%d total=%d max=%d us\n", entry.getKey(),
+                    stats.count, stats.total, stats.max));
+        }
+        return sb.toString();
+    }
+
+    private static void record(String key, long duration) {
+        synchronized (sStats) {
+            Stats stats = sStats.get(key);
+            if (stats == null) {
+                stats = new Stats();
+                sStats.put(key, stats);
+            }
+            stats.count++;
+            stats.total += duration;
+            if (duration > stats.max) stats.max = duration;
+        }
+    }
+
+    /**
+     * Finds the first caller outside the INSTRUMENTED classes, which is
+     * the UI code that started the I/O.
+     *
+     * @return The call site as Class.method:line.
+     */
+    private static String findCallSite() {
+        StackTraceElement[] stack = new Throwable().getStackTrace();
+        int i = 0;
+        while (i < stack.length && INSTRUMENTED.contains(
+                getOuterClassName(stack[i].getClassName()))) {
+            i++;
+        }
+        if (i >= stack.length) {
+            return "unknown";
+        }
+        StackTraceElement caller = stack[i];
+        String className = caller.getClassName();
+        return className.substring(className.lastIndexOf('.') + 1) + "."
+                + caller.getMethodName() + ":" + caller.getLineNumber();
+    }
+
+    private static String getOuterClassName(String className) {
+        int index = className.indexOf('$');
+        return index < 0 ? className : className.substring(0, index);
+    }
+
+    /**
+     * The aggregated times for one operation and call site, in us.
+     */
+    private static class Stats {
+        long count;
+        long total;
+        long max;
+
+        Stats copy() {
+            Stats stats = new Stats();
+            stats.count = count;
+            stats.total = total;
+            stats.max = max;
+            return stats;
+        }
+    }
+}
@@ -0,0 +1,183 @@
+//Copyright (c) 2011 Kenneth Evans
+//
+//Permission is hereby granted, free of charge, to any person obtaining
+//a copy of this software and associated documentation files (the
+//"Software"), to deal in the Software without restriction, including
+//without limitation the rights to use, copy, modify, merge, publish,
+//distribute, sublicense, and/or sell copies of the Software, and to
+//permit persons to whom the Software is furnished to do so, subject to
+//the following conditions:
+//
+//The above copyright notice and this permission notice shall be included
+//in all copies or substantial portions of the Software.
+//
+//THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+//EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+//MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+//IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY
+//CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+//TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+//SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+
+package net.kenevans.heartnotes;
+
+import android.util.JsonReader;
+import android.util.JsonToken;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
+import java.util.Locale;
+
+/**
+ * WeatherProvider for the OpenWeatherMap One Call API.
+ */
+public class OpenWeatherMapProvider implements WeatherProvider, IConstants {
+    public static final String NAME = "OpenWeatherMap";
+
+    private final String mName;
+    private final String mApiFormat;
+
+    /**
+     * Constructor for the live service.
+     */
+    public OpenWeatherMapProvider() {
+        this(NAME, OPEN_WEATHER_MAP_API);
+    }
+
+    /**
+     * Constructor for a service at another URL, such as a stub server.
+     *
+     * @param name      The name of the provider.
+     * @param apiFormat The format for the URL with the latitude, longitude,
+     *                  and key in that order. See OPEN_WEATHER_MAP_API.
+     */
+    public OpenWeatherMapProvider(String name, String apiFormat) {
+        mName = name;
+        mApiFormat = apiFormat;
+    }
+
+    @Override
+    public String getName() {
+        return mName;
+    }
+
+    @Override
+    public boolean needsKey() {
+        return true;
+    }
+
+    @Override
+    public String getWeather(double latitude, double longitude, String key)
+            throws IOException {
+        HttpURLConnection connection = null;
+        try {
+            URL url = new URL(String.format(Locale.US, mApiFormat,
+                    latitude, longitude, key));
+            Log.d(TAG, "  url=" + url.getFile());
+            connection = (HttpURLConnection) url.openConnection();
+            connection.setConnectTimeout(WEATHER_CONNECT_TIMEOUT);
+            connection.setReadTimeout(WEATHER_READ_TIMEOUT);
+            int responseCode = connection.getResponseCode();
+            if (responseCode != 200) {
+                Log.d(TAG, "  response code not 200");
+                throw new IOException("responseCode=" + responseCode);
+            }
+
+            // Stream the response and pull out only what is needed
+            try (JsonReader reader = new JsonReader(new InputStreamReader(
+                    connection.getInputStream(), StandardCharsets.UTF_8))) {
+                return parseOpenWeather(reader) + ".";
+            }
+        } finally {
+            if (connection != null) {
+                connection.disconnect();
+            }
+        }
+    }
+
+    /**
+     * Parses the response from OpenWeatherMap. Only the fields of "current"
+     * that are used are read. Everything else is skipped without being
+     * converted, and reading stops once "current" has been parsed.
+     *
+     * @param reader The JsonReader positioned at the start of the response.
+     * @return The String generated from the response.
+     * @throws IOException If the response cannot be read or is malformed.
+     */
+    static String parseOpenWeather(JsonReader reader) throws IOException {
+        boolean foundCurrent = false;
+        double temp = Double.NaN;
+        double feelsLike = Double.NaN;
+        String humidity = null;
+        Long dt = null;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if (!"current".equals(reader.nextName())
+                    || reader.peek() != JsonToken.BEGIN_OBJECT) {
+                reader.skipValue();
+                continue;
+            }
+            foundCurrent = true;
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if (reader.peek() == JsonToken.NULL) {
+                    reader.skipValue();
+                    continue;
+                }
+                switch (name) {
+                    case "temp":
+                        temp = reader.nextDouble();
+                        break;
+                    case "feels_like":
+                        feelsLike = reader.nextDouble();
+                        break;
+                    case "humidity":
+                        humidity = reader.nextString();
+                        break;
+                    case "dt":
+                        dt = reader.nextLong();
+                        break;
+                    default:
+                        reader.skipValue();
+                        break;
+                }
+            }
+            reader.endObject();
+            // Nothing else is needed
+            break;
+        }
+        if (!foundCurrent) {
+            return "Current weather not found";
+        }
+
+        StringBuilder info = new StringBuilder(80);
+        boolean first = true;
+        if (!Double.isNaN(temp)) {
+            info.append("temp=").append(String.format(Locale.US, "%.0f",
+                    temp)).append("°F");
+            first = false;
+        }
+        if (!first) info.append(' ');
+        if (!Double.isNaN(feelsLike)) {
+            info.append("(feels like ").append(String.format(Locale.US,
+                    "%.0f", feelsLike)).append("°F)");
+        }
+        if (!first) info.append(' ');
+        if (humidity != null) {
+            info.append("humidity=").append(humidity).append('%');
+        }
+        if (!first) info.append(' ');
+        if (dt != null) {
+            long timeval = 1000L * dt;
+            info.append("on ").append(timeval != 0 ? new Date(timeval) : null);
+        }
+        if (first) info.append("No data found");
+        return info.toString();
+    }
+}
@@ -0,0 +1,24 @@
+package net.kenevans.heartnotes;
+
+/**
+ * Used by a long job to report progress and check for cancellation. It
+ * has no Android dependencies, so code that takes one, such as
+ * DatasetGenerator, can also be used on a desktop JVM. JobRunner supplies
+ * one for the jobs it runs.
+ */
+public interface Progress {
+    /**
+     * Reports progress. Updates may be throttled.
+     *
+     * @param done  The amount done.
+     * @param total The total amount or -1 if not known.
+     */
+    void update(long done, long total);
+
+    /**
+     * Returns whether the job has been cancelled and should stop.
+     *
+     * @return If it has.
+     */
+    boolean isCancelled();
+}
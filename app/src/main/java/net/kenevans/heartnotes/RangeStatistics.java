@@ -0,0 +1,110 @@
+package net.kenevans.heartnotes;
+
+import java.util.Locale;
+
+/**
+ * The statistics of count, total and count / total for the rows in a date
+ * range that pass a Filter, as returned by
+ * HeartNotesDbAdapter.getRangeStatistics. The percentiles of count and
+ * total are exact. Those of the ratio are to the nearest RATIO_STEP.
+ * Immutable.
+ */
+public class RangeStatistics {
+    /**
+     * The percentiles that are computed.
+     */
+    public static final int[] PERCENTILES = {25, 50, 75, 90, 99};
+    /**
+     * The bin width for the ratio percentiles.
+     */
+    public static final double RATIO_STEP = .001;
+
+    /**
+     * The statistics of one column. The values are NaN if there are no
+     * rows with a value.
+     */
+    public static class Column {
+        public final String name;
+        /**
+         * The number of rows with a value.
+         */
+        public final int rows;
+        public final double min;
+        public final double max;
+        public final double mean;
+        public final double sum;
+        /**
+         * The values at PERCENTILES.
+         */
+        public final double[] percentiles;
+
+        public Column(String name, int rows, double min, double max,
+                      double mean, double sum, double[] percentiles) {
+            this.name = name;
+            this.rows = rows;
+            this.min = min;
+            this.max = max;
+            this.mean = mean;
+            this.sum = sum;
+            this.percentiles = percentiles;
+        }
+    }
+
+    public final Filter filter;
+    public final long start;
+    public final long end;
+    /**
+     * The data version they were computed at.
+     */
+    public final long version;
+    public final int rows;
+    public final Column count;
+    public final Column total;
+    public final Column ratio;
+
+    public RangeStatistics(Filter filter, long start, long end, long version,
+                           int rows, Column count, Column total,
+                           Column ratio) {
+        this.filter = filter;
+        this.start = start;
+        this.end = end;
+        this.version = version;
+        this.rows = rows;
+        this.count = count;
+        this.total = total;
+        this.ratio = ratio;
+    }
+
+    /**
+     * Formats the statistics as a table, one column per line.
+     *
+     * @return The table.
+     */
+    public String format() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(rows).append(" entries\n");
+        if (rows == 0) return sb.toString();
+        sb.append(String.format(Locale.US, "%-6s %7s %7s %7s %8s", "",
+                "Min", "Max", "Mean", "Sum"));
+        for (int percentile : PERCENTILES) {
+            sb.append(String.format(Locale.US, " %6s", "P" + percentile));
+        }
+        sb.append("\n");
+        for (Column column : new Column[]{count, total, ratio}) {
+            boolean isRatio = column == ratio;
+            String format = isRatio ? " %7.3f" : " %7.0f";
+            sb.append(String.format(Locale.US, "%-6s", column.name));
+            sb.append(String.format(Locale.US, format, column.min));
+            sb.append(String.format(Locale.US, format, column.max));
+            sb.append(String.format(Locale.US, " %7.3f", column.mean));
+            sb.append(String.format(Locale.US, isRatio ? " %8.2f" : " %8.0f",
+                    column.sum));
+            for (double value : column.percentiles) {
+                sb.append(String.format(Locale.US,
+                        isRatio ? " %6.3f" : " %6.0f", value));
+            }
+            sb.append("\n");
+        }
+        return sb.toString();
+    }
+}
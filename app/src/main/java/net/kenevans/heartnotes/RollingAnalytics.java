@@ -0,0 +1,471 @@
+package net.kenevans.heartnotes;
+
+import android.content.Context;
+import android.os.Process;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the rolling statistics of the live entries: the count / total ratio
+ * over the last 24 hours, the 7-day moving averages and the time-of-day
+ * profile. The sums are kept per hour, so the windows are to the hour, and
+ * only the last RETAIN_DAYS of hours are kept. The profile and the overall
+ * sums cover all the entries.
+ * <p/>
+ * HeartNotesDbAdapter sends a Change with the rows before and after each
+ * write, so the state is updated incrementally. It is saved to a file
+ * shortly after a change along with the data version it reflects. If that
+ * is not the current data version, for example after a restore or a crash
+ * between the write and the save, the state is rebuilt in one pass over
+ * the table the next time it is needed. There is one instance per
+ * process.
+ */
+public class RollingAnalytics implements IConstants {
+    public static final String STATE_NAME = "HeartNotes.analytics";
+    /**
+     * The number of days of hourly sums to keep.
+     */
+    public static final int RETAIN_DAYS = 14;
+    /**
+     * Delay in ms after a change before saving.
+     */
+    public static final long SAVE_DELAY = 2000;
+    private static final long HOUR = 60 * 60 * 1000;
+    private static final long DAY = 24 * HOUR;
+    private static final int MAGIC = 0x484e4131; // HNA1
+    /**
+     * The number of times to rebuild if the data changes while rebuilding.
+     */
+    private static final int REBUILD_TRIES = 3;
+
+    private static RollingAnalytics sInstance;
+
+    private final Context mContext;
+    private final File mFile;
+    private final ScheduledExecutorService mExecutor =
+            Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(() -> {
+                    Process.setThreadPriority(
+                            Process.THREAD_PRIORITY_BACKGROUND);
+                    runnable.run();
+                }, "RollingAnalytics");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    /**
+     * The state or null if there is none. Guarded by this, as are the
+     * other fields.
+     */
+    private State mState;
+    /**
+     * The data version mState reflects.
+     */
+    private long mVersion = -1;
+    private boolean mLoaded;
+    private ScheduledFuture<?> mScheduled;
+
+    /**
+     * Sums of count and total over a set of rows.
+     */
+    public static class Sums {
+        public int rows;
+        public long count;
+        public long total;
+
+        void add(long count, long total, int sign) {
+            this.rows += sign;
+            this.count += sign * count;
+            this.total += sign * total;
+        }
+
+        void add(Sums sums) {
+            rows += sums.rows;
+            count += sums.count;
+            total += sums.total;
+        }
+
+        /**
+         * @return The count / total ratio or NaN if the total is 0.
+         */
+        public double getRatio() {
+            return total > 0 ? (double) count / total : Double.NaN;
+        }
+    }
+
+    /**
+     * The sums per hour, per local hour of the day and overall. Also used
+     * for the differences in a Change, where the sums can be negative.
+     */
+    public static class State {
+        final TimeZone mTimeZone;
+        final TreeMap<Long, Sums> mHours = new TreeMap<>();
+        final Sums[] mProfile = new Sums[24];
+        final Sums mAll = new Sums();
+
+        State(TimeZone timeZone) {
+            mTimeZone = timeZone;
+            for (int i = 0; i < mProfile.length; i++) {
+                mProfile[i] = new Sums();
+            }
+        }
+
+        /**
+         * Adds a row, or removes one if sign is -1.
+         *
+         * @param date  The date in ms.
+         * @param count The count.
+         * @param total The total.
+         * @param sign  1 to add or -1 to remove.
+         */
+        public void add(long date, long count, long total, int sign) {
+            long hour = date / HOUR;
+            Sums sums = mHours.get(hour);
+            if (sums == null) {
+                sums = new Sums();
+                mHours.put(hour, sums);
+            }
+            sums.add(count, total, sign);
+            mProfile[getHourOfDay(date)].add(count, total, sign);
+            mAll.add(count, total, sign);
+        }
+
+        private void add(State state) {
+            for (Map.Entry<Long, Sums> entry : state.mHours.entrySet()) {
+                Sums sums = mHours.get(entry.getKey());
+                if (sums == null) {
+                    sums = new Sums();
+                    mHours.put(entry.getKey(), sums);
+                }
+                sums.add(entry.getValue());
+                if (sums.rows == 0) mHours.remove(entry.getKey());
+            }
+            for (int i = 0; i < mProfile.length; i++) {
+                mProfile[i].add(state.mProfile[i]);
+            }
+            mAll.add(state.mAll);
+        }
+
+        private int getHourOfDay(long date) {
+            return (int) ((date + mTimeZone.getOffset(date)) / HOUR % 24);
+        }
+
+        /**
+         * Drops the hourly sums from before the given time.
+         *
+         * @param before The time in ms.
+         */
+        private void prune(long before) {
+            mHours.headMap(before / HOUR).clear();
+        }
+
+        /**
+         * Gets the sums for the hours that start in the given range.
+         *
+         * @param start The start in ms.
+         * @param end   The end in ms, exclusive.
+         * @return The sums.
+         */
+        private Sums getSums(long start, long end) {
+            Sums sums = new Sums();
+            for (Sums hour : mHours.subMap(start / HOUR, end / HOUR)
+                    .values()) {
+                sums.add(hour);
+            }
+            return sums;
+        }
+    }
+
+    /**
+     * The difference a write makes, from the rows it affects before and
+     * after it. Made by begin and given to apply.
+     */
+    public static class Change extends State {
+        private final long mFromVersion;
+
+        private Change(TimeZone timeZone, long fromVersion) {
+            super(timeZone);
+            mFromVersion = fromVersion;
+        }
+    }
+
+    private RollingAnalytics(Context context, File file) {
+        mContext = context;
+        mFile = file;
+    }
+
+    /**
+     * Gets the instance for the process. The state is not read until it
+     * is used.
+     *
+     * @param context The context.
+     * @return The instance.
+     */
+    public static synchronized RollingAnalytics getInstance(Context context) {
+        if (sInstance == null) {
+            Context appContext = context.getApplicationContext();
+            File dir = appContext.getExternalFilesDir(null);
+            sInstance = new RollingAnalytics(appContext,
+                    new File(dir, STATE_NAME));
+        }
+        return sInstance;
+    }
+
+    /**
+     * Starts a Change. Call it before the write, then add the affected
+     * rows as they are before with sign -1 and after with sign 1.
+     *
+     * @return The Change.
+     */
+    public Change begin() {
+        return new Change(TimeZone.getDefault(),
+                HeartNotesDbAdapter.getDataVersion(mContext));
+    }
+
+    /**
+     * Applies a Change if the state is at the version the Change started
+     * from and the write was the only one since. Otherwise the state is
+     * left as is and is rebuilt when next used, since some other change
+     * has been missed.
+     *
+     * @param change    The Change.
+     * @param toVersion The data version after the write.
+     */
+    public synchronized void apply(Change change, long toVersion) {
+        load();
+        if (mState == null || mVersion != change.mFromVersion
+                || toVersion != change.mFromVersion + 1
+                || !mState.mTimeZone.getID().equals(
+                change.mTimeZone.getID())) {
+            return;
+        }
+        mState.add(change);
+        mState.prune(System.currentTimeMillis() - RETAIN_DAYS * DAY);
+        mVersion = toVersion;
+        scheduleSave();
+    }
+
+    /**
+     * Gets a report of the rolling statistics, rebuilding the state first
+     * if it is not current. Does I/O and should not be called on the main
+     * thread.
+     *
+     * @param dbAdapter An open adapter for the app's database.
+     * @return The report.
+     */
+    public String getReport(HeartNotesDbAdapter dbAdapter) {
+        for (int i = 0; i < REBUILD_TRIES && !isCurrent(); i++) {
+            rebuild(dbAdapter);
+        }
+        long now = System.currentTimeMillis();
+        SimpleDateFormat dayFormat = new SimpleDateFormat("EEE MMM d",
+                Locale.US);
+        StringBuilder sb = new StringBuilder();
+        synchronized (this) {
+            State state = mState;
+            if (state == null) return "No data";
+            sb.append(String.format(Locale.US, "%d entries, count %d"
+                            + " / total %d = %s\n", state.mAll.rows,
+                    state.mAll.count, state.mAll.total,
+                    formatRatio(state.mAll.getRatio())));
+
+            long hourEnd = (now / HOUR + 1) * HOUR;
+            Sums last = state.getSums(hourEnd - DAY, hourEnd);
+            sb.append(String.format(Locale.US, "\nLast 24 hours\n%d entries,"
+                            + " count %d / total %d = %s\n", last.rows,
+                    last.count, last.total, formatRatio(last.getRatio())));
+
+            sb.append("\n7-day averages per day\n");
+            sb.append(String.format(Locale.US, "%-11s %7s %7s %6s\n",
+                    "Ending", "Entries", "Count", "Ratio"));
+            long dayEnd = getStartOfDay(now) + DAY;
+            for (int i = 0; i < 7; i++) {
+                long end = dayEnd - i * DAY;
+                Sums week = state.getSums(end - 7 * DAY, end);
+                sb.append(String.format(Locale.US, "%-11s %7.1f %7.1f %6s\n",
+                        dayFormat.format(new Date(end - 1)),
+                        week.rows / 7.0, week.count / 7.0,
+                        formatRatio(week.getRatio())));
+            }
+
+            sb.append("\nTime of day\n");
+            sb.append(String.format(Locale.US, "%-5s %7s %7s %6s\n",
+                    "Hour", "Entries", "Count", "Ratio"));
+            for (int hour = 0; hour < 24; hour++) {
+                Sums sums = state.mProfile[hour];
+                if (sums.rows == 0) continue;
+                sb.append(String.format(Locale.US, "%02d:00 %7d %7.1f %6s\n",
+                        hour, sums.rows, (double) sums.count / sums.rows,
+                        formatRatio(sums.getRatio())));
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Returns whether the state is loaded and reflects the current data
+     * and time zone.
+     *
+     * @return If it is current.
+     */
+    private synchronized boolean isCurrent() {
+        load();
+        return mState != null
+                && mVersion == HeartNotesDbAdapter.getDataVersion(mContext)
+                && mState.mTimeZone.getID().equals(
+                TimeZone.getDefault().getID());
+    }
+
+    /**
+     * Rebuilds the state from the table in one pass. The table is read
+     * without holding the lock, so writes are not held up. If one happens
+     * meanwhile, the new state is not current and the caller tries again.
+     *
+     * @param dbAdapter An open adapter for the app's database.
+     */
+    private void rebuild(HeartNotesDbAdapter dbAdapter) {
+        long start = Timings.start();
+        long version = HeartNotesDbAdapter.getDataVersion(mContext);
+        State state = new State(TimeZone.getDefault());
+        dbAdapter.addCountTotals(null, state, 1);
+        state.prune(System.currentTimeMillis() - RETAIN_DAYS * DAY);
+        synchronized (this) {
+            mState = state;
+            mVersion = version;
+            mLoaded = true;
+            scheduleSave();
+        }
+        Timings.stop(Timings.ANALYTICS_REBUILD, start);
+        Log.d(TAG, "RollingAnalytics: rebuilt from " + state.mAll.rows
+                + " rows");
+    }
+
+    /**
+     * Reads the saved state if it has not been read. Must be called holding
+     * this.
+     */
+    private void load() {
+        if (mLoaded) return;
+        mLoaded = true;
+        if (!mFile.exists()) return;
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(mFile)))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not an analytics file");
+            }
+            long version = in.readLong();
+            State state = new State(TimeZone.getTimeZone(in.readUTF()));
+            readSums(in, state.mAll);
+            for (Sums sums : state.mProfile) {
+                readSums(in, sums);
+            }
+            int hours = in.readInt();
+            for (int i = 0; i < hours; i++) {
+                long hour = in.readLong();
+                Sums sums = new Sums();
+                readSums(in, sums);
+                state.mHours.put(hour, sums);
+            }
+            mState = state;
+            mVersion = version;
+        } catch (IOException ex) {
+            // It will be rebuilt
+            Log.e(TAG, "RollingAnalytics: error reading " + mFile, ex);
+        }
+    }
+
+    /**
+     * Schedules a save after SAVE_DELAY, unless one is already scheduled.
+     * Must be called holding this.
+     */
+    private void scheduleSave() {
+        if (mScheduled != null && !mScheduled.isDone()) return;
+        mScheduled = mExecutor.schedule(() -> {
+            try {
+                save();
+            } catch (Exception ex) {
+                Log.e(TAG, "RollingAnalytics: error saving " + mFile, ex);
+            }
+        }, SAVE_DELAY, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Writes the state to a temporary file and renames it, so a crash
+     * leaves either the old or the new state.
+     *
+     * @throws IOException On failure.
+     */
+    private synchronized void save() throws IOException {
+        if (mState == null) return;
+        File tmp = new File(mFile.getPath() + ".tmp");
+        try (FileOutputStream fos = new FileOutputStream(tmp);
+             DataOutputStream out = new DataOutputStream(
+                     new BufferedOutputStream(fos))) {
+            out.writeInt(MAGIC);
+            out.writeLong(mVersion);
+            out.writeUTF(mState.mTimeZone.getID());
+            writeSums(out, mState.mAll);
+            for (Sums sums : mState.mProfile) {
+                writeSums(out, sums);
+            }
+            out.writeInt(mState.mHours.size());
+            for (Map.Entry<Long, Sums> entry : mState.mHours.entrySet()) {
+                out.writeLong(entry.getKey());
+                writeSums(out, entry.getValue());
+            }
+            out.flush();
+            fos.getFD().sync();
+        }
+        if (!tmp.renameTo(mFile)) {
+            throw new IOException("Cannot rename " + tmp + " to " + mFile);
+        }
+    }
+
+    private static void readSums(DataInputStream in, Sums sums)
+            throws IOException {
+        sums.rows = in.readInt();
+        sums.count = in.readLong();
+        sums.total = in.readLong();
+    }
+
+    private static void writeSums(DataOutputStream out, Sums sums)
+            throws IOException {
+        out.writeInt(sums.rows);
+        out.writeLong(sums.count);
+        out.writeLong(sums.total);
+    }
+
+    private static long getStartOfDay(long date) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis(date);
+        calendar.set(Calendar.HOUR_OF_DAY, 0);
+        calendar.set(Calendar.MINUTE, 0);
+        calendar.set(Calendar.SECOND, 0);
+        calendar.set(Calendar.MILLISECOND, 0);
+        return calendar.getTimeInMillis();
+    }
+
+    private static String formatRatio(double ratio) {
+        return Double.isNaN(ratio) ? "-" : String.format(Locale.US, "%.3f",
+                ratio);
+    }
+}
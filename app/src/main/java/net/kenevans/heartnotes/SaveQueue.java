@@ -0,0 +1,329 @@
+package net.kenevans.heartnotes;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Loads and saves single entries for the edit screen on one background
+ * writer thread, so the screen never waits for the disk. Each entry being
+ * edited has a Ticket. If a save for a Ticket is requested while an earlier
+ * one is still waiting, the earlier one is replaced, so repeated saves of
+ * the same entry, such as from onSaveInstanceState and then onPause, are
+ * written once. Loads run on the same thread, so they see any save queued
+ * before them.
+ * <p/>
+ * The callbacks and Listeners are called on the main thread.
+ */
+public class SaveQueue implements IConstants {
+    /**
+     * Receives the entry from load. The data is null if it was not found or
+     * could not be read.
+     */
+    public interface LoadCallback {
+        void onLoaded(Data data);
+    }
+
+    /**
+     * Told when a queued save or delete has been written.
+     */
+    public interface Listener {
+        /**
+         * @param deletedId The id of the entry if it was deleted, so the
+         *                  delete can be offered for undo, otherwise -1.
+         * @param error     The error message or null on success.
+         */
+        void onSaved(long deletedId, String error);
+    }
+
+    /**
+     * Identifies one entry being edited. A new entry gets its id when it
+     * is first written, and later saves update it.
+     */
+    public static class Ticket {
+        private final long mKey;
+        private final boolean mIsNew;
+        private volatile Long mRowId;
+
+        private Ticket(long key, Long rowId) {
+            mKey = key;
+            mIsNew = rowId == null;
+            mRowId = rowId;
+        }
+
+        /**
+         * @return The key for getTicket.
+         */
+        public long getKey() {
+            return mKey;
+        }
+
+        /**
+         * @return The id or null if it has not been written yet.
+         */
+        public Long getRowId() {
+            return mRowId;
+        }
+    }
+
+    private enum Kind {
+        SAVE, DELETE, UNDELETE
+    }
+
+    /**
+     * A save or delete waiting to be written.
+     */
+    private static class Op {
+        final Kind kind;
+        final long date;
+        final long dateMod;
+        final long count;
+        final long total;
+        final String comment;
+
+        Op(Kind kind, long date, long dateMod, long count, long total,
+           String comment) {
+            this.kind = kind;
+            this.date = date;
+            this.dateMod = dateMod;
+            this.count = count;
+            this.total = total;
+            this.comment = comment;
+        }
+    }
+
+    private static final ExecutorService sExecutor =
+            Executors.newSingleThreadExecutor(runnable -> {
+                Thread thread = new Thread(() -> {
+                    Process.setThreadPriority(
+                            Process.THREAD_PRIORITY_BACKGROUND);
+                    runnable.run();
+                }, "SaveQueue");
+                thread.setDaemon(true);
+                return thread;
+            });
+    private static final Handler sHandler =
+            new Handler(Looper.getMainLooper());
+
+    private static final Map<Long, Ticket> sTickets = new HashMap<>();
+    private static final Map<Ticket, Op> sPending = new HashMap<>();
+    private static final List<Listener> sListeners = new ArrayList<>();
+    private static long sNextKey = 1;
+    private static long sRequests;
+    private static long sCoalesced;
+    private static long sWrites;
+
+    /**
+     * Gets a new Ticket.
+     *
+     * @param rowId The id of the entry or null for a new one.
+     * @return The Ticket.
+     */
+    public static synchronized Ticket newTicket(Long rowId) {
+        Ticket ticket = new Ticket(sNextKey++, rowId);
+        sTickets.put(ticket.getKey(), ticket);
+        return ticket;
+    }
+
+    /**
+     * Gets the Ticket with the given key, such as after the edit screen is
+     * recreated.
+     *
+     * @param key The key.
+     * @return The Ticket or null if not found.
+     */
+    public static synchronized Ticket getTicket(long key) {
+        return sTickets.get(key);
+    }
+
+    /**
+     * Forgets the Ticket once the entry is no longer being edited. Any
+     * queued save is still written.
+     *
+     * @param ticket The Ticket.
+     */
+    public static synchronized void release(Ticket ticket) {
+        sTickets.remove(ticket.getKey());
+    }
+
+    public static synchronized void addListener(Listener listener) {
+        if (!sListeners.contains(listener)) sListeners.add(listener);
+    }
+
+    public static synchronized void removeListener(Listener listener) {
+        sListeners.remove(listener);
+    }
+
+    /**
+     * Queues saving the entry. A new entry is created with edited false,
+     * and an existing one is updated with edited true.
+     *
+     * @param context The context.
+     * @param ticket  The Ticket.
+     */
+    public static void save(Context context, Ticket ticket, long date,
+                            long dateMod, long count, long total,
+                            String comment) {
+        enqueue(context, ticket, new Op(Kind.SAVE, date, dateMod, count,
+                total, comment));
+    }
+
+    /**
+     * Queues deleting the entry. Does nothing for a new entry that was
+     * never written.
+     *
+     * @param context The context.
+     * @param ticket  The Ticket.
+     */
+    public static void delete(Context context, Ticket ticket) {
+        enqueue(context, ticket, new Op(Kind.DELETE, 0, 0, 0, 0, null));
+    }
+
+    /**
+     * Queues restoring a deleted entry, for undo.
+     *
+     * @param context The context.
+     * @param rowId   The id.
+     */
+    public static void undelete(Context context, long rowId) {
+        Ticket ticket = newTicket(rowId);
+        enqueue(context, ticket, new Op(Kind.UNDELETE, 0, 0, 0, 0, null));
+        release(ticket);
+    }
+
+    /**
+     * Loads the entry in the background.
+     *
+     * @param context  The context.
+     * @param rowId    The id.
+     * @param callback The LoadCallback.
+     */
+    public static void load(Context context, final long rowId,
+                            final LoadCallback callback) {
+        final Context appContext = context.getApplicationContext();
+        sExecutor.execute(() -> {
+            Data data = null;
+            HeartNotesDbAdapter dbAdapter =
+                    DatabaseManager.acquire(appContext);
+            try {
+                data = getStore(appContext, dbAdapter).getData(rowId);
+            } catch (Exception ex) {
+                Log.e(TAG, "SaveQueue: load failed for " + rowId, ex);
+            } finally {
+                DatabaseManager.release(dbAdapter);
+            }
+            final Data result = data;
+            sHandler.post(() -> callback.onLoaded(result));
+        });
+    }
+
+    /**
+     * Gets a report of the requests and writes.
+     *
+     * @return The report.
+     */
+    public static synchronized String getReport() {
+        return String.format(Locale.US, "Save queue\n"
+                        + "requests=%d coalesced=%d writes=%d waiting=%d\n",
+                sRequests, sCoalesced, sWrites, sPending.size());
+    }
+
+    private static void enqueue(Context context, final Ticket ticket,
+                                Op op) {
+        final Context appContext = context.getApplicationContext();
+        synchronized (SaveQueue.class) {
+            sRequests++;
+            if (sPending.put(ticket, op) != null) {
+                // The queued write will pick up this one instead
+                sCoalesced++;
+                return;
+            }
+        }
+        sExecutor.execute(() -> write(appContext, ticket));
+    }
+
+    /**
+     * Writes the latest Op for the Ticket. Runs on the writer thread.
+     */
+    private static void write(Context context, Ticket ticket) {
+        Op op;
+        synchronized (SaveQueue.class) {
+            op = sPending.remove(ticket);
+            if (op == null) return;
+            sWrites++;
+        }
+        String error = null;
+        long deletedId = -1;
+        long start = Timings.start();
+        HeartNotesDbAdapter dbAdapter = DatabaseManager.acquire(context);
+        try {
+            HeartNotesStore store = getStore(context, dbAdapter);
+            Long rowId = ticket.getRowId();
+            if (op.kind == Kind.DELETE) {
+                if (rowId != null) {
+                    if (store.deleteData(rowId)) {
+                        deletedId = rowId;
+                    } else {
+                        error = "Failed to delete the entry";
+                    }
+                }
+            } else if (op.kind == Kind.UNDELETE) {
+                if (rowId == null || !store.undeleteData(rowId)) {
+                    error = "The entry can no longer be restored";
+                }
+            } else if (rowId == null) {
+                long id = store.createData(op.date, op.dateMod, op.count,
+                        op.total, false, op.comment);
+                if (id > 0) {
+                    ticket.mRowId = id;
+                } else {
+                    error = "Failed to create the entry";
+                }
+            } else {
+                // Saving a new entry again does not count as an edit
+                if (!store.updateData(rowId, op.date, op.dateMod, op.count,
+                        op.total, !ticket.mIsNew, op.comment)) {
+                    error = "Failed to update the entry";
+                }
+            }
+        } catch (Exception ex) {
+            Log.e(TAG, "SaveQueue: write failed", ex);
+            error = "Error saving the entry: " + ex.getMessage();
+        } finally {
+            DatabaseManager.release(dbAdapter);
+            Timings.stop(Timings.SAVE_WRITE, start, error != null);
+        }
+        final String message = error;
+        final long id = deletedId;
+        sHandler.post(() -> {
+            List<Listener> listeners;
+            synchronized (SaveQueue.class) {
+                listeners = new ArrayList<>(sListeners);
+            }
+            for (Listener listener : listeners) {
+                listener.onSaved(id, message);
+            }
+        });
+    }
+
+    private static HeartNotesStore getStore(Context context,
+                                            HeartNotesDbAdapter dbAdapter) {
+        try {
+            return new JournalingStore(context, dbAdapter);
+        } catch (IOException ex) {
+            Log.e(TAG, "SaveQueue: error opening the capture journal", ex);
+            return dbAdapter;
+        }
+    }
+}
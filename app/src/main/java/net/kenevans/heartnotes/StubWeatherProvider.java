@@ -0,0 +1,203 @@
+package net.kenevans.heartnotes;
+
+import android.content.Context;
+import android.content.res.AssetManager;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * WeatherProvider for testing without the live service. It runs a small
+ * HTTP server on the loopback interface that replays the recorded
+ * OpenWeatherMap responses in assets/weather_stub, with a configurable
+ * latency and failure rate, and uses the OpenWeatherMap client against it.
+ * This way the whole HTTP and parsing path is exercised offline.
+ */
+public class StubWeatherProvider implements WeatherProvider, IConstants {
+    public static final String NAME = "Stub";
+    /**
+     * Asset directory for the recorded responses.
+     */
+    public static final String ASSET_DIR = "weather_stub";
+    public static final long DEFAULT_LATENCY = 500;
+    public static final float DEFAULT_FAILURE_RATE = .1f;
+    private static final int N_HANDLER_THREADS = 4;
+
+    private final Context mContext;
+    private final Random mRandom = new Random();
+    private volatile long mLatency = DEFAULT_LATENCY;
+    private volatile float mFailureRate = DEFAULT_FAILURE_RATE;
+    private List<byte[]> mResponses;
+    private int mNextResponse;
+    private ServerSocket mServerSocket;
+    private ExecutorService mHandlers;
+    private OpenWeatherMapProvider mClient;
+
+    public StubWeatherProvider(Context context) {
+        mContext = context;
+    }
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public boolean needsKey() {
+        return false;
+    }
+
+    @Override
+    public String getWeather(double latitude, double longitude, String key)
+            throws IOException {
+        OpenWeatherMapProvider client;
+        synchronized (this) {
+            if (mServerSocket == null) {
+                start();
+            }
+            client = mClient;
+        }
+        return client.getWeather(latitude, longitude, "stub");
+    }
+
+    /**
+     * Sets the time the server waits before responding.
+     *
+     * @param latency The latency in ms.
+     */
+    public void setLatency(long latency) {
+        mLatency = Math.max(0, latency);
+    }
+
+    /**
+     * Sets the fraction of requests that fail with a 503.
+     *
+     * @param failureRate The failure rate in the range [0, 1].
+     */
+    public void setFailureRate(float failureRate) {
+        mFailureRate = Math.max(0, Math.min(1, failureRate));
+    }
+
+    /**
+     * Stops the server. It is restarted by the next call to getWeather.
+     */
+    public synchronized void stop() {
+        if (mServerSocket != null) {
+            try {
+                mServerSocket.close();
+            } catch (IOException ex) {
+                // Do nothing
+            }
+            mServerSocket = null;
+        }
+        if (mHandlers != null) {
+            mHandlers.shutdownNow();
+            mHandlers = null;
+        }
+        mClient = null;
+    }
+
+    private void start() throws IOException {
+        mResponses = loadResponses();
+        if (mResponses.isEmpty()) {
+            throw new IOException("No recorded responses in assets/"
+                    + ASSET_DIR);
+        }
+        mServerSocket = new ServerSocket(0, 50,
+                InetAddress.getByName("127.0.0.1"));
+        mHandlers = Executors.newFixedThreadPool(N_HANDLER_THREADS);
+        final ServerSocket serverSocket = mServerSocket;
+        final ExecutorService handlers = mHandlers;
+        Thread acceptThread = new Thread(() -> {
+            while (!serverSocket.isClosed()) {
+                try {
+                    Socket socket = serverSocket.accept();
+                    handlers.execute(() -> handle(socket));
+                } catch (Exception ex) {
+                    if (!serverSocket.isClosed()) {
+                        Log.e(TAG, "StubWeatherProvider: accept failed", ex);
+                    }
+                }
+            }
+        }, "StubWeatherServer");
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+        int port = mServerSocket.getLocalPort();
+        Log.d(TAG, "StubWeatherProvider: listening on port " + port);
+        mClient = new OpenWeatherMapProvider(NAME, "http://127.0.0.1:" + port
+                + "/data/2.5/onecall?lat=%f&lon=%f&units=imperial&appid=%s");
+    }
+
+    private void handle(Socket socket) {
+        try (Socket s = socket) {
+            // Read the request line and headers, which are ignored
+            BufferedReader in = new BufferedReader(new InputStreamReader(
+                    s.getInputStream(), StandardCharsets.US_ASCII));
+            String line;
+            while ((line = in.readLine()) != null && !line.isEmpty()) {
+                // Do nothing
+            }
+            if (mLatency > 0) {
+                Thread.sleep(mLatency);
+            }
+            byte[] body;
+            String status;
+            synchronized (this) {
+                if (mRandom.nextFloat() < mFailureRate) {
+                    status = "503 Service Unavailable";
+                    body = new byte[0];
+                } else {
+                    status = "200 OK";
+                    body = mResponses.get(mNextResponse);
+                    mNextResponse = (mNextResponse + 1) % mResponses.size();
+                }
+            }
+            OutputStream out = s.getOutputStream();
+            out.write(("HTTP/1.1 " + status + "\r\n"
+                    + "Content-Type: application/json; charset=utf-8\r\n"
+                    + "Content-Length: " + body.length + "\r\n"
+                    + "Connection: close\r\n\r\n")
+                    .getBytes(StandardCharsets.US_ASCII));
+            out.write(body);
+            out.flush();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } catch (Exception ex) {
+            Log.d(TAG, "StubWeatherProvider: request failed", ex);
+        }
+    }
+
+    private List<byte[]> loadResponses() throws IOException {
+        List<byte[]> responses = new ArrayList<>();
+        AssetManager assets = mContext.getAssets();
+        String[] names = assets.list(ASSET_DIR);
+        if (names == null) return responses;
+        for (String name : names) {
+            if (!name.endsWith(".json")) continue;
+            try (InputStream in = assets.open(ASSET_DIR + "/" + name)) {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                byte[] buf = new byte[4096];
+                int n;
+                while ((n = in.read(buf)) > 0) {
+                    out.write(buf, 0, n);
+                }
+                responses.add(out.toByteArray());
+            }
+        }
+        return responses;
+    }
+}
@@ -0,0 +1,126 @@
+package net.kenevans.heartnotes;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A registry of LatencyHistograms for timing the hot paths. Use as
+ * <pre>
+ * long start = Timings.start();
+ * ...
+ * Timings.stop(Timings.REFRESH, start);
+ * </pre>
+ * The samples are in microseconds, since some operations, such as getView,
+ * take well under a ms. Cheap enough to leave on all the time.
+ */
+public class Timings {
+    public static final String REFRESH = "refresh";
+    public static final String CURSOR_LOOP = "cursor loop";
+    public static final String GET_VIEW = "getView";
+    public static final String SAVE_STATE = "saveState";
+    public static final String SAVE_WRITE = "save write";
+    public static final String BULK_EDIT = "bulk edit";
+    public static final String EXPORT_TEXT = "export text";
+    public static final String EXPORT_DATABASE = "export database";
+    public static final String RESTORE = "restore";
+    public static final String REPLACE_DATABASE = "replace database";
+    public static final String WEATHER = "weather fetch";
+    public static final String CAPTURE = "capture";
+    public static final String COMPACT_JOURNAL = "compact journal";
+    public static final String OPEN_DATABASE = "open database";
+    public static final String CHART_QUERY = "chart query";
+    public static final String SECTIONS_QUERY = "sections query";
+    public static final String ANALYTICS_REBUILD = "analytics rebuild";
+
+    private static final Map<String, LatencyHistogram> sHistograms =
+            new LinkedHashMap<>();
+
+    /**
+     * Gets the start time for a measurement.
+     *
+     * @return The start time in ns.
+     */
+    public static long start() {
+        return System.nanoTime();
+    }
+
+    /**
+     * Records the time since start for the given operation.
+     *
+     * @param name  The name of the operation.
+     * @param start The value from start().
+     */
+    public static void stop(String name, long start) {
+        stop(name, start, false);
+    }
+
+    /**
+     * Records the time since start for the given operation.
+     *
+     * @param name   The name of the operation.
+     * @param start  The value from start().
+     * @param failed Whether the operation failed.
+     */
+    public static void stop(String name, long start, boolean failed) {
+        get(name).record((System.nanoTime() - start) / 1000, failed);
+    }
+
+    /**
+     * Gets the histogram for the given operation, creating it if necessary.
+     *
+     * @param name The name of the operation.
+     * @return The histogram.
+     */
+    public static LatencyHistogram get(String name) {
+        synchronized (sHistograms) {
+            LatencyHistogram histogram = sHistograms.get(name);
+            if (histogram == null) {
+                histogram = new LatencyHistogram(name,
+                        LatencyHistogram.DEFAULT_CAPACITY, "us");
+                sHistograms.put(name, histogram);
+            }
+            return histogram;
+        }
+    }
+
+    /**
+     * Gets all the histograms in the order they were first used.
+     *
+     * @return The histograms.
+     */
+    public static List<LatencyHistogram> getAll() {
+        synchronized (sHistograms) {
+            return new ArrayList<>(sHistograms.values());
+        }
+    }
+
+    /**
+     * Clears all the samples.
+     */
+    public static void clear() {
+        for (LatencyHistogram histogram : getAll()) {
+            histogram.clear();
+        }
+    }
+
+    /**
+     * Gets a report of all the timings, one line per operation.
+     *
+     * @return The report.
+     */
+    public static String getReport() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("Timings at ").append(HeartNotesFormat.formatDate(
+                System.currentTimeMillis())).append("\n");
+        List<LatencyHistogram> histograms = getAll();
+        if (histograms.isEmpty()) {
+            sb.append("No samples\n");
+        }
+        for (LatencyHistogram histogram : histograms) {
+            sb.append(histogram.getSummary()).append("\n");
+        }
+        return sb.toString();
+    }
+}
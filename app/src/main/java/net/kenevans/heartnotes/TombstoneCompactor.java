@@ -0,0 +1,73 @@
+package net.kenevans.heartnotes;
+
+import android.content.Context;
+import android.os.Process;
+import android.util.Log;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Purges tombstones, the rows kept after a delete, once they are older than
+ * TOMBSTONE_RETENTION. The purge is done in batches, each its own
+ * statement, so other writers are only held off for one batch at a time.
+ */
+public class TombstoneCompactor implements IConstants {
+    /**
+     * The number of rows to remove per batch.
+     */
+    public static final int BATCH_SIZE = 500;
+
+    private static final ExecutorService sExecutor =
+            Executors.newSingleThreadExecutor(runnable -> {
+                Thread thread = new Thread(() -> {
+                    Process.setThreadPriority(
+                            Process.THREAD_PRIORITY_BACKGROUND);
+                    runnable.run();
+                }, "TombstoneCompactor");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    /**
+     * Purges the old tombstones in the background.
+     *
+     * @param context The context.
+     */
+    public static void compactInBackground(Context context) {
+        final Context appContext = context.getApplicationContext();
+        sExecutor.execute(() -> {
+            HeartNotesDbAdapter dbAdapter =
+                    DatabaseManager.acquire(appContext);
+            try {
+                compact(dbAdapter, System.currentTimeMillis()
+                        - TOMBSTONE_RETENTION);
+            } catch (Exception ex) {
+                Log.e(TAG, "TombstoneCompactor: compaction failed", ex);
+            } finally {
+                DatabaseManager.release(dbAdapter);
+            }
+        });
+    }
+
+    /**
+     * Purges the tombstones deleted before the given time. Does I/O and
+     * should not be called on the main thread.
+     *
+     * @param dbAdapter An open adapter.
+     * @param before    The time in ms.
+     * @return The number of rows removed.
+     */
+    public static int compact(HeartNotesDbAdapter dbAdapter, long before) {
+        int total = 0;
+        int removed;
+        do {
+            removed = dbAdapter.purgeTombstones(before, BATCH_SIZE);
+            total += removed;
+        } while (removed == BATCH_SIZE);
+        if (total > 0) {
+            Log.d(TAG, "TombstoneCompactor: removed " + total + " rows");
+        }
+        return total;
+    }
+}
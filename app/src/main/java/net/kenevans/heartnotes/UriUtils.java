@@ -7,6 +7,7 @@ import android.content.UriPermission;
 import android.content.pm.ApplicationInfo;
 import android.database.Cursor;
 import android.net.Uri;
+import android.os.SystemClock;
 import android.provider.DocumentsContract;
 import android.provider.OpenableColumns;
 import android.util.Log;
@@ -14,9 +15,25 @@ import android.util.Log;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 
 public class UriUtils implements IConstants {
+    /**
+     * Time in ms after which a cached listing from getChildren is queried
+     * again, to pick up changes made outside the app.
+     */
+    public static final long CHILDREN_CACHE_TIMEOUT = 5 * 60 * 1000L;
+
+    /**
+     * Cache for getChildren keyed by tree Uri and extension.
+     */
+    private static final Map<String, CachedChildren> sChildrenCache =
+            new HashMap<>();
+
     /**
      * Checks if a file exists for the given document Uri.
      *
@@ -27,8 +44,9 @@ public class UriUtils implements IConstants {
     public static boolean exists(Context context, Uri uri) {
         // !!!!!!!!!!!!!!!!!!!!! A kludge. Needs to be tested.
 //        Log.d(TAG, "exists: uri=" + uri.getLastPathSegment());
-        try (Cursor cursor = context.getContentResolver().query(uri,
-                null, null, null, null)) {
+        try (MainThreadIo.Scope ignored = MainThreadIo.enter("uri.exists");
+             Cursor cursor = context.getContentResolver().query(uri,
+                     null, null, null, null)) {
             return (cursor != null && cursor.moveToFirst());
         } catch (Exception ex) {
             return false;
@@ -58,8 +76,10 @@ public class UriUtils implements IConstants {
      */
     public static String getDisplayName(Context context, Uri uri) {
         String displayName = null;
-        try (Cursor cursor = context.getContentResolver().query(uri, null, null,
-                null, null)) {
+        try (MainThreadIo.Scope ignored =
+                     MainThreadIo.enter("uri.getDisplayName");
+             Cursor cursor = context.getContentResolver().query(uri, null,
+                     null, null, null)) {
             cursor.moveToFirst();
             int colIndex = cursor.getColumnIndex(OpenableColumns.DISPLAY_NAME);
             if (colIndex < 0) {
@@ -85,9 +105,11 @@ public class UriUtils implements IConstants {
         if (!DocumentsContract.isDocumentUri(context, uri)) return false;
         ContentResolver contentResolver = context.getContentResolver();
         String mimeType = "NA";
-        try (Cursor cursor = contentResolver.query(uri, new String[]{
-                        DocumentsContract.Document.COLUMN_MIME_TYPE},
-                null, null, null)) {
+        try (MainThreadIo.Scope ignored =
+                     MainThreadIo.enter("uri.isDirectory");
+             Cursor cursor = contentResolver.query(uri, new String[]{
+                             DocumentsContract.Document.COLUMN_MIME_TYPE},
+                     null, null, null)) {
             if (cursor != null && cursor.getCount() > 0) {
                 cursor.moveToFirst();
                 mimeType = cursor.getString(0);
@@ -98,7 +120,10 @@ public class UriUtils implements IConstants {
 
     /**
      * Gets a List of the children of the given document Uri that match the
-     * given extension.
+     * given extension, sorted with the most recently modified first. The
+     * listing is cached until invalidateChildren is called for the tree or
+     * CHILDREN_CACHE_TIMEOUT has passed. The returned list should not be
+     * modified.
      *
      * @param uri A document Uri.
      * @param ext The extension.
@@ -106,41 +131,105 @@ public class UriUtils implements IConstants {
      */
     public static List<UriData> getChildren(Context context, Uri uri,
                                             String ext) {
+        String key = uri + "|" + ext;
+        synchronized (sChildrenCache) {
+            CachedChildren cached = sChildrenCache.get(key);
+            if (cached != null && SystemClock.elapsedRealtime()
+                    - cached.time < CHILDREN_CACHE_TIMEOUT) {
+                return cached.children;
+            }
+        }
+        List<UriData> children;
+        try (MainThreadIo.Scope ignored =
+                     MainThreadIo.enter("uri.getChildren")) {
+            children = Collections.unmodifiableList(
+                    queryChildren(context, uri, ext));
+        }
+        synchronized (sChildrenCache) {
+            sChildrenCache.put(key, new CachedChildren(children));
+        }
+        return children;
+    }
+
+    /**
+     * Removes the cached listings for the given tree. Should be called
+     * whenever the app creates or deletes documents in it.
+     *
+     * @param uri The tree Uri.
+     */
+    public static void invalidateChildren(Uri uri) {
+        String prefix = uri + "|";
+        synchronized (sChildrenCache) {
+            Iterator<String> iterator = sChildrenCache.keySet().iterator();
+            while (iterator.hasNext()) {
+                if (iterator.next().startsWith(prefix)) {
+                    iterator.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * Queries the children of the given document Uri that match the given
+     * extension. The filter and sort order are passed to the provider, but
+     * since providers are free to ignore them, the filter is checked here as
+     * well and the result is only sorted here if the provider did not.
+     *
+     * @param uri A document Uri.
+     * @param ext The extension.
+     * @return The list, most recently modified first.
+     */
+    private static List<UriData> queryChildren(Context context, Uri uri,
+                                               String ext) {
         ContentResolver contentResolver = context.getContentResolver();
         Uri childrenUri =
                 DocumentsContract.buildChildDocumentsUriUsingTree(uri,
                         DocumentsContract.getTreeDocumentId(uri));
+        String lowerExt = ext.toLowerCase(Locale.US);
         List<UriData> children = new ArrayList<>();
+        boolean sorted = true;
         try (Cursor cursor = contentResolver.query(childrenUri,
                 new String[]{
                         DocumentsContract.Document.COLUMN_DOCUMENT_ID,
                         DocumentsContract.Document.COLUMN_LAST_MODIFIED,
                         DocumentsContract.Document.COLUMN_DISPLAY_NAME,
                 },
-                null,
-                null,
-                null)) {
+                DocumentsContract.Document.COLUMN_MIME_TYPE + " <> ? AND "
+                        + DocumentsContract.Document.COLUMN_DISPLAY_NAME
+                        + " LIKE ?",
+                new String[]{DocumentsContract.Document.MIME_TYPE_DIR,
+                        "%" + ext},
+                DocumentsContract.Document.COLUMN_LAST_MODIFIED + " DESC")) {
+            if (cursor == null) return children;
             String documentId;
             Uri documentUri;
             long modifiedTime;
             String displayName;
+            long prevModifiedTime = Long.MAX_VALUE;
             while (cursor.moveToNext()) {
                 documentId = cursor.getString(0);
+                // Check the id before building a Uri for it
+                if (documentId == null || !documentId.toLowerCase(Locale.US)
+                        .endsWith(lowerExt)) {
+                    continue;
+                }
                 documentUri = DocumentsContract.buildDocumentUriUsingTree(uri,
                         documentId);
                 if (documentUri == null) continue;
                 modifiedTime = cursor.getLong(1);
                 displayName = cursor.getString(2);
-                String name = documentUri.getLastPathSegment();
-                if (name != null) {
-                    if (name.toLowerCase().endsWith(ext)) {
-                        children.add(new UriData(documentUri, modifiedTime,
-                                displayName));
-                    }
-                }
+                if (modifiedTime > prevModifiedTime) sorted = false;
+                prevModifiedTime = modifiedTime;
+                children.add(new UriData(documentUri, modifiedTime,
+                        displayName));
             }
         }
-        // Do nothing
+        if (!sorted) {
+            // Sort them by date with newest first
+            Collections.sort(children,
+                    (data1, data2) -> Long.compare(data2.modifiedTime,
+                            data1.modifiedTime));
+        }
         return children;
     }
 
@@ -251,6 +340,19 @@ public class UriUtils implements IConstants {
         return uid;
     }
 
+    /**
+     * Convenience class for a cached listing.
+     */
+    private static class CachedChildren {
+        final List<UriData> children;
+        final long time;
+
+        CachedChildren(List<UriData> children) {
+            this.children = children;
+            this.time = SystemClock.elapsedRealtime();
+        }
+    }
+
     /**
      * Convenience class for managing Uri information.
      */
@@ -141,6 +141,24 @@ public class Utils implements IConstants {
         return baos.toString();
     }
 
+    /**
+     * Gets the name of a Filter shown to the user.
+     *
+     * @param context The context.
+     * @param filter  The Filter.
+     * @return The name.
+     */
+    public static String getFilterName(Context context, Filter filter) {
+        switch (filter) {
+            case NONZERO:
+                return context.getString(R.string.filter_nonzero);
+            case COUNT_TOTAL:
+                return context.getString(R.string.filter_counttotal);
+            default:
+                return context.getString(R.string.filter_none);
+        }
+    }
+
     /**
      * Get the extension of a file.
      *
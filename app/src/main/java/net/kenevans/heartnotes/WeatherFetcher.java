@@ -0,0 +1,135 @@
+package net.kenevans.heartnotes;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Fetches the weather on a background thread. There is at most one fetch in
+ * flight. Requests made while a fetch is running are attached to it rather
+ * than starting another one. All of the public methods are meant to be
+ * called from the main thread, and the callbacks are run there.
+ */
+public class WeatherFetcher implements IConstants {
+    /**
+     * Single worker thread that times out when idle. The queue is not
+     * bounded. Cancelling does not stop a blocking read or the wait for a
+     * location, so a cancelled fetch can still be running, or queued behind
+     * one that is, when the next one is submitted. There is at most one
+     * live fetch, and cancelled ones that have not started are purged.
+     */
+    private static final ThreadPoolExecutor sExecutor =
+            new ThreadPoolExecutor(1, 1, 30, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<>(), runnable -> {
+                Thread thread = new Thread(() -> {
+                    Process.setThreadPriority(
+                            Process.THREAD_PRIORITY_BACKGROUND);
+                    runnable.run();
+                }, "WeatherFetcher");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    static {
+        sExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    private static final Handler sHandler =
+            new Handler(Looper.getMainLooper());
+    private static final List<Callback> sCallbacks = new ArrayList<>();
+    private static Future<?> sFuture;
+    /**
+     * Incremented for each new fetch so the result of a cancelled fetch is
+     * not delivered to the callbacks of a later one.
+     */
+    private static int sGeneration;
+
+    /**
+     * Callback for the result of a fetch.
+     */
+    public interface Callback {
+        /**
+         * Called on the main thread when the fetch finishes.
+         *
+         * @param weather The weather String, a message saying why it could
+         *                not be gotten, or null if there is no location
+         *                permission.
+         */
+        void onWeather(String weather);
+    }
+
+    /**
+     * Requests the weather. If a fetch is already in flight, the callback is
+     * added to it.
+     *
+     * @param context  The context.
+     * @param callback The callback for the result.
+     */
+    public static void fetch(Context context, Callback callback) {
+        if (!sCallbacks.contains(callback)) {
+            sCallbacks.add(callback);
+        }
+        if (sFuture != null) {
+            Log.d(TAG, "WeatherFetcher.fetch: joining the fetch in flight");
+            return;
+        }
+        final Context appContext = context.getApplicationContext();
+        final int generation = ++sGeneration;
+        sFuture = sExecutor.submit(() -> {
+            long start = Timings.start();
+            LocationUtils.WeatherResult result =
+                    LocationUtils.getWeather(appContext);
+            Timings.stop(Timings.WEATHER, start, result.failed);
+            if (Thread.currentThread().isInterrupted()) return;
+            sHandler.post(() -> deliver(generation, result.weather));
+        });
+    }
+
+    /**
+     * Removes the callback. When there are no callbacks left, the fetch in
+     * flight, if any, is cancelled.
+     *
+     * @param callback The callback to remove.
+     */
+    public static void cancel(Callback callback) {
+        sCallbacks.remove(callback);
+        if (sCallbacks.isEmpty() && sFuture != null) {
+            Log.d(TAG, "WeatherFetcher.cancel: cancelling the fetch");
+            sFuture.cancel(true);
+            sFuture = null;
+            // Drop it from the queue if it has not started
+            sExecutor.purge();
+        }
+    }
+
+    /**
+     * Returns whether a fetch is in flight.
+     *
+     * @return If a fetch is in flight.
+     */
+    public static boolean isFetching() {
+        return sFuture != null;
+    }
+
+    private static void deliver(int generation, String weather) {
+        if (generation != sGeneration || sFuture == null) {
+            // Was cancelled
+            return;
+        }
+        sFuture = null;
+        List<Callback> callbacks = new ArrayList<>(sCallbacks);
+        sCallbacks.clear();
+        for (Callback callback : callbacks) {
+            callback.onWeather(weather);
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package net.kenevans.heartnotes;
+
+import java.io.IOException;
+
+/**
+ * Interface for a source of weather information.
+ */
+public interface WeatherProvider {
+    /**
+     * Gets the name of the provider. Used for preferences and for the
+     * latency statistics.
+     *
+     * @return The name.
+     */
+    String getName();
+
+    /**
+     * Returns whether the provider needs an API key.
+     *
+     * @return If a key is needed.
+     */
+    boolean needsKey();
+
+    /**
+     * Gets a weather String for the given location. Does network I/O and
+     * should not be called on the main thread.
+     *
+     * @param latitude  The latitude.
+     * @param longitude The longitude.
+     * @param key       The API key. May be null if needsKey() is false.
+     * @return The weather String.
+     * @throws IOException If the weather cannot be obtained.
+     */
+    String getWeather(double latitude, double longitude, String key)
+            throws IOException;
+}
@@ -0,0 +1,83 @@
+package net.kenevans.heartnotes;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Chooses the WeatherProvider from the preferences and keeps a latency
+ * histogram for each provider.
+ */
+public class WeatherProviders implements IConstants {
+    private static final Map<String, LatencyHistogram> sHistograms =
+            new LinkedHashMap<>();
+    private static WeatherProvider sOpenWeatherMap;
+    private static StubWeatherProvider sStub;
+
+    /**
+     * Gets the WeatherProvider set in the preferences.
+     *
+     * @param context The context.
+     * @return The provider.
+     */
+    public static synchronized WeatherProvider getProvider(Context context) {
+        SharedPreferences prefs = context.getSharedPreferences(MAIN_ACTIVITY,
+                Context.MODE_PRIVATE);
+        if (prefs.getBoolean(PREF_STUB_WEATHER, false)) {
+            long latency = prefs.getLong(PREF_STUB_WEATHER_LATENCY,
+                    StubWeatherProvider.DEFAULT_LATENCY);
+            float failureRate = prefs.getFloat(PREF_STUB_WEATHER_FAILURE_RATE,
+                    StubWeatherProvider.DEFAULT_FAILURE_RATE);
+            if (sStub == null) {
+                sStub = new StubWeatherProvider(
+                        context.getApplicationContext());
+            }
+            sStub.setLatency(latency);
+            sStub.setFailureRate(failureRate);
+            return sStub;
+        }
+        if (sOpenWeatherMap == null) {
+            sOpenWeatherMap = new OpenWeatherMapProvider();
+        }
+        return sOpenWeatherMap;
+    }
+
+    /**
+     * Records the time taken by a call to a provider.
+     *
+     * @param provider The provider.
+     * @param latency  The time in ms.
+     * @param failed   Whether the call failed.
+     */
+    public static void recordLatency(WeatherProvider provider, long latency,
+                                     boolean failed) {
+        LatencyHistogram histogram;
+        synchronized (sHistograms) {
+            histogram = sHistograms.get(provider.getName());
+            if (histogram == null) {
+                histogram = new LatencyHistogram(provider.getName());
+                sHistograms.put(provider.getName(), histogram);
+            }
+        }
+        histogram.record(latency, failed);
+        Log.d(TAG, "Weather " + histogram.getSummary());
+    }
+
+    /**
+     * Returns the latency summaries for all the providers used so far.
+     *
+     * @return The summaries, one per line.
+     */
+    public static String getLatencyInfo() {
+        StringBuilder sb = new StringBuilder();
+        synchronized (sHistograms) {
+            for (LatencyHistogram histogram : sHistograms.values()) {
+                sb.append(histogram.getSummary()).append("\n");
+            }
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,256 @@
+package net.kenevans.heartnotes;
+
+import android.content.Context;
+import android.database.Cursor;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.ParameterizedRobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.SQLiteMode;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Times the HeartNotesDbAdapter operations on generated databases, using
+ * Robolectric's native SQLite, and fails if any takes longer than its
+ * limit in db_thresholds.properties. The keys there are the operation and
+ * the number of rows, as in deleteData.100000. The values are in ms.
+ * Operations without a limit are timed but not checked. The failure
+ * message has the times of the test so far.
+ * <p/>
+ * The database has 10k rows by default, so the plain test runs stay fast.
+ * ./gradlew :app:perfTest also uses 100k and 1M rows. Set the system
+ * property heartnotes.perf.rows, as in -Pheartnotes.perf.rows=100000, for
+ * others. They are generated with DatasetGenerator the first time and
+ * kept in the temporary directory, and each test works on a copy.
+ */
+@RunWith(ParameterizedRobolectricTestRunner.class)
+@SQLiteMode(SQLiteMode.Mode.NATIVE)
+public class HeartNotesDbAdapterPerformanceTest implements IConstants {
+    private static final String ROWS_PROPERTY = "heartnotes.perf.rows";
+    private static final String DEFAULT_ROWS = "10000";
+    private static final String THRESHOLDS = "/db_thresholds.properties";
+    /**
+     * The number of single row operations that are timed together.
+     */
+    private static final int OPERATIONS = 1000;
+
+    private static Properties sLimits;
+
+    private final int mRows;
+    private Context mContext;
+    private File mDbFile;
+    private HeartNotesDbAdapter mDbAdapter;
+    /**
+     * The times of the test so far, for the failure message.
+     */
+    private final StringBuilder mTimes = new StringBuilder();
+
+    public HeartNotesDbAdapterPerformanceTest(int rows) {
+        mRows = rows;
+    }
+
+    @ParameterizedRobolectricTestRunner.Parameters(name = "{0} rows")
+    public static Collection<Object[]> getRows() {
+        List<Object[]> rows = new ArrayList<>();
+        for (String value : System.getProperty(ROWS_PROPERTY, DEFAULT_ROWS)
+                .split(",")) {
+            rows.add(new Object[]{Integer.parseInt(value.trim())});
+        }
+        return rows;
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        mContext = RuntimeEnvironment.getApplication();
+        mDbFile = new File(mContext.getCacheDir(), "perf.db");
+        Files.copy(getDatabase(mRows, 1).toPath(), mDbFile.toPath(),
+                StandardCopyOption.REPLACE_EXISTING);
+        mDbAdapter = new HeartNotesDbAdapter(mContext).open(mDbFile);
+    }
+
+    @After
+    public void tearDown() {
+        mDbAdapter.close();
+        mContext.deleteDatabase(mDbFile.getPath());
+    }
+
+    @Test
+    public void createData() {
+        long dateMod = System.currentTimeMillis();
+        long start = System.nanoTime();
+        for (int i = 0; i < OPERATIONS; i++) {
+            assertTrue(mDbAdapter.createData(dateMod + i, dateMod, i % 3, 3,
+                    false, "Created " + i) > 0);
+        }
+        check("createData", start);
+        assertEquals(mRows + OPERATIONS, mDbAdapter.getCount(Filter.NONE));
+    }
+
+    @Test
+    public void fetchAllData() {
+        for (Filter filter : Filter.values()) {
+            for (String sortOrder : new String[]{SORT_ASCENDING,
+                    SORT_DESCENDING}) {
+                long start = System.nanoTime();
+                int rows = 0;
+                try (Cursor cursor = mDbAdapter.fetchAllData(
+                        filter.getSelection(), sortOrder)) {
+                    // Read every row, as the list does
+                    int indexDate = cursor.getColumnIndexOrThrow(COL_DATE);
+                    int indexCount = cursor.getColumnIndexOrThrow(COL_COUNT);
+                    int indexComment =
+                            cursor.getColumnIndexOrThrow(COL_COMMENT);
+                    while (cursor.moveToNext()) {
+                        cursor.getLong(indexDate);
+                        cursor.getLong(indexCount);
+                        cursor.getString(indexComment);
+                        rows++;
+                    }
+                }
+                check("fetchAllData." + filter + "."
+                        + (sortOrder.equals(SORT_ASCENDING) ? "asc"
+                        : "desc"), start);
+                assertEquals(mDbAdapter.getCount(filter), rows);
+            }
+        }
+    }
+
+    @Test
+    public void updateData() {
+        long dateMod = System.currentTimeMillis();
+        long[] rowIds = getRowIds(2);
+        long start = System.nanoTime();
+        for (long rowId : rowIds) {
+            assertTrue(mDbAdapter.updateData(rowId, dateMod, dateMod, 1, 2,
+                    true, "Updated"));
+        }
+        check("updateData", start);
+    }
+
+    @Test
+    public void deleteData() {
+        long[] rowIds = getRowIds(3);
+        long start = System.nanoTime();
+        for (long rowId : rowIds) {
+            assertTrue(mDbAdapter.deleteData(rowId));
+        }
+        check("deleteData", start);
+        assertEquals(mRows - rowIds.length, mDbAdapter.getCount(Filter.NONE));
+    }
+
+    @Test
+    public void recreateDataTable() {
+        long start = System.nanoTime();
+        mDbAdapter.recreateDataTable();
+        check("recreateDataTable", start);
+        assertEquals(0, mDbAdapter.getCount(Filter.NONE));
+    }
+
+    @Test
+    public void replaceDatabase() throws IOException {
+        File replacement = getDatabase(mRows, 2);
+        long start = System.nanoTime();
+        mDbAdapter.replaceDatabase(replacement.getPath(), null);
+        check("replaceDatabase", start);
+        assertEquals(mRows, mDbAdapter.getCount(Filter.NONE));
+    }
+
+    /**
+     * Gets distinct ids of existing rows spread over the table.
+     *
+     * @param seed The seed for the Random.
+     * @return OPERATIONS ids or all of them if there are fewer rows.
+     */
+    private long[] getRowIds(long seed) {
+        long[] rowIds = new long[Math.min(OPERATIONS, mRows)];
+        Random random = new Random(seed);
+        int stride = mRows / rowIds.length;
+        for (int i = 0; i < rowIds.length; i++) {
+            // The generated rows have ids 1 to mRows
+            rowIds[i] = 1 + (long) i * stride + random.nextInt(stride);
+        }
+        return rowIds;
+    }
+
+    /**
+     * Records the time since start and fails if it is over the limit.
+     *
+     * @param operation The operation.
+     * @param start     The start from System.nanoTime.
+     */
+    private void check(String operation, long start) {
+        double ms = 1e-6 * (System.nanoTime() - start);
+        String key = operation + "." + mRows;
+        String limit = getLimits().getProperty(key);
+        mTimes.append(String.format(Locale.US, "\n%-36s %10.1f ms%s", key,
+                ms, limit != null ? " (limit " + limit + ")" : ""));
+        if (limit != null && ms > Double.parseDouble(limit)) {
+            fail(String.format(Locale.US, "%s took %.1f ms, over the limit"
+                    + " of %s ms. Times:%s", key, ms, limit, mTimes));
+        }
+    }
+
+    private static synchronized Properties getLimits() {
+        if (sLimits == null) {
+            sLimits = new Properties();
+            try (InputStream in =
+                         HeartNotesDbAdapterPerformanceTest.class
+                                 .getResourceAsStream(THRESHOLDS)) {
+                if (in != null) sLimits.load(in);
+            } catch (IOException ex) {
+                throw new IllegalStateException("Cannot read " + THRESHOLDS,
+                        ex);
+            }
+        }
+        return sLimits;
+    }
+
+    /**
+     * Gets a generated database, generating it if it does not exist.
+     *
+     * @param rows The number of rows.
+     * @param seed The seed.
+     * @return The file.
+     * @throws IOException On failure.
+     */
+    private static File getDatabase(int rows, long seed) throws IOException {
+        File dir = new File(System.getProperty("java.io.tmpdir"),
+                "heartnotes-perf");
+        File dbFile = new File(dir, String.format(Locale.US,
+                "v%d-rows%d-seed%d.db", DB_VERSION, rows, seed));
+        if (dbFile.exists()) return dbFile;
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Could not create " + dir);
+        }
+        DatasetGenerator.Config config = new DatasetGenerator.Config();
+        config.rows = rows;
+        config.seed = seed;
+        config.spanDays = Math.max(365, rows / 10);
+        // Write it under another name, so an interrupted run is not used
+        File temp = new File(dir, dbFile.getName() + ".tmp");
+        HeartNotesDbAdapter.writeDatabase(temp,
+                new DatasetGenerator(config), null);
+        if (!temp.renameTo(dbFile)) {
+            throw new IOException("Could not rename " + temp);
+        }
+        return dbFile;
+    }
+}
@@ -0,0 +1,103 @@
+package net.kenevans.heartnotes;
+
+import android.content.Context;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.io.File;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests that MainThreadIo catches I/O on what its Predicate says is the
+ * main thread, and that it names the call site outside the instrumented
+ * classes.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class MainThreadIoTest {
+    private Context mContext;
+    private File mDbFile;
+    private HeartNotesDbAdapter mDbAdapter;
+
+    @Before
+    public void setUp() {
+        mContext = RuntimeEnvironment.getApplication();
+        mDbFile = new File(mContext.getCacheDir(), "mainthreadio.db");
+        // Opened before detection is on
+        mDbAdapter = new HeartNotesDbAdapter(mContext).open(mDbFile);
+        final Thread testThread = Thread.currentThread();
+        MainThreadIo.setPredicate(() -> Thread.currentThread() == testThread);
+        MainThreadIo.clear();
+    }
+
+    @After
+    public void tearDown() {
+        MainThreadIo.setStrict(false);
+        MainThreadIo.setEnabled(false);
+        MainThreadIo.setPredicate(() -> false);
+        MainThreadIo.clear();
+        mDbAdapter.close();
+        mContext.deleteDatabase(mDbFile.getPath());
+    }
+
+    @Test
+    public void strictThrowsViolation() {
+        MainThreadIo.setStrict(true);
+        try {
+            getAllData();
+            fail("Expected a Violation");
+        } catch (MainThreadIo.Violation ex) {
+            // Not the adapter methods between getAllData and the query
+            assertTrue(ex.getMessage(), ex.getMessage().startsWith(
+                    "db.fetchAllData on the main thread from"
+                            + " MainThreadIoTest.getAllData:"));
+        }
+        assertEquals(0, MainThreadIo.getCount());
+    }
+
+    @Test
+    public void recordsCallSite() {
+        MainThreadIo.setEnabled(true);
+        createData();
+        assertEquals(1, MainThreadIo.getCount());
+        String report = MainThreadIo.getReport();
+        assertTrue(report, report.contains(
+                "db.createData @ MainThreadIoTest.createData:"));
+    }
+
+    @Test
+    public void ignoresOtherThreads() throws InterruptedException {
+        MainThreadIo.setStrict(true);
+        final long[] id = {-1};
+        Thread thread = new Thread(() -> {
+            long now = System.currentTimeMillis();
+            id[0] = mDbAdapter.createData(now, now, 1, 2, false, "Test");
+        });
+        thread.start();
+        thread.join();
+        assertTrue(id[0] > 0);
+        assertEquals(0, MainThreadIo.getCount());
+    }
+
+    /**
+     * Gets the rows, as UI code would.
+     */
+    private void getAllData() {
+        mDbAdapter.getAllData(Filter.NONE, IConstants.SORT_DESCENDING);
+    }
+
+    /**
+     * Creates a row, as UI code would.
+     */
+    private void createData() {
+        long now = System.currentTimeMillis();
+        assertTrue(mDbAdapter.createData(now, now, 1, 2, false, "Test") > 0);
+    }
+}
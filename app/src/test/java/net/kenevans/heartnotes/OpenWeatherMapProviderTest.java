@@ -0,0 +1,89 @@
+package net.kenevans.heartnotes;
+
+import android.content.res.AssetManager;
+import android.util.JsonReader;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Parses the recorded responses in assets/weather_stub, and some edge
+ * cases, with OpenWeatherMapProvider.parseOpenWeather.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class OpenWeatherMapProviderTest {
+    @Test
+    public void parsesFixtures() throws IOException {
+        assertEquals("temp=78°F (feels like 79°F) humidity=58% on "
+                        + new Date(1655740800000L),
+                parseAsset("onecall_clear.json"));
+        assertEquals("temp=39°F (feels like 32°F) humidity=93% on "
+                        + new Date(1668434400000L),
+                parseAsset("onecall_rain.json"));
+    }
+
+    @Test
+    public void parsesEveryFixture() throws IOException {
+        AssetManager assets =
+                RuntimeEnvironment.getApplication().getAssets();
+        String[] names = assets.list(StubWeatherProvider.ASSET_DIR);
+        assertTrue(names != null && names.length > 0);
+        for (String name : names) {
+            assertTrue(name, parseAsset(name).startsWith("temp="));
+        }
+    }
+
+    @Test
+    public void skipsOtherFields() throws IOException {
+        assertEquals("temp=50°F (feels like 48°F) humidity=70% on "
+                        + new Date(1000L),
+                parse("{\"hourly\":[{\"temp\":1,\"humidity\":2}],"
+                        + "\"timezone\":\"UTC\",\"current\":{\"weather\":"
+                        + "[{\"id\":800}],\"temp\":50.2,\"feels_like\":48,"
+                        + "\"humidity\":70,\"dt\":1},\"daily\":[1,2]}"));
+    }
+
+    @Test
+    public void handlesMissingCurrent() throws IOException {
+        assertEquals("Current weather not found",
+                parse("{\"lat\":1,\"current\":null,\"lon\":2}"));
+    }
+
+    @Test
+    public void handlesNullFields() throws IOException {
+        String weather = parse("{\"current\":{\"temp\":50,"
+                + "\"feels_like\":null,\"humidity\":70,\"dt\":null}}");
+        assertTrue(weather, weather.startsWith("temp=50°F"));
+        assertTrue(weather, weather.contains("humidity=70%"));
+        assertFalse(weather, weather.contains("feels like"));
+        assertFalse(weather, weather.contains(" on "));
+    }
+
+    private static String parseAsset(String name) throws IOException {
+        AssetManager assets =
+                RuntimeEnvironment.getApplication().getAssets();
+        try (JsonReader reader = new JsonReader(new InputStreamReader(
+                assets.open(StubWeatherProvider.ASSET_DIR + "/" + name),
+                StandardCharsets.UTF_8))) {
+            return OpenWeatherMapProvider.parseOpenWeather(reader);
+        }
+    }
+
+    private static String parse(String json) throws IOException {
+        try (JsonReader reader = new JsonReader(new StringReader(json))) {
+            return OpenWeatherMapProvider.parseOpenWeather(reader);
+        }
+    }
+}
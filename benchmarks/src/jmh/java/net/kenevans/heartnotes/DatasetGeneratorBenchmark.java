@@ -0,0 +1,37 @@
+package net.kenevans.heartnotes;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures generating the rows of a synthetic dataset, which is the part
+ * of Generate Dataset that is not database or file I/O.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class DatasetGeneratorBenchmark {
+    @Param({"1000", "100000", "1000000"})
+    public int rows;
+
+    @Benchmark
+    public void generate(Blackhole blackhole) throws IOException {
+        DatasetGenerator.Config config = new DatasetGenerator.Config();
+        config.rows = rows;
+        new DatasetGenerator(config).generate((date, count, total,
+                                               comment) -> {
+            blackhole.consume(date);
+            blackhole.consume(count + total);
+            blackhole.consume(comment);
+        }, null);
+    }
+}
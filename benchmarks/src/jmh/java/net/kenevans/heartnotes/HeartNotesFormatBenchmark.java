@@ -0,0 +1,71 @@
+package net.kenevans.heartnotes;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.text.ParseException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures writing and reading a whole Save as Text backup of rows from
+ * DatasetGenerator, as Save as Text and Restore do, without the I/O.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class HeartNotesFormatBenchmark {
+    @Param({"1000", "100000", "1000000"})
+    public int rows;
+
+    private long[] mDates;
+    private long[] mCounts;
+    private long[] mTotals;
+    private String[] mComments;
+    private String[] mLines;
+
+    @Setup
+    public void setUp() throws IOException {
+        DatasetGenerator.Config config = new DatasetGenerator.Config();
+        config.rows = rows;
+        mDates = new long[rows];
+        mCounts = new long[rows];
+        mTotals = new long[rows];
+        mComments = new String[rows];
+        mLines = new String[rows];
+        final int[] i = {0};
+        new DatasetGenerator(config).generate((date, count, total,
+                                               comment) -> {
+            mDates[i[0]] = date;
+            mCounts[i[0]] = count;
+            mTotals[i[0]] = total;
+            mComments[i[0]] = comment;
+            mLines[i[0]] = HeartNotesFormat.formatLine(count, total,
+                    HeartNotesFormat.formatDate(date), comment);
+            i[0]++;
+        }, null);
+    }
+
+    @Benchmark
+    public void formatLines(Blackhole blackhole) {
+        for (int i = 0; i < rows; i++) {
+            blackhole.consume(HeartNotesFormat.formatLine(mCounts[i],
+                    mTotals[i], HeartNotesFormat.formatDate(mDates[i]),
+                    mComments[i]));
+        }
+    }
+
+    @Benchmark
+    public void parseLines(Blackhole blackhole) throws ParseException {
+        for (String line : mLines) {
+            blackhole.consume(HeartNotesFormat.parseLine(line));
+        }
+    }
+}
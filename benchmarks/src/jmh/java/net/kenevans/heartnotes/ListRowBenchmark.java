@@ -0,0 +1,101 @@
+package net.kenevans.heartnotes;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+import org.xml.sax.SAXException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+
+/**
+ * Measures making the text of the list rows for rows from
+ * DatasetGenerator, as SectionedListAdapter.getView does, with the
+ * session_heading format from res/values/strings.xml and
+ * HeartNotesFormat.formatDate.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ListRowBenchmark {
+    @Param({"1000", "100000", "1000000"})
+    public int rows;
+
+    private String mHeading;
+    private long[] mDates;
+    private int[] mCounts;
+    private int[] mTotals;
+    private String[] mComments;
+
+    @Setup
+    public void setUp() throws IOException {
+        mHeading = getString("session_heading");
+        DatasetGenerator.Config config = new DatasetGenerator.Config();
+        config.rows = rows;
+        mDates = new long[rows];
+        mCounts = new int[rows];
+        mTotals = new int[rows];
+        mComments = new String[rows];
+        final int[] i = {0};
+        new DatasetGenerator(config).generate((date, count, total,
+                                               comment) -> {
+            mDates[i[0]] = date;
+            mCounts[i[0]] = (int) count;
+            mTotals[i[0]] = (int) total;
+            mComments[i[0]] = comment;
+            i[0]++;
+        }, null);
+    }
+
+    @Benchmark
+    public void makeRows(Blackhole blackhole) {
+        for (int i = 0; i < rows; i++) {
+            // The ids are 1 to rows, as after a restore
+            blackhole.consume(String.format(Locale.US, mHeading, i + 1L,
+                    mCounts[i], mTotals[i],
+                    HeartNotesFormat.formatDate(mDates[i])));
+            blackhole.consume(mComments[i]);
+        }
+    }
+
+    /**
+     * Gets a string from the app's strings.xml.
+     *
+     * @param name The name of the string.
+     * @return The string.
+     * @throws IOException If it is not found.
+     */
+    private static String getString(String name) throws IOException {
+        try (InputStream in = ListRowBenchmark.class.getResourceAsStream(
+                "/values/strings.xml")) {
+            if (in == null) {
+                throw new IOException("Missing strings.xml");
+            }
+            NodeList strings = DocumentBuilderFactory.newInstance()
+                    .newDocumentBuilder().parse(in)
+                    .getElementsByTagName("string");
+            for (int i = 0; i < strings.getLength(); i++) {
+                Element string = (Element) strings.item(i);
+                if (name.equals(string.getAttribute("name"))) {
+                    return string.getTextContent();
+                }
+            }
+        } catch (ParserConfigurationException | SAXException ex) {
+            throw new IOException("Error reading strings.xml", ex);
+        }
+        throw new IOException("Missing string " + name);
+    }
+}
@@ -0,0 +1,57 @@
+package net.kenevans.heartnotes;
+
+import android.util.JsonReader;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures OpenWeatherMapProvider.parseOpenWeather on the recorded
+ * responses the stub server replays, from assets/weather_stub.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class OpenWeatherBenchmark {
+    @Param({"onecall_clear.json", "onecall_rain.json"})
+    public String fixture;
+
+    private String mJson;
+
+    @Setup
+    public void setUp() throws IOException {
+        try (InputStream in = OpenWeatherBenchmark.class.getResourceAsStream(
+                "/weather_stub/" + fixture)) {
+            if (in == null) {
+                throw new IOException("Missing fixture " + fixture);
+            }
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                out.write(buffer, 0, read);
+            }
+            mJson = new String(out.toByteArray(), StandardCharsets.UTF_8);
+        }
+    }
+
+    @Benchmark
+    public String parse() throws IOException {
+        try (JsonReader reader = new JsonReader(new StringReader(mJson))) {
+            return OpenWeatherMapProvider.parseOpenWeather(reader);
+        }
+    }
+}
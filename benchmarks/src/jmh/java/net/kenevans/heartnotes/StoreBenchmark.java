@@ -0,0 +1,57 @@
+package net.kenevans.heartnotes;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures getting the rows from DatasetGenerator back from an
+ * InMemoryHeartNotesStore through a Filter, which is the filtering and
+ * sorting HeartNotesDbAdapter leaves to SQLite.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class StoreBenchmark implements IConstants {
+    @Param({"1000", "100000", "1000000"})
+    public int rows;
+
+    @Param({"NONE", "COUNT_TOTAL"})
+    public String filter;
+
+    private InMemoryHeartNotesStore mStore;
+
+    @Setup
+    public void setUp() throws IOException {
+        DatasetGenerator.Config config = new DatasetGenerator.Config();
+        config.rows = rows;
+        final List<Data> list = new ArrayList<>(rows);
+        final long now = System.currentTimeMillis();
+        new DatasetGenerator(config).generate((date, count, total,
+                                               comment) ->
+                list.add(new Data(-1, date, now, (int) count, (int) total,
+                        false, comment)), null);
+        mStore = new InMemoryHeartNotesStore();
+        mStore.createAll(list);
+    }
+
+    @Benchmark
+    public List<Data> getAllData() {
+        return mStore.getAllData(Filter.valueOf(filter), SORT_DESCENDING);
+    }
+
+    @Benchmark
+    public int getCount() {
+        return mStore.getCount(Filter.valueOf(filter));
+    }
+}